@@ -0,0 +1,522 @@
+package halo.query;
+
+import halo.query.dal.*;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 异步查询，方法与 {@link Query} 对应，返回 {@link CompletableFuture}.<br>
+ * 调用线程的分区上下文(dalInfo、slave设置、分区参数)会在提交时获取并传递到执行线程，提交后调用线程的路由信息会被清除，与同步调用一致.<br>
+ * 异步操作在执行线程中运行，不会加入调用线程的事务.<br>
+ * 可以设置每个数据源的最大并发数(包括等待执行的操作)，在调用线程中解析路由并获取许可，
+ * 超过时立即返回 {@link DALRejectedException} 失败的结果，不会占用执行线程，其他数据源的操作不受影响
+ */
+public class AsyncQuery implements InitializingBean {
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private final Map<String, HaloConcurrencyLimiter> limiterMap = new ConcurrentHashMap<>();
+
+    private Query query;
+
+    private Executor executor;
+
+    /**
+     * 当前对象创建的线程池，销毁时需要关闭
+     */
+    private ExecutorService createdExecutorService;
+
+    private int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+    private int queueSize = 1000;
+
+    private boolean useVirtualThreads;
+
+    /**
+     * 每个数据源的最大并发数，&lt;=0时不限制
+     */
+    private int maxConcurrencyPerDsKey;
+
+    public AsyncQuery() {
+    }
+
+    public AsyncQuery(Query query, Executor executor) {
+        this.query = query;
+        this.executor = executor;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    /**
+     * 设置执行异步操作的executor，不设置时使用有界线程池
+     *
+     * @param executor executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 设置默认线程池的线程数量
+     *
+     * @param poolSize 线程数量
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * 设置默认线程池的等待队列长度，队列满时提交的操作会失败
+     *
+     * @param queueSize 队列长度
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * 没有设置executor时，使用虚拟线程执行异步操作，需要jdk21及以上版本
+     *
+     * @param useVirtualThreads true:使用虚拟线程
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * 设置每个数据源的最大并发数，包括等待执行的操作，超过时提交的操作立即失败
+     *
+     * @param maxConcurrencyPerDsKey &lt;=0时不限制
+     */
+    public void setMaxConcurrencyPerDsKey(int maxConcurrencyPerDsKey) {
+        this.maxConcurrencyPerDsKey = maxConcurrencyPerDsKey;
+    }
+
+    /**
+     * 创建每个任务使用一个虚拟线程的executor，需要jdk21及以上版本
+     *
+     * @return executorService
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("virtual threads require jdk21+");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        if (this.executor != null) {
+            return;
+        }
+        if (this.useVirtualThreads) {
+            this.createdExecutorService = newVirtualThreadExecutor();
+        } else {
+            this.createdExecutorService = new ThreadPoolExecutor(this.poolSize, this.poolSize, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(this.queueSize), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AsyncQuery-thread-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        this.executor = this.createdExecutorService;
+    }
+
+    public void destory() {
+        if (this.createdExecutorService != null) {
+            this.createdExecutorService.shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(final Class<?> clazz, final DALContext dalContext, final Supplier<T> action) {
+        final HaloConcurrencyLimiter limiter;
+        final DALSnapshot snapshot;
+        try {
+            query.processDALContext(dalContext);
+            limiter = this.getLimiter(clazz);
+            snapshot = DALStatus.capture();
+        } finally {
+            // 路由信息已经传递给执行线程，与同步调用一样，清除调用线程的路由信息。事务中的路由信息在事务结束时清除
+            if (!DALStatus.hasCurrentDALCon()) {
+                DALStatus.remove();
+            }
+        }
+        if (limiter != null && !limiter.tryAcquire()) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new DALRejectedException("async concurrency limit exceeded " + limiter));
+            return future;
+        }
+        final long begin = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(new Supplier<T>() {
+                @Override
+                public T get() {
+                    DALSnapshot prev = snapshot.apply();
+                    try {
+                        return action.get();
+                    } finally {
+                        if (limiter != null) {
+                            limiter.release(begin, true);
+                        }
+                        prev.apply();
+                    }
+                }
+            }, this.executor);
+        } catch (RejectedExecutionException e) {
+            if (limiter != null) {
+                limiter.release(begin, false);
+            }
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 在调用线程中解析路由，获得数据源的并发限制
+     */
+    private HaloConcurrencyLimiter getLimiter(Class<?> clazz) {
+        if (this.maxConcurrencyPerDsKey <= 0 || HaloDALDataSource.getInstance() == null) {
+            return null;
+        }
+        DALParserUtil.process(clazz);
+        String dsKey = DALStatus.getDsKey();
+        HaloConcurrencyLimiter limiter = this.limiterMap.get(dsKey);
+        if (limiter == null) {
+            limiter = HaloConcurrencyLimiter.create(dsKey, this.maxConcurrencyPerDsKey);
+            HaloConcurrencyLimiter old = this.limiterMap.putIfAbsent(dsKey, limiter);
+            if (old != null) {
+                limiter = old;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return dsKey与并发限制的对应
+     */
+    public Map<String, HaloConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableMap(this.limiterMap);
+    }
+
+    /**
+     * 异步 {@link Query#list(Class, String, Object[])}
+     *
+     * @param clazz     查询结果类型
+     * @param afterFrom from之后的sql，例如 where col=? order by uid desc,
+     * @param values    参数化查询值
+     * @param <T>       泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> list(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.list(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 异步 {@link Query#list(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询结果类型
+     * @param afterFrom  from之后的sql，例如 where col=? order by uid desc,
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> list(final Class<T> clazz, final String afterFrom, final Object[] values,
+                                               DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<List<T>>() {
+            @Override
+            public List<T> get() {
+                return query.list(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#mysqlList(Class, String, int, int, Object[])}
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql
+     * @param begin     开始位置
+     * @param size      查询数量
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> mysqlList(Class<T> clazz, String afterFrom, int begin, int size, Object[]
+            values) {
+        return this.mysqlList(clazz, afterFrom, begin, size, values, null);
+    }
+
+    /**
+     * 异步 {@link Query#mysqlList(Class, String, int, int, Object[], DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql
+     * @param begin      开始位置
+     * @param size       查询数量
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> mysqlList(final Class<T> clazz, final String afterFrom, final int begin,
+                                                    final int size, final Object[] values, DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<List<T>>() {
+            @Override
+            public List<T> get() {
+                return query.mysqlList(clazz, afterFrom, begin, size, values);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#obj(Class, String, Object[])}
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> obj(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.obj(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 异步 {@link Query#obj(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> obj(final Class<T> clazz, final String afterFrom, final Object[] values,
+                                        DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<T>() {
+            @Override
+            public T get() {
+                return query.obj(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#objById(Class, Object)}
+     *
+     * @param clazz   查询对象类型
+     * @param idValue id参数
+     * @param <T>     对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> objById(Class<T> clazz, Object idValue) {
+        return this.objById(clazz, idValue, null);
+    }
+
+    /**
+     * 异步 {@link Query#objById(Class, Object, DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param idValue    id参数
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> objById(final Class<T> clazz, final Object idValue, DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<T>() {
+            @Override
+            public T get() {
+                return query.objById(clazz, idValue);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#count(Class, String, Object[])}
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询数量
+     */
+    public <T> CompletableFuture<Integer> count(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.count(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 异步 {@link Query#count(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询数量
+     */
+    public <T> CompletableFuture<Integer> count(final Class<T> clazz, final String afterFrom, final Object[] values,
+                                                DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return query.count(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#map(Class, String, String, Object[], Object[])}
+     *
+     * @param clazz     操作的类
+     * @param afterFrom from之后的sql，例如 where col=?,但是不包括 inColumn
+     * @param inColumn  进行in sql操作的列
+     * @param values    ?替换符对应的参数，不包括inColumn的参数
+     * @param inValues  inColumn对应的参数
+     * @param <E>       map中key的类型
+     * @param <T>       集合中对象泛型
+     * @return map对象
+     */
+    public <E, T> CompletableFuture<Map<E, T>> map(Class<T> clazz, String afterFrom, String inColumn, Object[] values,
+                                                   Object[] inValues) {
+        return this.map(clazz, afterFrom, inColumn, values, inValues, null);
+    }
+
+    /**
+     * 异步 {@link Query#map(Class, String, String, Object[], Object[], DALContext)}
+     *
+     * @param clazz      操作的类
+     * @param afterFrom  from之后的sql，例如 where col=?,但是不包括 inColumn
+     * @param inColumn   进行in sql操作的列
+     * @param values     ?替换符对应的参数，不包括inColumn的参数
+     * @param inValues   inColumn对应的参数
+     * @param dalContext 分区context
+     * @param <E>        map中key的类型
+     * @param <T>        集合中对象泛型
+     * @return map对象
+     */
+    public <E, T> CompletableFuture<Map<E, T>> map(final Class<T> clazz, final String afterFrom, final String inColumn,
+                                                   final Object[] values, final Object[] inValues, DALContext
+                                                           dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<Map<E, T>>() {
+            @Override
+            public Map<E, T> get() {
+                return query.map(clazz, afterFrom, inColumn, values, inValues);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#insert(Object)}
+     *
+     * @param t   insert的对象
+     * @param <T> 对象泛型
+     * @return 操作完成的future
+     */
+    public <T> CompletableFuture<Void> insert(T t) {
+        return this.insert(t, null);
+    }
+
+    /**
+     * 异步 {@link Query#insert(Object, DALContext)}
+     *
+     * @param t          insert的对象
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 操作完成的future
+     */
+    public <T> CompletableFuture<Void> insert(final T t, DALContext dalContext) {
+        return this.submit(t.getClass(), dalContext, new Supplier<Void>() {
+            @Override
+            public Void get() {
+                query.insert(t);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#update(Object)}
+     *
+     * @param t   update的对象
+     * @param <T> 对象泛型
+     * @return 1:表示更新数据成功 0:更新失败(id不存在)
+     */
+    public <T> CompletableFuture<Integer> update(T t) {
+        return this.update(t, (DALContext) null);
+    }
+
+    /**
+     * 异步 {@link Query#update(Object, DALContext)}
+     *
+     * @param t          update的对象
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 1:表示更新数据成功 0:更新失败(id不存在)
+     */
+    public <T> CompletableFuture<Integer> update(final T t, DALContext dalContext) {
+        return this.submit(t.getClass(), dalContext, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return query.update(t);
+            }
+        });
+    }
+
+    /**
+     * 异步 {@link Query#update(Class, String, Object[])}
+     *
+     * @param clazz        需要更新的类
+     * @param updateSqlSeg sql片段,为update table 之后的sql。例如：set field0=?,field1=? where field3=?
+     * @param values       参数化查询值
+     * @param <T>          对象泛型
+     * @return 更新数量
+     */
+    public <T> CompletableFuture<Integer> update(Class<T> clazz, String updateSqlSeg, Object[] values) {
+        return this.update(clazz, updateSqlSeg, values, null);
+    }
+
+    /**
+     * 异步 {@link Query#update(Class, String, Object[], DALContext)}
+     *
+     * @param clazz        需要更新的类
+     * @param updateSqlSeg sql片段,为update table 之后的sql。例如：set field0=?,field1=? where field3=?
+     * @param values       参数化查询值
+     * @param dalContext   分区context
+     * @param <T>          对象泛型
+     * @return 更新数量
+     */
+    public <T> CompletableFuture<Integer> update(final Class<T> clazz, final String updateSqlSeg, final Object[]
+            values, DALContext dalContext) {
+        return this.submit(clazz, dalContext, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return query.update(clazz, updateSqlSeg, values);
+            }
+        });
+    }
+}
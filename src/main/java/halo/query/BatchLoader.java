@@ -0,0 +1,385 @@
+package halo.query;
+
+import halo.query.dal.*;
+import halo.query.mapping.EntityTableInfo;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * objById 的批量加载，用于解决逐个对象查询造成的N+1问题.<br>
+ * 在 windowMillis 时间内，相同实体、相同dsKey与真实表的 objById 请求合并为一次 id in (?,?) 查询，
+ * 使用实体的RowMapper，查询完成后返回每个请求的结果。同一批次中重复的id得到对象的副本.<br>
+ * 路由信息在调用线程中解析，批量查询在执行线程中运行，不会加入调用线程的事务.<br>
+ * 只支持单个主键的实体
+ */
+public class BatchLoader implements InitializingBean {
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private final ConcurrentHashMap<BatchKey, Batch> batchMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private Query query;
+
+    private Executor executor;
+
+    private ExecutorService createdExecutorService;
+
+    private ScheduledExecutorService timer;
+
+    private int poolSize = Runtime.getRuntime().availableProcessors();
+
+    private int queueSize = 1000;
+
+    /**
+     * 等待合并的时间
+     */
+    private long windowMillis = 2;
+
+    /**
+     * 一次查询的最大id数量，达到时立即查询
+     */
+    private int maxBatchSize = 100;
+
+    public BatchLoader() {
+    }
+
+    public BatchLoader(Query query, Executor executor) {
+        this.query = query;
+        this.executor = executor;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    /**
+     * 设置执行批量查询的executor，不设置时使用有界线程池
+     *
+     * @param executor executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        if (this.maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be > 0");
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchLoader-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (this.executor != null) {
+            return;
+        }
+        this.createdExecutorService = new ThreadPoolExecutor(this.poolSize, this.poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(this.queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchLoader-thread-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor = this.createdExecutorService;
+    }
+
+    public void destory() {
+        if (this.timer != null) {
+            this.timer.shutdown();
+        }
+        if (this.createdExecutorService != null) {
+            this.createdExecutorService.shutdown();
+        }
+    }
+
+    /**
+     * 批量 {@link Query#objById(Class, Object)}
+     *
+     * @param clazz   查询对象类型
+     * @param idValue id
+     * @param <T>     对象泛型
+     * @return 查询结果，null表示没有数据
+     */
+    public <T> CompletableFuture<T> objById(Class<T> clazz, Object idValue) {
+        return this.objById(clazz, idValue, null);
+    }
+
+    /**
+     * 批量 {@link Query#objById(Class, Object, DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param idValue    id
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询结果，null表示没有数据
+     */
+    public <T> CompletableFuture<T> objById(Class<T> clazz, Object idValue, DALContext dalContext) {
+        EntityTableInfo<T> info = Query.getEntityTableInfo(clazz);
+        if (info.getIdFields().size() != 1) {
+            throw new IllegalArgumentException("batch load need single id field [ " + clazz.getName() + " ]");
+        }
+        this.requestCount.incrementAndGet();
+        Request<T> request = new Request<>(idValue);
+        BatchKey key;
+        DALSnapshot snapshot;
+        try {
+            this.query.processDALContext(dalContext);
+            DALInfo dalInfo = DALParserUtil.process(clazz);
+            String tableName = null;
+            if (dalInfo != null) {
+                tableName = dalInfo.getRealTable(clazz);
+            }
+            if (tableName == null) {
+                tableName = info.getTableName();
+            }
+            key = new BatchKey(clazz, JdbcSupport.getDsKey(), tableName, DALStatus.isEnableSlave());
+            snapshot = DALStatus.capture();
+        } finally {
+            // 与同步调用一样，清除调用线程的路由信息。事务中的路由信息在事务结束时清除
+            if (!DALStatus.hasCurrentDALCon()) {
+                DALStatus.remove();
+            }
+        }
+        this.add(key, snapshot, request);
+        return request.future;
+    }
+
+    private void add(final BatchKey key, DALSnapshot snapshot, Request<?> request) {
+        while (true) {
+            Batch batch = this.batchMap.get(key);
+            if (batch == null) {
+                final Batch created = new Batch(key, snapshot);
+                batch = this.batchMap.putIfAbsent(key, created);
+                if (batch == null) {
+                    batch = created;
+                    try {
+                        this.timer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                flush(created);
+                            }
+                        }, this.windowMillis, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // 已经关闭，其他线程加入的请求立即查询
+                        this.flush(created);
+                        request.future.completeExceptionally(e);
+                        return;
+                    }
+                }
+            }
+            boolean full;
+            synchronized (batch) {
+                if (batch.closed) {
+                    // 批次已经开始查询，使用新的批次
+                    continue;
+                }
+                batch.requests.add(request);
+                full = batch.requests.size() >= this.maxBatchSize;
+            }
+            if (full) {
+                this.flush(batch);
+            }
+            return;
+        }
+    }
+
+    private void flush(final Batch batch) {
+        boolean empty;
+        synchronized (batch) {
+            if (batch.closed) {
+                return;
+            }
+            batch.closed = true;
+            empty = batch.requests.isEmpty();
+        }
+        this.batchMap.remove(batch.key, batch);
+        if (empty) {
+            // 关闭后创建的批次可能没有其他线程加入请求
+            return;
+        }
+        try {
+            this.executor.execute(batch.snapshot.wrap(new Runnable() {
+                @Override
+                public void run() {
+                    load(batch);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            for (Request<?> request : batch.requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load(Batch batch) {
+        if (batch.requests.isEmpty()) {
+            return;
+        }
+        this.batchCount.incrementAndGet();
+        EntityTableInfo<Object> info = Query.getEntityTableInfo(batch.key.clazz);
+        Set<Object> idSet = new LinkedHashSet<>();
+        for (Request<?> request : batch.requests) {
+            idSet.add(request.idValue);
+        }
+        Map<Object, Object> map = new HashMap<>();
+        try {
+            List<Object> list = this.query.listInValues((Class<Object>) batch.key.clazz, null,
+                    info.getIdColumnNames().get(0), null, null, idSet.toArray());
+            Field idField = info.getIdFields().get(0);
+            for (Object t : list) {
+                map.put(normalizeId(info.getFieldValue(t, idField)), t);
+            }
+        } catch (Throwable e) {
+            for (Request<?> request : batch.requests) {
+                request.future.completeExceptionally(e);
+            }
+            return;
+        }
+        Set<Object> used = new HashSet<>();
+        for (Request<?> request : batch.requests) {
+            Object id = normalizeId(request.idValue);
+            Object t = map.get(id);
+            if (t != null && !used.add(id)) {
+                // 同一个id的多个请求，每个请求得到不同的对象
+                t = info.copy(t);
+            }
+            ((Request<Object>) request).future.complete(t);
+        }
+    }
+
+    /**
+     * 参数的id与数据库返回的id类型可能不同(例如int与long)，整数统一为Long
+     */
+    private static Object normalizeId(Object id) {
+        if (id instanceof Number && !(id instanceof Double) && !(id instanceof Float) && !(id instanceof
+                BigDecimal)) {
+            return ((Number) id).longValue();
+        }
+        return id;
+    }
+
+    /**
+     * @return objById 请求数量
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return 实际执行的批量查询数量
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    private static final class Request<T> {
+
+        private final Object idValue;
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Request(Object idValue) {
+            this.idValue = idValue;
+        }
+    }
+
+    private static final class Batch {
+
+        private final BatchKey key;
+
+        /**
+         * 批次中第一个请求的路由信息，批次中的请求路由到相同的dsKey与表
+         */
+        private final DALSnapshot snapshot;
+
+        private final List<Request<?>> requests = new ArrayList<>();
+
+        private boolean closed;
+
+        private Batch(BatchKey key, DALSnapshot snapshot) {
+            this.key = key;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final class BatchKey {
+
+        private final Class<?> clazz;
+
+        private final String dsKey;
+
+        private final String tableName;
+
+        private final boolean slave;
+
+        private BatchKey(Class<?> clazz, String dsKey, String tableName, boolean slave) {
+            this.clazz = clazz;
+            this.dsKey = dsKey;
+            this.tableName = tableName;
+            this.slave = slave;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey batchKey = (BatchKey) o;
+            return slave == batchKey.slave && clazz.equals(batchKey.clazz) && tableName.equals(batchKey.tableName)
+                    && (dsKey == null ? batchKey.dsKey == null : dsKey.equals(batchKey.dsKey));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = clazz.hashCode();
+            h = 31 * h + tableName.hashCode();
+            h = 31 * h + (dsKey == null ? 0 : dsKey.hashCode());
+            return 31 * h + (slave ? 1 : 0);
+        }
+    }
+}
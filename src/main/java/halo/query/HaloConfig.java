@@ -2,6 +2,10 @@ package halo.query;
 
 import org.springframework.beans.factory.InitializingBean;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * halo配置
  * Created by akwei on 9/2/16.
@@ -12,6 +16,33 @@ public class HaloConfig implements InitializingBean {
 
     private int logSlowConMillis;
 
+    private int streamFetchSize = Integer.MIN_VALUE;
+
+    /**
+     * 是否在sql中使用 db.table 的形式访问引用数据源(ref)的表
+     */
+    private boolean qualifyTableWithDb;
+
+    /**
+     * 没有设置期限的操作使用的默认超时时间，单位毫秒，0为不限制
+     */
+    private long defaultTimeoutMillis;
+
+    /**
+     * dsKey与默认超时时间的对应
+     */
+    private Map<String, Long> dsKeyTimeoutMillisMap = Collections.emptyMap();
+
+    /**
+     * 实体类名称与默认超时时间的对应，优先于dsKey的设置
+     */
+    private Map<String, Long> entityTimeoutMillisMap = Collections.emptyMap();
+
+    /**
+     * 是否在事务中记录已经读取的实体
+     */
+    private boolean transactionIdentityMap;
+
     public static HaloConfig getInstance() {
         return instance;
     }
@@ -35,6 +66,109 @@ public class HaloConfig implements InitializingBean {
         return false;
     }
 
+    public int getStreamFetchSize() {
+        return streamFetchSize;
+    }
+
+    /**
+     * 设置流式查询的fetchSize，默认为Integer.MIN_VALUE，mysql驱动使用此值进行逐行读取
+     *
+     * @param streamFetchSize fetchSize
+     */
+    public void setStreamFetchSize(int streamFetchSize) {
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    public boolean isQualifyTableWithDb() {
+        return qualifyTableWithDb;
+    }
+
+    /**
+     * 设置是否在sql中使用 db.table 的形式访问引用数据源(ref)的表，默认为false.<br>
+     * 设置为true时，获取连接后不再通过 setCatalog 切换数据库，可以减少一次网络交互.
+     * 此模式要求master与slave引用的db名称相同，直接执行的sql也需要自行使用 db.table 的形式
+     *
+     * @param qualifyTableWithDb true:使用 db.table
+     */
+    public void setQualifyTableWithDb(boolean qualifyTableWithDb) {
+        this.qualifyTableWithDb = qualifyTableWithDb;
+    }
+
+    public boolean isTransactionIdentityMap() {
+        return transactionIdentityMap;
+    }
+
+    /**
+     * 设置是否在事务中记录 objById、objByIds 读取的实体，默认为false.<br>
+     * 开启后同一个事务中重复读取相同的实体不再查询数据库，返回实体的副本。通过Query的update、delete使记录失效，
+     * 事务commit、rollback或者连接关闭时清除。直接执行sql修改的数据不会使记录失效
+     *
+     * @param transactionIdentityMap true:开启
+     */
+    public void setTransactionIdentityMap(boolean transactionIdentityMap) {
+        this.transactionIdentityMap = transactionIdentityMap;
+    }
+
+    /**
+     * 设置没有指定期限的操作使用的默认超时时间，超时后取消正在执行的sql
+     *
+     * @param defaultTimeoutMillis 单位毫秒，0为不限制
+     */
+    public void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    /**
+     * 设置每个数据源的默认超时时间，没有设置的数据源使用 defaultTimeoutMillis
+     *
+     * @param dsKeyTimeoutMillisMap key:dsKey value:单位毫秒
+     */
+    public void setDsKeyTimeoutMillisMap(Map<String, Long> dsKeyTimeoutMillisMap) {
+        this.dsKeyTimeoutMillisMap = new HashMap<>(dsKeyTimeoutMillisMap);
+    }
+
+    /**
+     * 设置每个实体类的默认超时时间，优先于数据源的设置
+     *
+     * @param entityTimeoutMillisMap key:实体类的完整名称 value:单位毫秒
+     */
+    public void setEntityTimeoutMillisMap(Map<String, Long> entityTimeoutMillisMap) {
+        this.entityTimeoutMillisMap = new HashMap<>(entityTimeoutMillisMap);
+    }
+
+    /**
+     * 获得数据源的默认超时时间
+     *
+     * @param dsKey 数据源key
+     * @return 单位毫秒，0为不限制
+     */
+    public long getTimeoutMillis(String dsKey) {
+        if (dsKey != null && !this.dsKeyTimeoutMillisMap.isEmpty()) {
+            Long timeoutMillis = this.dsKeyTimeoutMillisMap.get(dsKey);
+            if (timeoutMillis != null) {
+                return timeoutMillis;
+            }
+        }
+        return this.defaultTimeoutMillis;
+    }
+
+    /**
+     * 获得实体类的默认超时时间
+     *
+     * @param clazz 实体类
+     * @return 单位毫秒，没有设置时返回0
+     */
+    public long getEntityTimeoutMillis(Class<?> clazz) {
+        if (this.entityTimeoutMillisMap.isEmpty()) {
+            return 0;
+        }
+        Long timeoutMillis = this.entityTimeoutMillisMap.get(clazz.getName());
+        if (timeoutMillis == null) {
+            return 0;
+        }
+        return timeoutMillis;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         HaloConfig.instance = this;
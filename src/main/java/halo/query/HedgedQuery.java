@@ -0,0 +1,592 @@
+package halo.query;
+
+import halo.query.dal.*;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 对冲查询，用于降低slave读请求的长尾延迟，只用于幂等的查询(list、obj、count).<br>
+ * 开启slave模式并且master有2个以上可用slave时，先在一个slave上执行查询，如果超过阈值仍然没有返回，在另一个slave上执行相同的查询，
+ * 使用先返回的结果，并取消另一个查询的statement.<br>
+ * 第一个查询在阈值之前失败时，立即在另一个slave上执行.<br>
+ * 阈值为每个查询模板(类型+sql)最近延迟的p95，样本不足时使用 defaultDelayMillis。被取消的查询按照已经执行的时间记录样本，
+ * 避免只记录较快的查询使阈值偏小.<br>
+ * 对冲以及失败后重试的请求数量不会超过总请求数量的 budgetPercent%.<br>
+ * 没有开启slave模式、在事务中或者手动指定了slave时，直接在调用线程中执行查询
+ */
+public class HedgedQuery implements InitializingBean {
+
+    /**
+     * 令牌的精度，1个对冲请求消耗 TOKEN 个令牌
+     */
+    private static final long TOKEN = 1000;
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private final ConcurrentHashMap<String, LatencyTracker> trackerMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong budgetTokens = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    private Query query;
+
+    private Executor executor;
+
+    private ExecutorService createdExecutorService;
+
+    private int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+    private int queueSize = 1000;
+
+    /**
+     * 对冲请求占总请求的最大百分比
+     */
+    private int budgetPercent = 5;
+
+    /**
+     * 最多可以积累的对冲请求数量
+     */
+    private int maxBurst = 10;
+
+    private long defaultDelayMillis = 50;
+
+    private long minDelayMillis = 5;
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    /**
+     * 设置执行查询的executor，不设置时使用有界线程池
+     *
+     * @param executor executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setBudgetPercent(int budgetPercent) {
+        this.budgetPercent = budgetPercent;
+    }
+
+    public void setMaxBurst(int maxBurst) {
+        this.maxBurst = maxBurst;
+    }
+
+    /**
+     * 设置样本不足时的对冲阈值
+     *
+     * @param defaultDelayMillis 单位毫秒
+     */
+    public void setDefaultDelayMillis(long defaultDelayMillis) {
+        this.defaultDelayMillis = defaultDelayMillis;
+    }
+
+    /**
+     * 设置对冲阈值的最小值
+     *
+     * @param minDelayMillis 单位毫秒
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * @return 使用对冲方式执行的查询数量
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return 发出的对冲请求数量
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * @return 对冲请求先返回的数量
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        if (this.executor != null) {
+            return;
+        }
+        this.createdExecutorService = new ThreadPoolExecutor(this.poolSize, this.poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(this.queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HedgedQuery-thread-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor = this.createdExecutorService;
+    }
+
+    public void destory() {
+        if (this.createdExecutorService != null) {
+            this.createdExecutorService.shutdown();
+        }
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#list(Class, String, Object[])}
+     *
+     * @param clazz     查询结果类型
+     * @param afterFrom from之后的sql，例如 where col=? order by uid desc,
+     * @param values    参数化查询值
+     * @param <T>       泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> List<T> list(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.list(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#list(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询结果类型
+     * @param afterFrom  from之后的sql，例如 where col=? order by uid desc,
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> List<T> list(final Class<T> clazz, final String afterFrom, final Object[] values,
+                            DALContext dalContext) {
+        return this.execute(clazz, "list", afterFrom, dalContext, new Supplier<List<T>>() {
+            @Override
+            public List<T> get() {
+                return query.list(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#obj(Class, String, Object[])}
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询对象
+     */
+    public <T> T obj(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.obj(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#obj(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询对象
+     */
+    public <T> T obj(final Class<T> clazz, final String afterFrom, final Object[] values, DALContext dalContext) {
+        return this.execute(clazz, "obj", afterFrom, dalContext, new Supplier<T>() {
+            @Override
+            public T get() {
+                return query.obj(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#count(Class, String, Object[])}
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询数量
+     */
+    public <T> int count(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.count(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 对冲方式执行 {@link Query#count(Class, String, Object[], DALContext)}
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询数量
+     */
+    public <T> int count(final Class<T> clazz, final String afterFrom, final Object[] values,
+                         DALContext dalContext) {
+        return this.execute(clazz, "count", afterFrom, dalContext, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return query.count(clazz, afterFrom, values);
+            }
+        });
+    }
+
+    private <T> T execute(Class<?> clazz, String method, String afterFrom, DALContext dalContext,
+                          Supplier<T> action) {
+        this.query.processDALContext(dalContext);
+        HaloDALDataSource dataSource = HaloDALDataSource.getInstance();
+        if (dataSource == null || !DALStatus.isEnableSlave() || DALStatus.hasCurrentDALCon()
+                || DALStatus.hasMsDsKey()) {
+            return action.get();
+        }
+        DALParserUtil.process(clazz);
+        String master = DALStatus.getDsKey();
+        DALSession session = DALStatus.getSession();
+        if (session != null && session.isRecentlyWritten(master)) {
+            // read-your-writes 会使用master，不需要对冲
+            return action.get();
+        }
+        List<String> slaveDsKeys = this.getSlaveDsKeys(dataSource, master);
+        if (slaveDsKeys == null || slaveDsKeys.size() < 2) {
+            return action.get();
+        }
+        String primary = dataSource.getSlaveSelectStrategy().parse(master, slaveDsKeys);
+        if (primary == null) {
+            return action.get();
+        }
+        DALSnapshot snapshot = DALStatus.capture();
+        DALStatus.remove();
+        this.requestCount.incrementAndGet();
+        this.addBudget();
+        LatencyTracker tracker = this.getTracker(clazz.getName() + ":" + method + ":" + afterFrom);
+        String secondary = this.selectSecondary(dataSource, master, slaveDsKeys, primary);
+        HedgedCall<T> call = new HedgedCall<>(snapshot, action, tracker, secondary);
+        if (!call.attempt(primary, false)) {
+            DALSnapshot prev = snapshot.apply();
+            try {
+                return action.get();
+            } finally {
+                prev.apply();
+            }
+        }
+        try {
+            try {
+                return call.result.get(tracker.getDelayNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                call.hedge();
+                return call.result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DALRunTimeException("interrupted while waiting for hedged query", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DALRunTimeException(cause);
+        } finally {
+            call.cancelOthers();
+        }
+    }
+
+    /**
+     * 获得可以对冲的slave，设置了最大复制延迟时只使用延迟符合要求的slave
+     */
+    private List<String> getSlaveDsKeys(HaloDALDataSource dataSource, String master) {
+        List<String> slaveDsKeys = dataSource.getAvailableSlaveDsKeys(master);
+        long maxStaleness = DALStatus.getMaxStaleness();
+        if (slaveDsKeys == null || maxStaleness < 0) {
+            return slaveDsKeys;
+        }
+        List<String> list = new ArrayList<>(slaveDsKeys.size());
+        for (String slaveDsKey : slaveDsKeys) {
+            HaloDataSourceStats stats = dataSource.getDataSourceStats(slaveDsKey);
+            long lag = stats == null ? -1 : stats.getReplicationLag();
+            if (lag >= 0 && lag <= maxStaleness) {
+                list.add(slaveDsKey);
+            }
+        }
+        return list;
+    }
+
+    private String selectSecondary(HaloDALDataSource dataSource, String master, List<String> slaveDsKeys,
+                                   String primary) {
+        List<String> list = new ArrayList<>(slaveDsKeys);
+        list.remove(primary);
+        if (list.isEmpty()) {
+            return null;
+        }
+        return dataSource.getSlaveSelectStrategy().parse(master, list);
+    }
+
+    private LatencyTracker getTracker(String key) {
+        LatencyTracker tracker = this.trackerMap.get(key);
+        if (tracker == null) {
+            tracker = new LatencyTracker();
+            LatencyTracker old = this.trackerMap.putIfAbsent(key, tracker);
+            if (old != null) {
+                tracker = old;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * 每个请求增加 budgetPercent% 个对冲请求的令牌
+     */
+    private void addBudget() {
+        long max = this.maxBurst * TOKEN;
+        long add = this.budgetPercent * TOKEN / 100;
+        long cur;
+        long next;
+        do {
+            cur = this.budgetTokens.get();
+            if (cur >= max) {
+                return;
+            }
+            next = Math.min(max, cur + add);
+        } while (!this.budgetTokens.compareAndSet(cur, next));
+    }
+
+    private boolean tryAcquireBudget() {
+        long cur;
+        do {
+            cur = this.budgetTokens.get();
+            if (cur < TOKEN) {
+                return false;
+            }
+        } while (!this.budgetTokens.compareAndSet(cur, cur - TOKEN));
+        return true;
+    }
+
+    /**
+     * 一次对冲查询，包含最多两次执行
+     */
+    private class HedgedCall<T> {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private final DALSnapshot snapshot;
+
+        private final Supplier<T> action;
+
+        private final LatencyTracker tracker;
+
+        /**
+         * 对冲使用的slave，没有其他slave时为null
+         */
+        private final String secondary;
+
+        private final AtomicBoolean hedged = new AtomicBoolean();
+
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final List<Attempt<T>> attemptList = new CopyOnWriteArrayList<>();
+
+        HedgedCall(DALSnapshot snapshot, Supplier<T> action, LatencyTracker tracker, String secondary) {
+            this.snapshot = snapshot;
+            this.action = action;
+            this.tracker = tracker;
+            this.secondary = secondary;
+        }
+
+        /**
+         * 在secondary上执行对冲请求，超过阈值或者第一个查询失败时调用，只会执行一次
+         *
+         * @return false:没有其他slave、超过预算或者线程池已满
+         */
+        boolean hedge() {
+            if (this.secondary == null || !this.hedged.compareAndSet(false, true)) {
+                return false;
+            }
+            if (!tryAcquireBudget()) {
+                return false;
+            }
+            if (this.attempt(this.secondary, true)) {
+                hedgeCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 在指定的slave上执行查询
+         *
+         * @return false:线程池已满，没有执行
+         */
+        boolean attempt(final String slaveDsKey, final boolean hedge) {
+            if (this.result.isDone()) {
+                return false;
+            }
+            final Attempt<T> attempt = new Attempt<>();
+            this.attempts.incrementAndGet();
+            try {
+                attempt.future = CompletableFuture.supplyAsync(new Supplier<T>() {
+                    @Override
+                    public T get() {
+                        DALSnapshot prev = snapshot.apply();
+                        try {
+                            DALStatus.setSlaveMode(slaveDsKey);
+                            DALStatus.setCancelHandle(attempt.cancelHandle);
+                            attempt.begin = System.nanoTime();
+                            T t = action.get();
+                            attempt.record(tracker);
+                            return t;
+                        } finally {
+                            prev.apply();
+                        }
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                this.attempts.decrementAndGet();
+                return false;
+            }
+            this.attemptList.add(attempt);
+            attempt.future.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T t, Throwable throwable) {
+                    if (throwable == null) {
+                        if (result.complete(t) && hedge) {
+                            hedgeWinCount.incrementAndGet();
+                        }
+                        return;
+                    }
+                    if (failures.incrementAndGet() < attempts.get()) {
+                        return;
+                    }
+                    // 第一个查询在对冲之前失败时，立即在另一个slave上执行
+                    if (!hedge && hedge()) {
+                        return;
+                    }
+                    if (throwable instanceof CompletionException && throwable.getCause() != null) {
+                        throwable = throwable.getCause();
+                    }
+                    result.completeExceptionally(throwable);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * 取消还没有完成的查询，已经开始执行的查询按照已经执行的时间记录延迟样本
+         */
+        void cancelOthers() {
+            for (Attempt<T> attempt : this.attemptList) {
+                if (attempt.future.isDone()) {
+                    continue;
+                }
+                attempt.record(this.tracker);
+                final DALCancelHandle cancelHandle = attempt.cancelHandle;
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancelHandle.cancel();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    cancelHandle.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一次执行
+     */
+    private static class Attempt<T> {
+
+        private final DALCancelHandle cancelHandle = new DALCancelHandle();
+
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private CompletableFuture<T> future;
+
+        /**
+         * 开始执行的时间，还没有开始执行时为0
+         */
+        private volatile long begin;
+
+        /**
+         * 记录一次延迟样本，完成或者被取消时调用，只记录一次
+         */
+        void record(LatencyTracker tracker) {
+            long _begin = this.begin;
+            if (_begin == 0 || !this.recorded.compareAndSet(false, true)) {
+                return;
+            }
+            tracker.record(System.nanoTime() - _begin);
+        }
+    }
+
+    /**
+     * 查询模板最近的延迟样本，用于计算p95
+     */
+    private class LatencyTracker {
+
+        private static final int SIZE = 256;
+
+        private static final int MIN_SAMPLES = 20;
+
+        private static final int RECOMPUTE_INTERVAL = 16;
+
+        private final long[] samples = new long[SIZE];
+
+        private int count;
+
+        private volatile long p95 = -1;
+
+        synchronized void record(long nanos) {
+            this.samples[this.count % SIZE] = nanos;
+            this.count++;
+            if (this.count >= MIN_SAMPLES && this.count % RECOMPUTE_INTERVAL == 0) {
+                int n = Math.min(this.count, SIZE);
+                long[] copy = Arrays.copyOf(this.samples, n);
+                Arrays.sort(copy);
+                this.p95 = copy[(int) (n * 0.95) - 1];
+            }
+        }
+
+        long getDelayNanos() {
+            long min = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+            long value = this.p95;
+            if (value < 0) {
+                value = TimeUnit.MILLISECONDS.toNanos(defaultDelayMillis);
+            }
+            return Math.max(min, value);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package halo.query;
 
+import halo.query.cache.QueryResultCache;
 import halo.query.dal.DALInfo;
 import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALDataSource;
 import halo.query.mapping.HaloQueryEnum;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -10,11 +12,14 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.*;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.UnaryOperator;
 
 /**
  * 使用spring jdbcTemplate来操作sql
@@ -27,6 +32,19 @@ public class JdbcSupport extends JdbcDaoSupport {
 
     private static final HaloMapRowMapper mapRowMapper = new HaloMapRowMapper();
 
+    /**
+     * 查询结果缓存，为null时不使用
+     */
+    private QueryResultCache resultCache;
+
+    public void setResultCache(QueryResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
     /**
      * 批量更新。参考spring jdbc 调用方式。参数不支持自定义枚举
      *
@@ -38,10 +56,13 @@ public class JdbcSupport extends JdbcDaoSupport {
         if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
             this.log("batch update sql [ " + sql + " ]");
         }
+        String writeDsKey = DALStatus.getSessionDsKey();
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().batchUpdate(sql, bpss);
         } finally {
             this.afterExeSql();
+            DALStatus.markWrite(writeDsKey);
         }
     }
 
@@ -93,6 +114,8 @@ public class JdbcSupport extends JdbcDaoSupport {
         for (Object[] values : valuesList) {
             checkValues(values);
         }
+        String writeDsKey = DALStatus.getSessionDsKey();
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().execute(new PreparedStatementCreator() {
                 public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
@@ -127,6 +150,7 @@ public class JdbcSupport extends JdbcDaoSupport {
             });
         } finally {
             this.afterExeSql();
+            DALStatus.markWrite(writeDsKey);
         }
     }
 
@@ -143,6 +167,8 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("insert sql [ " + sql + " ]");
         }
         checkValues(values);
+        String writeDsKey = DALStatus.getSessionDsKey();
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().execute(new PreparedStatementCreator() {
 
@@ -188,6 +214,7 @@ public class JdbcSupport extends JdbcDaoSupport {
             });
         } finally {
             this.afterExeSql();
+            DALStatus.markWrite(writeDsKey);
         }
     }
 
@@ -205,6 +232,7 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("list sql [ " + sql + " ]");
         }
         checkValues(values);
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().query(sql, values, rowMapper);
         } finally {
@@ -224,6 +252,7 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("num sql [ " + sql + " ]");
         }
         checkValues(values);
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().queryForObject(sql, values, Number.class);
         } finally {
@@ -231,6 +260,95 @@ public class JdbcSupport extends JdbcDaoSupport {
         }
     }
 
+    /**
+     * 查询集合，设置了 {@link QueryResultCache} 时先查询缓存.
+     * 缓存中的对象不会返回给调用者，每次返回的都是复制的对象，调用者可以修改
+     *
+     * @param sql       sql
+     * @param values    参数
+     * @param rowMapper spring {@link RowMapper} 子类
+     * @param tableKeys 查询涉及的表，由 {@link QueryResultCache#tableKey(String, String)} 获得，为null时不使用缓存
+     * @param copier    复制结果中的对象，为null时不使用缓存
+     * @param <T>       对象泛型
+     * @return 对象集合
+     */
+    public <T> List<T> list(final String sql, final Object[] values, final RowMapper<T> rowMapper, String[] tableKeys,
+                            UnaryOperator<T> copier) {
+        if (copier == null || !this.useResultCache(tableKeys)) {
+            return this.list(sql, values, rowMapper);
+        }
+        checkValues(values);
+        List<T> list = this.getFromResultCache(sql, values, rowMapper.getClass(), tableKeys, new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return list(sql, values, rowMapper);
+            }
+        });
+        List<T> copy = new ArrayList<T>(list.size());
+        for (T t : list) {
+            copy.add(copier.apply(t));
+        }
+        return copy;
+    }
+
+    /**
+     * 查询并返回数字类型，设置了 {@link QueryResultCache} 时先查询缓存
+     *
+     * @param sql       sql
+     * @param values    参数
+     * @param tableKeys 查询涉及的表，由 {@link QueryResultCache#tableKey(String, String)} 获得，为null时不使用缓存
+     * @return 如果没有符合条件的数据，返回0
+     */
+    public Number num(final String sql, final Object[] values, String[] tableKeys) {
+        if (!this.useResultCache(tableKeys)) {
+            return this.num(sql, values);
+        }
+        checkValues(values);
+        return this.getFromResultCache(sql, values, Number.class, tableKeys, new Callable<Number>() {
+            @Override
+            public Number call() throws Exception {
+                return num(sql, values);
+            }
+        });
+    }
+
+    /**
+     * 事务中的查询需要看到本事务的修改，slave存在复制延迟，都不使用缓存
+     */
+    private boolean useResultCache(String[] tableKeys) {
+        return this.resultCache != null && tableKeys != null && !DALStatus.hasCurrentDALCon()
+                && !DALStatus.isEnableSlave();
+    }
+
+    private <V> V getFromResultCache(String sql, Object[] values, Object type, String[] tableKeys, Callable<V>
+            loader) {
+        final boolean[] loaded = new boolean[1];
+        final Callable<V> _loader = loader;
+        final Thread caller = Thread.currentThread();
+        try {
+            return this.resultCache.get(getDsKey(), sql, values, type, tableKeys, new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    // 后台刷新时在其他线程执行
+                    if (Thread.currentThread() == caller) {
+                        loaded[0] = true;
+                    }
+                    return _loader.call();
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!loaded[0]) {
+                // 没有执行sql，清除本次操作的路由信息
+                this.afterExeSql();
+                DALStatus.processDALConClose();
+            }
+        }
+    }
+
     /**
      * 更新操作,返回被更新的数据数量
      *
@@ -243,6 +361,8 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("update sql [ " + sql + " ]");
         }
         checkValues(values);
+        String writeDsKey = DALStatus.getSessionDsKey();
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().update(sql, new PreparedStatementSetter() {
                 public void setValues(PreparedStatement ps)
@@ -252,6 +372,7 @@ public class JdbcSupport extends JdbcDaoSupport {
             });
         } finally {
             this.afterExeSql();
+            DALStatus.markWrite(writeDsKey);
         }
     }
 
@@ -285,6 +406,7 @@ public class JdbcSupport extends JdbcDaoSupport {
         if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
             this.log("getMapList sql [ " + sql + " ]");
         }
+        this.beginStatement();
         try {
             return this.getJdbcTemplate().query(sql, args, mapRowMapper);
         } finally {
@@ -331,20 +453,51 @@ public class JdbcSupport extends JdbcDaoSupport {
         log.info(v);
     }
 
+    /**
+     * @return 当前操作路由后的dsKey，没有使用 {@link HaloDALDataSource} 时返回null
+     */
+    static String getDsKey() {
+        if (HaloDALDataSource.getInstance() == null) {
+            return null;
+        }
+        return DALStatus.getDsKey();
+    }
+
+    /**
+     * 不在spring事务中时，单条sql直接使用路由后的实际连接，不创建 {@link halo.query.dal.DALConnection}
+     */
+    private void beginStatement() {
+        if (this.getDataSource() instanceof HaloDALDataSource
+                && !TransactionSynchronizationManager.isSynchronizationActive()) {
+            DALStatus.beginDirectStatement();
+        }
+    }
+
     private void afterExeSql() {
+        DALStatus.afterStatement();
         DALInfo dalInfo = DALStatus.getDalInfo();
         if (dalInfo != null && dalInfo.isSpecify()) {
             dalInfo.setSpecify(false);
         }
+        DALStatus.afterDirectStatement();
     }
 
-    private void setPsValues(PreparedStatement ps, Object[] values) throws SQLException {
+    /**
+     * 设置PreparedStatement的参数，null使用varchar类型，{@link HaloQueryEnum} 使用其value
+     *
+     * @param ps     PreparedStatement
+     * @param values 参数
+     * @throws SQLException 设置参数时的异常
+     */
+    static void setPsValues(PreparedStatement ps, Object[] values) throws SQLException {
         if (values != null) {
             int k = 1;
             for (Object value : values) {
                 if (value == null) {
                     // 貌似varchar通用mysql db2
                     ps.setNull(k++, Types.VARCHAR);
+                } else if (value instanceof HaloQueryEnum) {
+                    ps.setObject(k++, ((HaloQueryEnum) value).getValue());
                 } else {
                     ps.setObject(k++, value);
                 }
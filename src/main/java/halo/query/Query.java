@@ -1,5 +1,8 @@
 package halo.query;
 
+import halo.query.cache.EntityCache;
+import halo.query.cache.EntityCacheKey;
+import halo.query.cache.QueryResultCache;
 import halo.query.dal.*;
 import halo.query.mapping.EntityTableInfo;
 import halo.query.mapping.EntityTableInfoFactory;
@@ -14,6 +17,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.UnaryOperator;
 
 @SuppressWarnings("unchecked")
 public class Query {
@@ -22,6 +27,11 @@ public class Query {
 
     protected JdbcSupport jdbcSupport;
 
+    /**
+     * 合并并发的相同查询，为null时不合并
+     */
+    private SingleFlight singleFlight;
+
     public Query() {
         instance = this;
     }
@@ -43,7 +53,8 @@ public class Query {
      * @return sql统计数字
      */
     public int count(Class<?>[] clazzes, String afterFrom, Object[] values) {
-        return jdbcSupport.num(SqlBuilder.buildCountSQL(clazzes, afterFrom), values).intValue();
+        String sql = SqlBuilder.buildCountSQL(clazzes, afterFrom);
+        return this.queryNum(sql, values, this.resultTableKeys(clazzes)).intValue();
     }
 
     /**
@@ -68,7 +79,8 @@ public class Query {
      * @return 查询数量
      */
     public <T> int count(Class<T> clazz, String afterFrom, Object[] values) {
-        return jdbcSupport.num(SqlBuilder.buildCountSQL(clazz, afterFrom), values).intValue();
+        String sql = SqlBuilder.buildCountSQL(clazz, afterFrom);
+        return this.queryNum(sql, values, this.resultTableKeys(clazz)).intValue();
     }
 
     /**
@@ -146,7 +158,8 @@ public class Query {
      * @return 查询结果 T 类型的集合
      */
     public <T> List<T> list(Class<T> clazz, String afterFrom, Object[] values, RowMapper<T> rowMapper) {
-        return jdbcSupport.list(SqlBuilder.buildListSQL(clazz, afterFrom), values, rowMapper);
+        String sql = SqlBuilder.buildListSQL(clazz, afterFrom);
+        return this.queryList(clazz, sql, values, rowMapper, this.resultTableKeys(clazz));
     }
 
     /**
@@ -320,7 +333,13 @@ public class Query {
      * @return 删除的记录数
      */
     public <T> int delete(Class<T> clazz, String afterFrom, Object[] values) {
-        return this.jdbcSupport.update(SqlBuilder.buildDeleteSQL(clazz, afterFrom), values);
+        String tableKey = this.resultTableKeyForWrite(clazz);
+        try {
+            return this.jdbcSupport.update(SqlBuilder.buildDeleteSQL(clazz, afterFrom), values);
+        } finally {
+            invalidateCacheAll(clazz);
+            this.invalidateResults(tableKey);
+        }
     }
 
     /**
@@ -333,7 +352,13 @@ public class Query {
      * @return delete result
      */
     public <T> int[] batchDelete(Class<T> clazz, String afterFrom, List<Object[]> valuesList) {
-        return this.jdbcSupport.batchUpdate(SqlBuilder.buildDeleteSQL(clazz, afterFrom), valuesList);
+        String tableKey = this.resultTableKeyForWrite(clazz);
+        try {
+            return this.jdbcSupport.batchUpdate(SqlBuilder.buildDeleteSQL(clazz, afterFrom), valuesList);
+        } finally {
+            invalidateCacheAll(clazz);
+            this.invalidateResults(tableKey);
+        }
     }
 
     /**
@@ -370,7 +395,14 @@ public class Query {
      * @return sql操作失败的异常
      */
     public <T> int deleteById(Class<T> clazz, Object[] idValues) {
-        return this.jdbcSupport.update(SqlBuilder.buildDeleteSQL(clazz), idValues);
+        EntityCacheKey key = createCacheKeyForWrite(clazz, idValues);
+        String tableKey = this.resultTableKeyForWrite(clazz);
+        try {
+            return this.jdbcSupport.update(SqlBuilder.buildDeleteSQL(clazz), idValues);
+        } finally {
+            invalidateCache(clazz, key);
+            this.invalidateResults(tableKey);
+        }
     }
 
 
@@ -402,7 +434,14 @@ public class Query {
             DALStatus.processDALConClose();
             throw new RuntimeException(e);
         }
-        List<Number> ids = this.jdbcSupport.batchInsert(sql, valuesList, true);
+        String tableKey = this.resultTableKeyForWrite(info.getClazz());
+        List<Number> ids;
+        try {
+            ids = this.jdbcSupport.batchInsert(sql, valuesList, true);
+        } finally {
+            invalidateCacheAll(info.getClazz());
+            this.invalidateResults(tableKey);
+        }
         if (info.getIdFields().isEmpty()) {
             return list;
         }
@@ -438,7 +477,14 @@ public class Query {
      */
     public <T> void insert(T t) {
         SQLMapper<T> mapper = getSqlMapper(t.getClass());
-        this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true), mapper.getParamsForInsert(t, true), false);
+        EntityCacheKey key = createCacheKeyForWrite(t.getClass(), mapper.getIdParams(t));
+        String tableKey = this.resultTableKeyForWrite(t.getClass());
+        try {
+            this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true), mapper.getParamsForInsert(t, true), false);
+        } finally {
+            invalidateCacheForInsert(t.getClass(), key);
+            this.invalidateResults(tableKey);
+        }
     }
 
     /**
@@ -470,6 +516,19 @@ public class Query {
      * @return 返回自增id，如果没有自增id，返回0
      */
     public <T> Number insertForNumber(T t, InsertFlag insertFlag) {
+        SQLMapper<T> mapper = getSqlMapper(t.getClass());
+        // replace into 会覆盖已经存在的数据
+        EntityCacheKey key = createCacheKeyForWrite(t.getClass(), mapper.getIdParams(t));
+        String tableKey = this.resultTableKeyForWrite(t.getClass());
+        try {
+            return this._insertForNumber(t, insertFlag);
+        } finally {
+            invalidateCacheForInsert(t.getClass(), key);
+            this.invalidateResults(tableKey);
+        }
+    }
+
+    private <T> Number _insertForNumber(T t, InsertFlag insertFlag) {
         EntityTableInfo<T> info = getEntityTableInfo(t.getClass());
         SQLMapper<T> mapper = getSqlMapper(t.getClass());
         if (info.getIdFields().size() > 1) {
@@ -566,7 +625,8 @@ public class Query {
      * @return 查询结果 T 类型的集合
      */
     public <T> List<T> mysqlList(Class<?>[] clazzes, String afterFrom, int begin, int size, Object[] values, RowMapper<T> rowMapper) {
-        return jdbcSupport.list(SqlBuilder.buildMysqlListSQL(clazzes, afterFrom, begin, size), values, rowMapper);
+        String sql = SqlBuilder.buildMysqlListSQL(clazzes, afterFrom, begin, size);
+        return this.queryList(null, sql, values, rowMapper, this.resultTableKeys(clazzes));
     }
 
     /**
@@ -634,7 +694,8 @@ public class Query {
      * @return 查询结果 T 类型的集合
      */
     public <T> List<T> mysqlList(Class<T> clazz, String afterFrom, int begin, int size, Object[] values, RowMapper<T> rowMapper) {
-        return jdbcSupport.list(SqlBuilder.buildMysqlListSQL(clazz, afterFrom, begin, size), values, rowMapper);
+        String sql = SqlBuilder.buildMysqlListSQL(clazz, afterFrom, begin, size);
+        return this.queryList(clazz, sql, values, rowMapper, this.resultTableKeys(clazz));
     }
 
     /**
@@ -655,6 +716,76 @@ public class Query {
         return this.mysqlList(clazz, afterFrom, begin, size, buildArgs(values), rowMapper);
     }
 
+    /**
+     * sql select 流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz     查询结果类型
+     * @param afterFrom from之后的sql，例如 where col=? order by uid desc,
+     * @param values    参数化查询值
+     * @param <T>       泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> listPublisher(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.listPublisher(clazz, afterFrom, values, getRowMapper(clazz));
+    }
+
+    /**
+     * sql select 流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz     查询结果类型
+     * @param afterFrom from之后的sql，例如 where col=? order by uid desc,
+     * @param values    参数化查询值
+     * @param rowMapper spring {@link RowMapper} 对象
+     * @param <T>       泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> listPublisher(Class<T> clazz, String afterFrom, Object[] values, RowMapper<T> rowMapper) {
+        return this.createPublisher(SqlBuilder.buildListSQL(clazz, afterFrom), values, rowMapper);
+    }
+
+    /**
+     * mysql的分页流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql,例如select * from table where uid=?
+     *                  order name desc, afterFrom为where uid=? order name
+     * @param begin     开始位置
+     * @param size      查询数量，&lt;=0时不分页
+     * @param values    参数化查询值
+     * @param <T>       对象泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> mysqlListPublisher(Class<T> clazz, String afterFrom, int begin, int size, Object[] values) {
+        return this.mysqlListPublisher(clazz, afterFrom, begin, size, values, getRowMapper(clazz));
+    }
+
+    /**
+     * mysql的分页流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz     查询对象类型
+     * @param afterFrom from table 之后的sql,例如select * from table where uid=?
+     *                  order name desc, afterFrom为where uid=? order name
+     * @param begin     开始位置
+     * @param size      查询数量，&lt;=0时不分页
+     * @param values    参数化查询值
+     * @param rowMapper spring RowMapper
+     * @param <T>       对象泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> mysqlListPublisher(Class<T> clazz, String afterFrom, int begin, int size, Object[] values, RowMapper<T> rowMapper) {
+        return this.createPublisher(SqlBuilder.buildMysqlListSQL(clazz, afterFrom, begin, size), values, rowMapper);
+    }
+
+    private <T> QueryPublisher<T> createPublisher(String sql, Object[] values, RowMapper<T> rowMapper) {
+        DALSnapshot snapshot = DALStatus.capture();
+        // sql在订阅时执行，清除当前线程的路由信息
+        if (!DALStatus.hasCurrentDALCon()) {
+            DALStatus.remove();
+        }
+        return new QueryPublisher<T>(this.jdbcSupport.getDataSource(), sql, values, rowMapper, snapshot,
+                HaloConfig.getInstance().getStreamFetchSize());
+    }
+
     /**
      * select sql 返回对象
      *
@@ -695,7 +826,7 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T obj(Class<T> clazz, String afterFrom, Object[] values, RowMapper<T> rowMapper) {
-        List<T> list = jdbcSupport.list(SqlBuilder.buildObjSQL(clazz, afterFrom), values, rowMapper);
+        List<T> list = this.queryList(clazz, SqlBuilder.buildObjSQL(clazz, afterFrom), values, rowMapper, null);
         if (list.isEmpty()) {
             return null;
         }
@@ -806,7 +937,199 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objByIds(Class<T> clazz, Object[] idValues, boolean forUpdate, RowMapper<T> rowMapper) {
-        return this.obj(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, forUpdate), idValues, rowMapper);
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        if (dalConnection != null) {
+            // 事务中的查询需要看到本事务的修改，不使用实体缓存
+            return this.objByIdsInTransaction(info, dalConnection, idValues, forUpdate, rowMapper);
+        }
+        EntityCache<T> cache = info.getEntityCache();
+        if (cache == null || forUpdate || rowMapper != info.getRowMapper()) {
+            return this.obj(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, forUpdate), idValues, rowMapper);
+        }
+        EntityCacheKey key = createCacheKey(info, idValues);
+        T t = cache.get(key);
+        if (t != null || cache.isMissing(key)) {
+            DALStatus.processDALConClose();
+            return t;
+        }
+        // slave可能存在复制延迟，查询结果不放入缓存
+        boolean fill = !DALStatus.isEnableSlave();
+        long generation = cache.getGeneration();
+        t = this.obj(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, false), idValues, rowMapper);
+        if (fill) {
+            if (t != null) {
+                cache.put(key, t, generation);
+            } else {
+                cache.putMiss(key, generation);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * 事务中根据id查询，开启 {@link HaloConfig#isTransactionIdentityMap()} 时相同的实体只查询一次，返回副本.
+     * for update 的查询总是访问数据库，结果会被记录
+     */
+    private <T> T objByIdsInTransaction(EntityTableInfo<T> info, DALConnection dalConnection, Object[] idValues,
+                                        boolean forUpdate, RowMapper<T> rowMapper) {
+        Class<T> clazz = info.getClazz();
+        if (!HaloConfig.getInstance().isTransactionIdentityMap() || !dalConnection.isInTransaction()
+                || rowMapper != info.getRowMapper() || DALStatus.isEnableSlave()) {
+            return this.obj(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, forUpdate), idValues, rowMapper);
+        }
+        EntityCacheKey key = createCacheKey(info, idValues);
+        if (!forUpdate) {
+            T t = (T) dalConnection.getIdentity(clazz, key);
+            if (t != null) {
+                DALStatus.processDALConClose();
+                return info.copy(t);
+            }
+        }
+        T t = this.obj(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, forUpdate), idValues, rowMapper);
+        if (t != null) {
+            dalConnection.putIdentity(clazz, key, info.copy(t));
+        }
+        return t;
+    }
+
+    /**
+     * 获得实体缓存的key，会解析当前操作的路由
+     */
+    private static <T> EntityCacheKey createCacheKey(EntityTableInfo<T> info, Object[] idValues) {
+        DALInfo dalInfo = DALParserUtil.process(info.getClazz());
+        String tableName = null;
+        if (dalInfo != null) {
+            tableName = dalInfo.getRealTable(info.getClazz());
+        }
+        if (tableName == null) {
+            tableName = info.getTableName();
+        }
+        String dsKey = null;
+        if (HaloDALDataSource.getInstance() != null) {
+            dsKey = DALStatus.getDsKey();
+        }
+        return new EntityCacheKey(dsKey, tableName, idValues);
+    }
+
+    /**
+     * 写操作之前获得需要失效的key，写操作之后路由信息会被清除
+     *
+     * @return 没有开启缓存并且事务中没有记录此类型的实体，或者id为空时返回null
+     */
+    private static EntityCacheKey createCacheKeyForWrite(Class<?> clazz, Object[] idValues) {
+        EntityTableInfo<?> info = getEntityTableInfo(clazz);
+        if (idValues == null) {
+            return null;
+        }
+        if (info.getEntityCache() == null) {
+            DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+            if (dalConnection == null || !dalConnection.hasIdentities(clazz)) {
+                return null;
+            }
+        }
+        for (Object idValue : idValues) {
+            if (idValue == null) {
+                return null;
+            }
+        }
+        return createCacheKey(info, idValues);
+    }
+
+    private static void invalidateCache(Class<?> clazz, EntityCacheKey key) {
+        if (key == null) {
+            return;
+        }
+        EntityCache<?> cache = getEntityTableInfo(clazz).getEntityCache();
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        if (dalConnection != null) {
+            dalConnection.removeIdentity(clazz, key);
+        }
+    }
+
+    /**
+     * insert之前不知道数据库生成的id，使所有记录的不存在的数据失效
+     */
+    private static void invalidateCacheForInsert(Class<?> clazz, EntityCacheKey key) {
+        if (key != null) {
+            invalidateCache(clazz, key);
+            return;
+        }
+        EntityCache<?> cache = getEntityTableInfo(clazz).getEntityCache();
+        if (cache != null) {
+            cache.invalidateMisses();
+        }
+    }
+
+    private static void invalidateCacheAll(Class<?> clazz) {
+        EntityCache<?> cache = getEntityTableInfo(clazz).getEntityCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        if (dalConnection != null) {
+            dalConnection.removeIdentities(clazz);
+        }
+    }
+
+    /**
+     * 获得查询涉及的表在结果缓存中的标识，在sql创建之后调用，使用已经解析的路由
+     *
+     * @return 没有设置结果缓存或者有表不需要缓存时返回null
+     */
+    private String[] resultTableKeys(Class<?>... clazzes) {
+        QueryResultCache resultCache = this.jdbcSupport.getResultCache();
+        if (resultCache == null) {
+            return null;
+        }
+        String dsKey = JdbcSupport.getDsKey();
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        String[] tableKeys = new String[clazzes.length];
+        for (int i = 0; i < clazzes.length; i++) {
+            EntityTableInfo<?> info = getEntityTableInfo(clazzes[i]);
+            if (!resultCache.isCacheable(info.getTableName())) {
+                return null;
+            }
+            String tableName = null;
+            if (dalInfo != null) {
+                tableName = dalInfo.getRealTable(clazzes[i]);
+            }
+            if (tableName == null) {
+                tableName = info.getTableName();
+            }
+            tableKeys[i] = QueryResultCache.tableKey(dsKey, tableName);
+        }
+        return tableKeys;
+    }
+
+    /**
+     * 写操作之前获得需要失效的表，写操作之后路由信息会被清除
+     *
+     * @return 没有设置结果缓存时返回null
+     */
+    private String resultTableKeyForWrite(Class<?> clazz) {
+        if (this.jdbcSupport.getResultCache() == null) {
+            return null;
+        }
+        EntityTableInfo<?> info = getEntityTableInfo(clazz);
+        DALInfo dalInfo = DALParserUtil.process(clazz);
+        String tableName = null;
+        if (dalInfo != null) {
+            tableName = dalInfo.getRealTable(clazz);
+        }
+        if (tableName == null) {
+            tableName = info.getTableName();
+        }
+        return QueryResultCache.tableKey(JdbcSupport.getDsKey(), tableName);
+    }
+
+    private void invalidateResults(String tableKey) {
+        if (tableKey != null) {
+            this.jdbcSupport.getResultCache().invalidate(tableKey);
+        }
     }
 
     /**
@@ -819,7 +1142,13 @@ public class Query {
      * @return update result
      */
     public <T> int[] batchUpdate(Class<T> clazz, String updateSqlSeg, List<Object[]> valuesList) {
-        return this.jdbcSupport.batchUpdate(SqlBuilder.buildUpdateSQL(clazz, updateSqlSeg), valuesList);
+        String tableKey = this.resultTableKeyForWrite(clazz);
+        try {
+            return this.jdbcSupport.batchUpdate(SqlBuilder.buildUpdateSQL(clazz, updateSqlSeg), valuesList);
+        } finally {
+            invalidateCacheAll(clazz);
+            this.invalidateResults(tableKey);
+        }
     }
 
     /**
@@ -833,7 +1162,13 @@ public class Query {
      * @return 更新数量
      */
     public <T> int update(Class<T> clazz, String updateSqlSeg, Object[] values) {
-        return this.jdbcSupport.update(SqlBuilder.buildUpdateSQL(clazz, updateSqlSeg), values);
+        String tableKey = this.resultTableKeyForWrite(clazz);
+        try {
+            return this.jdbcSupport.update(SqlBuilder.buildUpdateSQL(clazz, updateSqlSeg), values);
+        } finally {
+            invalidateCacheAll(clazz);
+            this.invalidateResults(tableKey);
+        }
     }
 
     /**
@@ -902,8 +1237,11 @@ public class Query {
             return 0;
         }
         boolean rollback = false;
+        EntityCacheKey key = createCacheKeyForWrite(t.getClass(), getSqlMapper(t.getClass()).getIdParams(t));
+        String tableKey = this.resultTableKeyForWrite(t.getClass());
         try {
-            int result = this.update2(t.getClass(), updateSnapshotInfo.getSqlSeg(), updateSnapshotInfo.getValues());
+            int result = this.jdbcSupport.update(SqlBuilder.buildUpdateSQL(t.getClass(), updateSnapshotInfo.getSqlSeg()),
+                    buildArgs(updateSnapshotInfo.getValues()));
             if (result == 1) {
                 return result;
             }
@@ -916,6 +1254,8 @@ public class Query {
             rollback = true;
             throw e;
         } finally {
+            invalidateCache(t.getClass(), key);
+            this.invalidateResults(tableKey);
             if (rollback) {
                 EntityTableInfo<T> entityTableInfo = getEntityTableInfo(t.getClass());
                 if (cas) {
@@ -937,6 +1277,92 @@ public class Query {
         return jdbcSupport;
     }
 
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * 查询集合，开启 {@link SingleFlight} 时合并并发的相同查询.
+     * 只合并、缓存使用实体默认RowMapper的查询，等待的线程以及缓存命中时得到实体的副本
+     *
+     * @param clazz 结果的实体类型，为null时不合并也不缓存
+     */
+    private <T> List<T> queryList(Class<T> clazz, final String sql, final Object[] values, final RowMapper<T>
+            rowMapper, final String[] tableKeys) {
+        if (clazz == null) {
+            return this.jdbcSupport.list(sql, values, rowMapper, tableKeys, null);
+        }
+        final EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        if (rowMapper != info.getRowMapper()) {
+            return this.jdbcSupport.list(sql, values, rowMapper, tableKeys, null);
+        }
+        final UnaryOperator<T> copier = new UnaryOperator<T>() {
+            @Override
+            public T apply(T t) {
+                return info.copy(t);
+            }
+        };
+        if (this.singleFlight == null || DALStatus.hasCurrentDALCon()) {
+            return this.jdbcSupport.list(sql, values, rowMapper, tableKeys, copier);
+        }
+        return this.coalesce(sql, values, rowMapper.getClass(), new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return jdbcSupport.list(sql, values, rowMapper, tableKeys, copier);
+            }
+        }, new UnaryOperator<List<T>>() {
+            @Override
+            public List<T> apply(List<T> list) {
+                List<T> copy = new ArrayList<T>(list.size());
+                for (T t : list) {
+                    copy.add(copier.apply(t));
+                }
+                return copy;
+            }
+        });
+    }
+
+    /**
+     * 查询数字，开启 {@link SingleFlight} 时合并并发的相同查询
+     */
+    private Number queryNum(final String sql, final Object[] values, final String[] tableKeys) {
+        if (this.singleFlight == null || DALStatus.hasCurrentDALCon()) {
+            return this.jdbcSupport.num(sql, values, tableKeys);
+        }
+        return this.coalesce(sql, values, Number.class, new Callable<Number>() {
+            @Override
+            public Number call() throws Exception {
+                return jdbcSupport.num(sql, values, tableKeys);
+            }
+        }, null);
+    }
+
+    private <V> V coalesce(String sql, Object[] values, Object type, final Callable<V> loader, UnaryOperator<V>
+            copier) {
+        final boolean[] executed = new boolean[1];
+        // 读主库的查询不能得到slave的结果，slave存在复制延迟
+        boolean slave = DALStatus.isEnableSlave();
+        try {
+            return this.singleFlight.execute(JdbcSupport.getDsKey(), slave, sql, values, type, new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    executed[0] = true;
+                    return loader.call();
+                }
+            }, copier, DALStatus.getDeadline());
+        } finally {
+            if (!executed[0]) {
+                // 使用其他线程的结果，没有执行sql，清除本次操作的路由信息
+                DALStatus.afterStatement();
+                DALStatus.processDALConClose();
+            }
+        }
+    }
+
     public static <T> RowMapper<T> getRowMapper(Class<T> clazz) {
         return (RowMapper<T>) getEntityTableInfo(clazz).getRowMapper();
     }
@@ -964,7 +1390,7 @@ public class Query {
      *
      * @param dalContext 分区context
      */
-    private void processDALContext(DALContext dalContext) {
+    void processDALContext(DALContext dalContext) {
         if (dalContext != null) {
             if (dalContext.isEnableSlave()) {
                 DALStatus.setSlaveMode();
@@ -978,6 +1404,12 @@ public class Query {
             if (dalContext.getDalInfo() != null) {
                 DALStatus.setDalInfo(dalContext.getDalInfo());
             }
+            if (dalContext.getMaxStaleness() >= 0) {
+                DALStatus.setMaxStaleness(dalContext.getMaxStaleness());
+            }
+            if (dalContext.getDeadline() > 0) {
+                DALStatus.setDeadline(dalContext.getDeadline());
+            }
         }
     }
 
@@ -1487,6 +1919,39 @@ public class Query {
         return this.mysqlList2(clazz, afterFrom, begin, size, values, rowMapper);
     }
 
+    /**
+     * sql select 流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz      查询结果类型
+     * @param afterFrom  from之后的sql，例如 where col=? order by uid desc,
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> listPublisher(Class<T> clazz, String afterFrom, Object[] values, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.listPublisher(clazz, afterFrom, values);
+    }
+
+    /**
+     * mysql的分页流式查询，只有在订阅者请求数据时才从数据库读取数据
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql,例如select * from table where uid=?
+     *                   order name desc, afterFrom为where uid=? order name
+     * @param begin      开始位置
+     * @param size       查询数量，&lt;=0时不分页
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 查询结果的发布者
+     */
+    public <T> QueryPublisher<T> mysqlListPublisher(Class<T> clazz, String afterFrom, int begin, int size, Object[] values, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.mysqlListPublisher(clazz, afterFrom, begin, size, values);
+    }
+
     /**
      * select sql 返回对象
      *
@@ -0,0 +1,238 @@
+package halo.query;
+
+import halo.query.dal.DALSnapshot;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流式查询结果的发布者，只在订阅者请求数据时从 {@link ResultSet} 中读取数据，内存占用与请求数量相关，与结果集大小无关.<br>
+ * 每次订阅都会使用一个独立的数据库连接执行查询，不会加入调用线程的事务。数据读取完成、出现异常或取消订阅时关闭statement并释放连接.<br>
+ * 路由信息在创建时获取，连接在第一次请求数据时获取.<br>
+ * 执行sql与读取结果集的阻塞操作在调用 {@link Subscription#request(long)} 的线程中进行，订阅者需要在合适的线程中请求数据，
+ * 例如不要在事件循环线程中直接请求.<br>
+ * 订阅者的 onNext 抛出异常时视为取消订阅，按照 Reactive Streams 规范2.13不再通知订阅者，只记录日志.<br>
+ * jdk9+ 可以通过 org.reactivestreams.FlowAdapters 转换为 java.util.concurrent.Flow.Publisher
+ *
+ * @param <T> 数据泛型
+ */
+public class QueryPublisher<T> implements Publisher<T> {
+
+    private static final Log log = LogFactory.getLog(QueryPublisher.class);
+
+    private final DataSource dataSource;
+
+    private final String sql;
+
+    private final Object[] values;
+
+    private final RowMapper<T> rowMapper;
+
+    private final DALSnapshot snapshot;
+
+    private final int fetchSize;
+
+    QueryPublisher(DataSource dataSource, String sql, Object[] values, RowMapper<T> rowMapper, DALSnapshot snapshot,
+                   int fetchSize) {
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.values = values;
+        this.rowMapper = rowMapper;
+        this.snapshot = snapshot;
+        this.fetchSize = fetchSize;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber must be not null");
+        }
+        ResultSetSubscription subscription = new ResultSetSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class ResultSetSubscription implements Subscription {
+
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * 保证同一时间只有一个线程读取结果集
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable badRequest;
+
+        private boolean done;
+
+        private Connection con;
+
+        private PreparedStatement ps;
+
+        private ResultSet rs;
+
+        private int rowNum;
+
+        ResultSetSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.badRequest = new IllegalArgumentException("request must be > 0 but was " + n);
+            } else {
+                long r;
+                long u;
+                do {
+                    r = this.requested.get();
+                    u = r + n;
+                    if (u < 0) {
+                        u = Long.MAX_VALUE;
+                    }
+                } while (!this.requested.compareAndSet(r, u));
+            }
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            this.drain();
+        }
+
+        private void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!this.done) {
+                    this.drainOnce();
+                }
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainOnce() {
+            if (this.cancelled) {
+                this.finish();
+                return;
+            }
+            if (this.badRequest != null) {
+                this.finish();
+                this.signalError(this.badRequest);
+                return;
+            }
+            try {
+                if (this.rs == null) {
+                    this.open();
+                }
+                long emitted = 0;
+                long r = this.requested.get();
+                while (emitted < r) {
+                    if (this.cancelled) {
+                        this.finish();
+                        return;
+                    }
+                    if (!this.rs.next()) {
+                        this.finish();
+                        this.signalComplete();
+                        return;
+                    }
+                    T t = rowMapper.mapRow(this.rs, this.rowNum++);
+                    try {
+                        this.subscriber.onNext(t);
+                    } catch (Throwable e) {
+                        this.cancelled = true;
+                        this.finish();
+                        log.error("subscriber onNext error, subscription cancelled. sql [ " + sql + " ]", e);
+                        return;
+                    }
+                    emitted++;
+                    if (emitted == r) {
+                        r = this.requested.addAndGet(-emitted);
+                        emitted = 0;
+                    }
+                }
+            } catch (Throwable e) {
+                this.finish();
+                this.signalError(e);
+            }
+        }
+
+        private void signalComplete() {
+            try {
+                this.subscriber.onComplete();
+            } catch (Throwable e) {
+                log.error("subscriber onComplete error. sql [ " + sql + " ]", e);
+            }
+        }
+
+        private void signalError(Throwable error) {
+            try {
+                this.subscriber.onError(error);
+            } catch (Throwable e) {
+                log.error("subscriber onError error. sql [ " + sql + " ]", e);
+            }
+        }
+
+        private void open() throws SQLException {
+            if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
+                log.info("publisher sql [ " + sql + " ]");
+            }
+            DALSnapshot prev = snapshot.apply();
+            try {
+                this.con = dataSource.getConnection();
+                this.ps = this.con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                this.ps.setFetchSize(fetchSize);
+                JdbcSupport.setPsValues(this.ps, values);
+                this.rs = this.ps.executeQuery();
+            } finally {
+                prev.apply();
+            }
+        }
+
+        /**
+         * 关闭结果集、statement并释放连接
+         */
+        private void finish() {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            JdbcUtils.closeResultSet(this.rs);
+            JdbcUtils.closeStatement(this.ps);
+            if (this.con != null) {
+                DALSnapshot prev = snapshot.apply();
+                try {
+                    JdbcUtils.closeConnection(this.con);
+                } finally {
+                    prev.apply();
+                }
+            }
+            this.rs = null;
+            this.ps = null;
+            this.con = null;
+        }
+    }
+}
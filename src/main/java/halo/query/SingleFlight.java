@@ -0,0 +1,220 @@
+package halo.query;
+
+import halo.query.dal.DALTimeoutException;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * 合并并发的相同查询，设置到 {@link Query#setSingleFlight(SingleFlight)} 后开启.<br>
+ * sql、参数、结果类型、路由后的dsKey以及是否使用slave都相同的查询同一时间只执行一次，其他线程等待执行结果，
+ * 对于可修改的实体，每个线程得到结果的副本.<br>
+ * 事务中的查询以及无法复制结果的查询(例如自定义RowMapper)不进行合并
+ */
+public final class SingleFlight {
+
+    private final ConcurrentHashMap<Key, Call> callMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong executeCount = new AtomicLong();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * 执行查询，相同的查询正在执行时等待其结果
+     *
+     * @param dsKey    路由后的dsKey
+     * @param slave    是否使用slave，读主库的查询不会得到slave的结果
+     * @param sql      最终的sql
+     * @param values   参数
+     * @param type     结果类型
+     * @param loader   查询数据库
+     * @param copier   复制结果，为null表示结果不可修改，所有线程共享
+     * @param deadline 等待的期限(毫秒时间点)，0表示一直等待
+     * @param <V>      结果泛型
+     * @return 查询结果
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String dsKey, boolean slave, String sql, Object[] values, Object type, Callable<V> loader,
+                         UnaryOperator<V> copier, long deadline) {
+        Key key = new Key(dsKey, slave, sql, values, type);
+        while (true) {
+            Call call = new Call();
+            Call existing = this.callMap.putIfAbsent(key, call);
+            if (existing == null) {
+                return this.lead(key, call, loader, copier);
+            }
+            if (existing.join()) {
+                this.sharedCount.incrementAndGet();
+                V value = (V) existing.await(deadline);
+                if (copier == null) {
+                    return value;
+                }
+                return copier.apply(value);
+            }
+            // 正在执行的查询已经完成，重新获取
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V lead(Key key, Call call, Callable<V> loader, UnaryOperator<V> copier) {
+        this.executeCount.incrementAndGet();
+        V value = null;
+        Throwable error = null;
+        try {
+            value = loader.call();
+        } catch (Throwable e) {
+            error = e;
+        }
+        this.callMap.remove(key, call);
+        int followers = call.complete(value, error);
+        if (error != null) {
+            throw propagate(error);
+        }
+        // 有其他线程共享结果时，自己也使用副本，避免修改影响其他线程
+        if (followers > 0 && copier != null) {
+            return copier.apply(value);
+        }
+        return value;
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    /**
+     * @return 实际执行的查询数量
+     */
+    public long getExecuteCount() {
+        return executeCount.get();
+    }
+
+    /**
+     * @return 共享其他线程查询结果的数量
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * @return 正在执行的查询数量
+     */
+    public int getInFlight() {
+        return callMap.size();
+    }
+
+    private static final class Call {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private int followers;
+
+        /**
+         * 完成后不再接受等待的线程，保证执行者知道结果是否被共享
+         */
+        private boolean completed;
+
+        private Object value;
+
+        private Throwable error;
+
+        synchronized boolean join() {
+            if (this.completed) {
+                return false;
+            }
+            this.followers++;
+            return true;
+        }
+
+        int complete(Object value, Throwable error) {
+            int followers;
+            synchronized (this) {
+                this.value = value;
+                this.error = error;
+                this.completed = true;
+                followers = this.followers;
+            }
+            this.latch.countDown();
+            return followers;
+        }
+
+        Object await(long deadline) {
+            try {
+                if (deadline <= 0) {
+                    this.latch.await();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !this.latch.await(remaining, TimeUnit.MILLISECONDS)) {
+                        throw new DALTimeoutException("wait for same query timeout");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            synchronized (this) {
+                if (this.error != null) {
+                    throw propagate(this.error);
+                }
+                return this.value;
+            }
+        }
+    }
+
+    private static final class Key {
+
+        private final String dsKey;
+
+        private final boolean slave;
+
+        private final String sql;
+
+        private final Object[] values;
+
+        private final Object type;
+
+        private final int hash;
+
+        private Key(String dsKey, boolean slave, String sql, Object[] values, Object type) {
+            this.dsKey = dsKey;
+            this.slave = slave;
+            this.sql = sql;
+            this.values = values == null ? null : values.clone();
+            this.type = type;
+            int h = sql.hashCode();
+            h = 31 * h + (dsKey == null ? 0 : dsKey.hashCode());
+            h = 31 * h + (slave ? 1 : 0);
+            h = 31 * h + Arrays.hashCode(this.values);
+            this.hash = 31 * h + type.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && slave == key.slave && sql.equals(key.sql) && type.equals(key.type)
+                    && (dsKey == null ? key.dsKey == null : dsKey.equals(key.dsKey))
+                    && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package halo.query;
 
 import halo.query.dal.DALInfo;
 import halo.query.dal.DALParserUtil;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALDataSource;
 import halo.query.mapping.EntityTableInfo;
 import halo.query.mapping.EntityTableInfoFactory;
 
@@ -399,28 +401,46 @@ public class SqlBuilder {
         EntityTableInfo<T> info = getEntityTableInfo(clazz);
         DALInfo dalInfo = DALParserUtil.process(clazz, info.getDalParser());
         if (dalInfo == null) {
-            return info.getTableName();
+            return qualifyTableName(info.getTableName());
         } else {
             String realTableName = dalInfo.getRealTable(clazz);
             if (realTableName == null) {
-                return info.getTableName();
+                return qualifyTableName(info.getTableName());
             }
-            return realTableName;
+            return qualifyTableName(realTableName);
         }
     }
 
+    /**
+     * 开启 {@link HaloConfig#isQualifyTableWithDb()} 并且当前数据源引用其他数据源时，返回 db.table
+     */
+    private static String qualifyTableName(String tableName) {
+        if (!HaloConfig.getInstance().isQualifyTableWithDb()) {
+            return tableName;
+        }
+        HaloDALDataSource dataSource = HaloDALDataSource.getInstance();
+        if (dataSource == null) {
+            return tableName;
+        }
+        String db = dataSource.getRefDb(DALStatus.getDsKey());
+        if (db == null) {
+            return tableName;
+        }
+        return db + "." + tableName;
+    }
+
 
     private static <T> void addTableNameAndSetDsKey(StringBuilder sb, Class<T> clazz, boolean addTableAlias, boolean addComma) {
         EntityTableInfo<T> info = getEntityTableInfo(clazz);
         DALInfo dalInfo = DALParserUtil.process(clazz, info.getDalParser());
         if (dalInfo == null) {
-            sb.append(info.getTableName());
+            sb.append(qualifyTableName(info.getTableName()));
         } else {
             String realTableName = dalInfo.getRealTable(clazz);
             if (realTableName == null) {
-                sb.append(info.getTableName());
+                sb.append(qualifyTableName(info.getTableName()));
             } else {
-                sb.append(realTableName);
+                sb.append(qualifyTableName(realTableName));
             }
 
         }
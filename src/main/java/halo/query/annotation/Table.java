@@ -28,4 +28,34 @@ public @interface Table {
      */
     Class<?> dalParser() default BaseDALParser.class;
 
+    /**
+     * 是否开启实体缓存，开启后 objById、objByIds 优先从进程内缓存获取数据，写操作时失效.
+     * 事务中、for update 以及使用slave的查询不使用缓存
+     *
+     * @return true:开启
+     */
+    boolean cache() default false;
+
+    /**
+     * 实体缓存的最大数量，超过时淘汰最久没有使用的数据
+     *
+     * @return 最大数量
+     */
+    int cacheSize() default 10000;
+
+    /**
+     * 实体缓存的存活时间
+     *
+     * @return 单位秒
+     */
+    int cacheTtlSeconds() default 60;
+
+    /**
+     * 不存在的数据在实体缓存中的存活时间，开启后 objById、objByIds 查询不到的id会被记录，再次查询时直接返回null，
+     * insert、replace 时清除。需要同时开启 {@link #cache()}
+     *
+     * @return 单位秒，0表示不记录不存在的数据
+     */
+    int cacheMissTtlSeconds() default 0;
+
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+package halo.query.cache;
+
+import halo.query.dal.DALStatus;
+import halo.query.mapping.EntityTableInfo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 实体的进程内缓存，通过 {@link halo.query.annotation.Table#cache()} 开启，由 objById、objByIds 使用.<br>
+ * 按照容量(LRU)与存活时间淘汰，写操作时失效，在事务中写入时事务提交后再次失效。缓存中保存的是对象的副本，取出时也返回副本，
+ * 调用者修改返回的对象不会影响缓存.<br>
+ * 通过 {@link halo.query.annotation.Table#cacheMissTtlSeconds()} 可以同时记录不存在的id，与缓存的对象共用容量.
+ * 使用精确的记录而不是布隆过滤器，布隆过滤器的误判会把存在的数据当作不存在.<br>
+ * 为了减少锁竞争，数据按照key的hash分到多个段中，每个段单独加锁
+ */
+@SuppressWarnings("unchecked")
+public final class EntityCache<T> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final ConcurrentHashMap<Class<?>, EntityCache<?>> CACHE_MAP = new ConcurrentHashMap<>();
+
+    /**
+     * 表示数据不存在
+     */
+    private static final Object MISS = new Object();
+
+    private final EntityTableInfo<T> entityTableInfo;
+
+    private final long ttlNanos;
+
+    private final long missTtlNanos;
+
+    private final Segment[] segments;
+
+    /**
+     * 每次失效时增加，查询开始之后发生过失效时，查询结果不放入缓存，避免旧数据覆盖失效.
+     * 失效时先增加再删除段中的数据，放入时在段的锁中比较，失效与放入之间不会漏掉
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 无法确定id的insert时增加，之前记录的不存在的数据全部失效
+     */
+    private final AtomicLong missGeneration = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public EntityCache(EntityTableInfo<T> entityTableInfo, int maxSize, int ttlSeconds) {
+        this(entityTableInfo, maxSize, ttlSeconds, 0);
+    }
+
+    public EntityCache(EntityTableInfo<T> entityTableInfo, int maxSize, int ttlSeconds, int missTtlSeconds) {
+        this.entityTableInfo = entityTableInfo;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.missTtlNanos = TimeUnit.SECONDS.toNanos(missTtlSeconds);
+        int segmentSize = Math.max(1, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment(segmentSize, this.evictionCount);
+        }
+        CACHE_MAP.put(entityTableInfo.getClazz(), this);
+    }
+
+    /**
+     * @return 所有实体缓存，用于监控
+     */
+    public static Map<Class<?>, EntityCache<?>> getAllCaches() {
+        return Collections.unmodifiableMap(CACHE_MAP);
+    }
+
+    /**
+     * 获得缓存的对象
+     *
+     * @param key key
+     * @return 对象的副本，没有缓存或者已经过期时返回null
+     */
+    public T get(EntityCacheKey key) {
+        Entry entry = this.segment(key).get(key, System.nanoTime());
+        if (entry == null || entry.value == MISS) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return this.copy((T) entry.value);
+    }
+
+    /**
+     * 判断是否记录了数据不存在，{@link #get(EntityCacheKey)} 返回null之后调用
+     *
+     * @param key key
+     * @return true:数据不存在，不需要查询数据库
+     */
+    public boolean isMissing(EntityCacheKey key) {
+        if (this.missTtlNanos <= 0) {
+            return false;
+        }
+        Entry entry = this.segment(key).get(key, System.nanoTime());
+        if (entry != null && entry.value == MISS && entry.missGeneration == this.missGeneration.get()) {
+            this.negativeHitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 当前的失效次数，查询数据库之前获取，放入缓存时传入
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * 把从数据库查询的对象放入缓存，查询期间发生过失效时不放入
+     *
+     * @param key        key
+     * @param t          对象，缓存中保存副本
+     * @param generation 查询数据库之前的 {@link #getGeneration()}
+     */
+    public void put(EntityCacheKey key, T t, long generation) {
+        if (this.generation.get() != generation) {
+            return;
+        }
+        this.segment(key).putEntry(key, new Entry(this.copy(t), System.nanoTime() + this.ttlNanos, 0),
+                this.generation, generation);
+    }
+
+    /**
+     * 记录数据不存在，没有开启或者查询期间发生过失效时不记录
+     *
+     * @param key        key
+     * @param generation 查询数据库之前的 {@link #getGeneration()}
+     */
+    public void putMiss(EntityCacheKey key, long generation) {
+        if (this.missTtlNanos <= 0) {
+            return;
+        }
+        long missGeneration = this.missGeneration.get();
+        this.segment(key).putEntry(key, new Entry(MISS, System.nanoTime() + this.missTtlNanos, missGeneration),
+                this.generation, generation);
+    }
+
+    /**
+     * 失效指定的数据
+     *
+     * @param key key
+     */
+    public void invalidate(final EntityCacheKey key) {
+        this.remove(key);
+        DALStatus.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                remove(key);
+            }
+        });
+    }
+
+    private void remove(EntityCacheKey key) {
+        this.segment(key).remove(key, this.generation);
+    }
+
+    /**
+     * 使记录的不存在的数据全部失效，id由数据库生成的insert使用
+     */
+    public void invalidateMisses() {
+        this.removeMisses();
+        DALStatus.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                removeMisses();
+            }
+        });
+    }
+
+    private void removeMisses() {
+        this.missGeneration.incrementAndGet();
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * 失效所有数据，无法确定影响哪些数据的写操作(例如按条件update、delete)使用
+     */
+    public void invalidateAll() {
+        this.clear();
+        DALStatus.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                clear();
+            }
+        });
+    }
+
+    private void clear() {
+        this.generation.incrementAndGet();
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return 通过记录的不存在数据直接返回null的次数
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    /**
+     * @return 命中率，没有请求时为0
+     */
+    public double getHitRate() {
+        long hit = this.hitCount.get();
+        long total = hit + this.missCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hit / total;
+    }
+
+    /**
+     * @return 因为超过容量被淘汰的数量
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return 当前缓存的数量，包括已经过期还没有清除的数据
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segment(EntityCacheKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * 复制表字段，缓存中的对象只包含表字段的数据
+     */
+    private T copy(T t) {
+        return this.entityTableInfo.copy(t);
+    }
+
+    @Override
+    public String toString() {
+        return entityTableInfo.getClazz().getName() + " size=" + getSize() + " hitRate=" + getHitRate() +
+                " hit=" + getHitCount() + " miss=" + getMissCount() + " negativeHit=" + getNegativeHitCount() +
+                " eviction=" + getEvictionCount();
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final long expireAt;
+
+        /**
+         * 不存在的数据记录时的 missGeneration
+         */
+        private final long missGeneration;
+
+        private Entry(Object value, long expireAt, long missGeneration) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.missGeneration = missGeneration;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<EntityCacheKey, Entry> {
+
+        private final int maxSize;
+
+        private final AtomicLong evictionCount;
+
+        private Segment(int maxSize, AtomicLong evictionCount) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictionCount = evictionCount;
+        }
+
+        synchronized Entry get(EntityCacheKey key, long now) {
+            Entry entry = super.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.expireAt >= 0) {
+                super.remove(key);
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * 失效次数与查询开始时相同才放入，与 {@link #remove(EntityCacheKey, AtomicLong)}、{@link #clear()} 在同一个锁中执行
+         */
+        synchronized void putEntry(EntityCacheKey key, Entry entry, AtomicLong generation, long expected) {
+            if (generation.get() != expected) {
+                return;
+            }
+            super.put(key, entry);
+        }
+
+        synchronized void remove(EntityCacheKey key, AtomicLong generation) {
+            generation.incrementAndGet();
+            super.remove(key);
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<EntityCacheKey, Entry> eldest) {
+            if (super.size() > this.maxSize) {
+                this.evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package halo.query.cache;
+
+import java.util.Arrays;
+
+/**
+ * 实体缓存的key，由数据源、真实表名称与id组成，不同分区中id相同的数据不会冲突
+ */
+public final class EntityCacheKey {
+
+    private final String dsKey;
+
+    private final String tableName;
+
+    private final Object[] idValues;
+
+    private final int hash;
+
+    public EntityCacheKey(String dsKey, String tableName, Object[] idValues) {
+        this.dsKey = dsKey;
+        this.tableName = tableName;
+        this.idValues = idValues.clone();
+        int h = dsKey == null ? 0 : dsKey.hashCode();
+        h = 31 * h + tableName.hashCode();
+        h = 31 * h + Arrays.hashCode(this.idValues);
+        this.hash = h;
+    }
+
+    public String getDsKey() {
+        return dsKey;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EntityCacheKey)) {
+            return false;
+        }
+        EntityCacheKey that = (EntityCacheKey) o;
+        return this.hash == that.hash && (this.dsKey == null ? that.dsKey == null : this.dsKey.equals(that.dsKey))
+                && this.tableName.equals(that.tableName) && Arrays.equals(this.idValues, that.idValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return dsKey + ":" + tableName + ":" + Arrays.toString(idValues);
+    }
+}
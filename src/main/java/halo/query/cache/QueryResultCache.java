@@ -0,0 +1,447 @@
+package halo.query.cache;
+
+import halo.query.dal.DALSnapshot;
+import halo.query.dal.DALStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询结果缓存，设置到 {@link halo.query.JdbcSupport#setResultCache(QueryResultCache)} 后，
+ * Query 的 count、list、mysqlList 会先查询缓存.<br>
+ * key由最终的sql、参数、结果类型以及路由后的dsKey组成，按照容量(LRU)与存活时间淘汰.<br>
+ * 通过Query对同一个真实表进行写操作时，这个表相关的所有结果失效。每个表有一个版本号，写操作时增加，
+ * 缓存数据保存查询开始时各个表的版本号，版本号不一致的数据视为失效，所以失效操作不需要遍历缓存.
+ * 在事务中写入时，事务提交后再次增加版本号，使事务提交之前其他线程放入缓存的旧结果失效.<br>
+ * 设置 staleMillis 后，过期不超过 staleMillis 的数据会直接返回，同时在后台线程中重新查询.<br>
+ * 事务中的查询、使用slave的查询不使用缓存。list、mysqlList只缓存使用实体默认RowMapper的查询，
+ * 返回的集合以及集合中的对象都是复制的，调用者可以修改
+ */
+public class QueryResultCache implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(QueryResultCache.class);
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private int maxSize = 10000;
+
+    private long ttlMillis = 1000;
+
+    /**
+     * 过期之后还可以返回旧数据的时间，0表示不返回过期数据
+     */
+    private long staleMillis;
+
+    private int refreshThreads = 1;
+
+    /**
+     * 需要缓存的逻辑表名，为空时缓存所有表的查询
+     */
+    private Set<String> tableNames = Collections.emptySet();
+
+    private Segment[] segments;
+
+    private ThreadPoolExecutor refreshExecutor;
+
+    /**
+     * dsKey:table 与表版本号的对应
+     */
+    private final ConcurrentHashMap<String, AtomicLong> tableVersionMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong staleHitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setStaleMillis(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+
+    public void setTableNames(Set<String> tableNames) {
+        this.tableNames = new HashSet<>(tableNames);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be > 0");
+        }
+        int segmentSize = Math.max(1, (this.maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        Segment[] segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentSize, this.evictionCount);
+        }
+        this.segments = segments;
+        if (this.staleMillis > 0 && this.refreshThreads > 0) {
+            this.refreshExecutor = new ThreadPoolExecutor(this.refreshThreads, this.refreshThreads, 60, TimeUnit
+                    .SECONDS, new ArrayBlockingQueue<Runnable>(this.refreshThreads * 64), new ThreadFactory() {
+
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "QueryResultCache-refresh-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    public void destory() {
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param tableName 逻辑表名
+     * @return 表的查询是否使用缓存
+     */
+    public boolean isCacheable(String tableName) {
+        return this.tableNames.isEmpty() || this.tableNames.contains(tableName);
+    }
+
+    /**
+     * 获得表在缓存中的标识
+     *
+     * @param dsKey     路由后的dsKey，可以为null
+     * @param realTable 真实表名
+     * @return 标识
+     */
+    public static String tableKey(String dsKey, String realTable) {
+        return dsKey + ":" + realTable;
+    }
+
+    /**
+     * 获得缓存的结果，没有可用的结果时调用loader查询并放入缓存
+     *
+     * @param dsKey     路由后的dsKey
+     * @param sql       最终的sql
+     * @param values    参数
+     * @param type      结果类型，相同sql不同RowMapper的结果互不影响
+     * @param tableKeys 查询涉及的表，由 {@link #tableKey(String, String)} 获得
+     * @param loader    查询数据库
+     * @param <V>       结果泛型
+     * @return 查询结果
+     * @throws Exception loader的异常
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String dsKey, String sql, Object[] values, Object type, String[] tableKeys, Callable<V> loader)
+            throws Exception {
+        Key key = new Key(dsKey, sql, values, type);
+        Segment segment = this.segment(key);
+        Entry entry = segment.getEntry(key);
+        if (entry != null && this.isCurrent(entry, tableKeys)) {
+            long now = System.nanoTime();
+            if (now - entry.expireAt < 0) {
+                this.hitCount.incrementAndGet();
+                return (V) entry.value;
+            }
+            if (now - entry.staleUntil < 0 && this.refreshExecutor != null) {
+                this.staleHitCount.incrementAndGet();
+                this.refresh(segment, key, entry, tableKeys, loader);
+                return (V) entry.value;
+            }
+        }
+        this.missCount.incrementAndGet();
+        long[] versions = this.versions(tableKeys);
+        V value = loader.call();
+        segment.putEntry(key, this.createEntry(value, versions));
+        return value;
+    }
+
+    /**
+     * 使表相关的所有结果失效
+     *
+     * @param tableKey 由 {@link #tableKey(String, String)} 获得
+     */
+    public void invalidate(final String tableKey) {
+        this.incrementVersion(tableKey);
+        DALStatus.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                incrementVersion(tableKey);
+            }
+        });
+    }
+
+    private void incrementVersion(String tableKey) {
+        AtomicLong version = this.tableVersionMap.get(tableKey);
+        if (version != null) {
+            version.incrementAndGet();
+        }
+    }
+
+    public void invalidateAll() {
+        for (AtomicLong version : this.tableVersionMap.values()) {
+            version.incrementAndGet();
+        }
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    private void refresh(final Segment segment, final Key key, final Entry entry, final String[] tableKeys,
+                         final Callable<?> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        // 后台线程使用当前线程的路由信息进行查询
+        Runnable task = DALSnapshot.capture().wrap(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long[] versions = versions(tableKeys);
+                    Object value = loader.call();
+                    segment.putEntry(key, createEntry(value, versions));
+                    refreshCount.incrementAndGet();
+                } catch (Exception e) {
+                    entry.refreshing.set(false);
+                    log.warn("refresh query result error sql [ " + key.sql + " ]", e);
+                }
+            }
+        });
+        try {
+            this.refreshExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private Entry createEntry(Object value, long[] versions) {
+        long now = System.nanoTime();
+        long expireAt = now + TimeUnit.MILLISECONDS.toNanos(this.ttlMillis);
+        return new Entry(value, versions, expireAt, expireAt + TimeUnit.MILLISECONDS.toNanos(this.staleMillis));
+    }
+
+    /**
+     * 查询开始前获取表的版本号，查询期间发生的写操作会使这次的结果失效
+     */
+    private long[] versions(String[] tableKeys) {
+        long[] versions = new long[tableKeys.length];
+        for (int i = 0; i < tableKeys.length; i++) {
+            versions[i] = this.tableVersion(tableKeys[i]).get();
+        }
+        return versions;
+    }
+
+    private boolean isCurrent(Entry entry, String[] tableKeys) {
+        for (int i = 0; i < tableKeys.length; i++) {
+            if (this.tableVersion(tableKeys[i]).get() != entry.versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AtomicLong tableVersion(String tableKey) {
+        AtomicLong version = this.tableVersionMap.get(tableKey);
+        if (version == null) {
+            AtomicLong created = new AtomicLong();
+            version = this.tableVersionMap.putIfAbsent(tableKey, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        return version;
+    }
+
+    private Segment segment(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return 返回过期数据并进行后台刷新的次数
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return 命中率，包括返回过期数据的请求，没有请求时为0
+     */
+    public double getHitRate() {
+        long hit = this.hitCount.get() + this.staleHitCount.get();
+        long total = hit + this.missCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hit / total;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return 当前缓存的数量，包括已经失效还没有清除的数据
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryResultCache size=" + getSize() + " hitRate=" + getHitRate() + " hit=" + getHitCount() +
+                " staleHit=" + getStaleHitCount() + " miss=" + getMissCount() + " refresh=" + getRefreshCount() +
+                " eviction=" + getEvictionCount();
+    }
+
+    private static final class Key {
+
+        private final String dsKey;
+
+        private final String sql;
+
+        private final Object[] values;
+
+        private final Object type;
+
+        private final int hash;
+
+        private Key(String dsKey, String sql, Object[] values, Object type) {
+            this.dsKey = dsKey;
+            this.sql = sql;
+            // 参数数组可能被调用者重用，复制一份
+            this.values = values == null ? null : values.clone();
+            this.type = type;
+            int h = sql.hashCode();
+            h = 31 * h + (dsKey == null ? 0 : dsKey.hashCode());
+            h = 31 * h + Arrays.hashCode(this.values);
+            this.hash = 31 * h + type.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && sql.equals(key.sql) && type.equals(key.type)
+                    && (dsKey == null ? key.dsKey == null : dsKey.equals(key.dsKey))
+                    && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final long[] versions;
+
+        private final long expireAt;
+
+        private final long staleUntil;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(Object value, long[] versions, long expireAt, long staleUntil) {
+            this.value = value;
+            this.versions = versions;
+            this.expireAt = expireAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, Entry> {
+
+        private final int maxSize;
+
+        private final AtomicLong evictionCount;
+
+        private Segment(int maxSize, AtomicLong evictionCount) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictionCount = evictionCount;
+        }
+
+        synchronized Entry getEntry(Key key) {
+            return super.get(key);
+        }
+
+        synchronized void putEntry(Key key, Entry entry) {
+            super.put(key, entry);
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            if (super.size() > this.maxSize) {
+                this.evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
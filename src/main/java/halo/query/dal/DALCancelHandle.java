@@ -0,0 +1,98 @@
+package halo.query.dal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 取消正在执行的sql.<br>
+ * 通过 {@link DALStatus#setCancelHandle(DALCancelHandle)} 设置到执行线程后，DALConnection 创建的statement会登记到此对象，
+ * 其他线程调用 {@link #cancel()} 时取消最后登记的statement。调用cancel之后再创建statement会抛出异常.<br>
+ * DALConnection 关闭前会解除登记，连接归还连接池之后不会再被取消
+ */
+public final class DALCancelHandle {
+
+    private static final Log log = LogFactory.getLog(DALCancelHandle.class);
+
+    /**
+     * 到达期限时取消statement的定时器，所有句柄共用一个线程
+     */
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private Statement statement;
+
+    private ScheduledFuture<?> timeout;
+
+    private volatile boolean cancelled;
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DALCancelHandle-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // 大部分sql在期限之前完成，取消的任务需要立即移除
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    synchronized void register(Statement statement) throws SQLException {
+        if (this.cancelled) {
+            throw new SQLException("statement was cancelled");
+        }
+        this.statement = statement;
+    }
+
+    synchronized void release() {
+        this.statement = null;
+        if (this.timeout != null) {
+            this.timeout.cancel(false);
+            this.timeout = null;
+        }
+    }
+
+    /**
+     * 在指定时间之后取消，{@link #release()} 之后不再取消
+     *
+     * @param delayMillis 单位毫秒
+     */
+    synchronized void cancelAfter(long delayMillis) {
+        this.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取消当前登记的statement
+     */
+    public synchronized void cancel() {
+        this.cancelled = true;
+        if (this.statement != null) {
+            cancelQuietly(this.statement);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private static void cancelQuietly(Statement statement) {
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            log.warn("cancel statement error", e);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package halo.query.dal;
 
+import halo.query.HaloConfig;
 import halo.query.HaloQueryDebugInfo;
+import halo.query.cache.EntityCacheKey;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.Executor;
+import java.util.concurrent.*;
 
 /**
  * 支持分布式数据源访问的Connection，此类暂时不支持非PreparedStatement方式分布式读写。
@@ -16,20 +18,23 @@ import java.util.concurrent.Executor;
 public class DALConnection implements Connection {
 
     /**
-     * 存储调用的方法的参数
+     * 第一个打开的实际连接，大部分操作只使用一个连接，不需要创建map
      */
-    private List<Map<String, Object>> methodInvokedList = new ArrayList<>(4);
+    private String firstDsKey;
 
-    private static final int METHODINDEX_SETTRANSACTIONISOLATION = 2;
+    private Connection firstCon;
 
-    private static final int METHODINDEX_SETREADONLY = 4;
-
-    private static final int METHODINDEX_SETAUTOCOMMIT = 6;
+    /**
+     * 打开第二个实际连接时才创建，存储所有实际的连接
+     */
+    private LinkedHashMap<String, Connection> conMap;
 
     /**
-     * 存储实际的连接，可以保存多个
+     * 是否调用过 setReadOnly 与 setTransactionIsolation，打开实际连接时需要重新设置
      */
-    private final LinkedHashMap<String, Connection> conMap = new LinkedHashMap<>();
+    private boolean readOnlySet;
+
+    private boolean transactionIsolationSet;
 
     private final Log logger = LogFactory.getLog(DALConnection.class);
 
@@ -41,16 +46,18 @@ public class DALConnection implements Connection {
 
     private HaloDALDataSource dalDataSource;
 
-    DALConnection(HaloDALDataSource dalDataSource) throws SQLException {
-        this.dalDataSource = dalDataSource;
-        this.setAutoCommit(true);
-    }
+    /**
+     * 事务中读取的实体，commit、rollback、close时清除
+     */
+    private Map<Class<?>, Map<EntityCacheKey, Object>> identityMap;
+
+    /**
+     * 事务提交成功后执行的任务，commit、rollback、close时清除
+     */
+    private List<Runnable> afterCommitTasks;
 
-    private void addInvoke(int methodIndex, Object[] args) {
-        Map<String, Object> map = new HashMap<>(2);
-        map.put("method_index", methodIndex);
-        map.put("args", args);
-        this.methodInvokedList.add(map);
+    DALConnection(HaloDALDataSource dalDataSource) {
+        this.dalDataSource = dalDataSource;
     }
 
     public void clearWarnings() throws SQLException {
@@ -58,14 +65,20 @@ public class DALConnection implements Connection {
     }
 
     public void close() throws SQLException {
-        Set<Map.Entry<String, Connection>> set = this.conMap.entrySet();
+        DALScope scope = DALScope.current();
+        DALCancelHandle cancelHandle = scope.getCancelHandle();
+        if (cancelHandle != null) {
+            // 连接归还连接池之前解除登记，避免取消其他线程使用此连接执行的sql
+            cancelHandle.release();
+        }
+        scope.releaseDeadlineHandle();
+        this.identityMap = null;
+        this.afterCommitTasks = null;
         try {
-            for (Map.Entry<String, Connection> e : set) {
-                e.getValue().close();
-            }
+            this.complete(CLOSE);
         } finally {
-            DALStatus.removeCurrentDALConnection();
-            DALStatus.remove();
+            scope.setDalConnection(null);
+            scope.reset();
             if (DALConnectionListenerFactory.hasListener()) {
                 for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
                     listener.onDALClosed();
@@ -75,10 +88,13 @@ public class DALConnection implements Connection {
     }
 
     public void commit() throws SQLException {
-        Set<Map.Entry<String, Connection>> set = this.conMap.entrySet();
+        this.identityMap = null;
+        List<Runnable> tasks = this.afterCommitTasks;
+        this.afterCommitTasks = null;
         try {
-            for (Map.Entry<String, Connection> e : set) {
-                e.getValue().commit();
+            this.complete(COMMIT);
+            if (tasks != null) {
+                this.runAfterCommitTasks(tasks);
             }
         } finally {
             DALStatus.remove();
@@ -90,39 +106,122 @@ public class DALConnection implements Connection {
         }
     }
 
+    private void runAfterCommitTasks(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warn("run after commit task error", e);
+            }
+        }
+    }
+
+    /**
+     * 对所有真实连接执行commit、rollback或close.<br>
+     * 只有一个连接或者没有设置 completionExecutor 时依次执行，出现异常时停止.
+     * 否则并发执行，等待全部完成后抛出第一个异常，其他异常作为 suppressed
+     */
+    private void complete(final ConnectionAction action) throws SQLException {
+        if (this.conMap == null) {
+            if (this.firstCon != null) {
+                action.run(this.firstCon);
+            }
+            return;
+        }
+        Executor executor = this.dalDataSource.getCompletionExecutor();
+        if (executor == null) {
+            for (Connection con : this.conMap.values()) {
+                action.run(con);
+            }
+            return;
+        }
+        List<Connection> cons = new ArrayList<>(this.conMap.values());
+        List<FutureTask<Void>> tasks = new ArrayList<>(cons.size() - 1);
+        for (int i = 1; i < cons.size(); i++) {
+            final Connection con = cons.get(i);
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    action.run(con);
+                    return null;
+                }
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // 线程池已满时在当前线程执行
+                task.run();
+            }
+            tasks.add(task);
+        }
+        SQLException ex = null;
+        try {
+            action.run(cons.get(0));
+        } catch (SQLException e) {
+            ex = e;
+        }
+        boolean interrupted = false;
+        for (FutureTask<Void> task : tasks) {
+            Throwable cause = null;
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // 必须等待所有连接完成，否则连接可能在其他线程使用时被归还
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    cause = e.getCause();
+                    break;
+                }
+            }
+            if (cause == null) {
+                continue;
+            }
+            if (ex == null) {
+                ex = cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+            } else {
+                ex.addSuppressed(cause);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    private interface ConnectionAction {
+
+        void run(Connection con) throws SQLException;
+    }
+
+    private static final ConnectionAction COMMIT = new ConnectionAction() {
+        @Override
+        public void run(Connection con) throws SQLException {
+            con.commit();
+        }
+    };
+
+    private static final ConnectionAction ROLLBACK = new ConnectionAction() {
+        @Override
+        public void run(Connection con) throws SQLException {
+            con.rollback();
+        }
+    };
+
+    private static final ConnectionAction CLOSE = new ConnectionAction() {
+        @Override
+        public void run(Connection con) throws SQLException {
+            con.close();
+        }
+    };
+
     public Statement createStatement() throws SQLException {
         return this.getCurrentConnection().createStatement();
     }
 
-//    /**
-//     * 获得当前需要使用的Connection
-//     *
-//     * @return sql con
-//     */
-//    public Connection getCurrentConnection() {
-//        String name = DALStatus.getDsKey();
-//        Connection con = this.conMap.get(name);
-//        if (con == null) {
-//            HaloDataSourceProxy proxy = this.dalDataSource.getCurrentDataSourceProxy();
-//            try {
-//                con = proxy.getConnection();
-//                this.conMap.put(name, con);
-//                this.initCurrentConnection(con);
-//                if (this.conMap.size() > 1) {
-//                    Set<String> keyset = this.conMap.keySet();
-//                    StringBuilder sb = new StringBuilder();
-//                    for (String key : keyset) {
-//                        sb.append(key).append(" ");
-//                    }
-//                    logger.warn("dsKey[" + sb.toString() + "] was opened");
-//                }
-//            } catch (Exception e) {
-//                throw new DALRunTimeException("master[" + proxy.getMaster() + "] slave[" + proxy.getSlave() + "]", e);
-//            }
-//        }
-//        return con;
-//    }
-
     /**
      * 获得当前需要使用的Connection
      *
@@ -130,34 +229,72 @@ public class DALConnection implements Connection {
      */
     private Connection getCurrentConnection() {
         String name = DALStatus.getDsKey();
-        Connection con = this.conMap.get(name);
+        Connection con = this.getOpenedConnection(name);
         if (con == null) {
-            HaloDataSourceProxy proxy = this.dalDataSource.getCurrentDataSourceProxy(this.autoCommit);
+            con = openConnection(this.dalDataSource, name, this.autoCommit);
+            this.putConnection(name, con);
             try {
-                con = proxy.getConnection();
-                this.conMap.put(name, con);
-                if (proxy.getDb() != null) {
-                    con.setCatalog(proxy.getDb());
-                    if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
-                        logger.info("change schema to " + proxy.getDb());
-                    }
-                }
                 this.initCurrentConnection(con);
-                if (this.conMap.size() > 1) {
-                    Set<String> keyset = this.conMap.keySet();
-                    StringBuilder sb = new StringBuilder();
-                    for (String key : keyset) {
-                        sb.append(key).append(" ");
-                    }
-                    logger.warn("dsKey[" + sb.toString() + "] was opened");
+            } catch (SQLException e) {
+                throw new DALRunTimeException("init connection of dsKey[" + name + "] error", e);
+            }
+            if (this.conMap != null) {
+                Set<String> keyset = this.conMap.keySet();
+                StringBuilder sb = new StringBuilder();
+                for (String key : keyset) {
+                    sb.append(key).append(" ");
                 }
-            } catch (Exception e) {
-                throw new DALRunTimeException("master[" + proxy.getMaster() + "] slave[" + proxy.getSlave() + "]", e);
+                logger.warn("dsKey[" + sb.toString() + "] was opened");
             }
         }
         return con;
     }
 
+    /**
+     * 从路由后的数据源获得实际连接，并切换到目标数据库
+     *
+     * @param dalDataSource 数据源
+     * @param name          当前的dsKey
+     * @param autoCommit    是否autoCommit，非autoCommit时不使用slave
+     * @return 实际连接
+     */
+    static Connection openConnection(HaloDALDataSource dalDataSource, String name, boolean autoCommit) {
+        long deadline = DALScope.current().getEffectiveDeadline(name);
+        if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+            throw new DALTimeoutException("deadline exceeded before get connection of dsKey[" + name + "]");
+        }
+        HaloDataSourceProxy proxy = dalDataSource.getCurrentDataSourceProxy(autoCommit);
+        Connection con = null;
+        try {
+            con = proxy.getConnection();
+            // sql中使用 db.table 时不需要切换数据库，连接已经在目标数据库时也不需要切换
+            if (proxy.getDb() != null && !HaloConfig.getInstance().isQualifyTableWithDb()
+                    && !proxy.getDb().equals(con.getCatalog())) {
+                con.setCatalog(proxy.getDb());
+                if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
+                    LogFactory.getLog(DALConnection.class).info("change schema to " + proxy.getDb());
+                }
+            }
+            return con;
+        } catch (DALRejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            closeQuietly(con);
+            throw new DALRunTimeException("master[" + proxy.getMaster() + "] slave[" + proxy.getSlave() + "]", e);
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            LogFactory.getLog(DALConnection.class).warn("close connection error", e);
+        }
+    }
+
     /**
      * 是否当前有可用的真实数据库链接
      *
@@ -165,34 +302,45 @@ public class DALConnection implements Connection {
      */
     private boolean hasCurrentConnection() {
         String name = DALStatus.getDsKey();
-        return !(name == null || name.length() == 0) && this.conMap.containsKey(name);
+        return !(name == null || name.length() == 0) && this.getOpenedConnection(name) != null;
     }
 
-    private void initCurrentConnection(Connection con) throws SQLException {
-        for (Map<String, Object> map : this.methodInvokedList) {
-            int methodIndex = (Integer) map.get("method_index");
-            Object[] args = (Object[]) map.get("args");
-            this.invoke(con, methodIndex, args);
+    private Connection getOpenedConnection(String name) {
+        if (this.conMap != null) {
+            return this.conMap.get(name);
+        }
+        if (this.firstCon != null && this.firstDsKey.equals(name)) {
+            return this.firstCon;
         }
+        return null;
     }
 
-    private void invoke(Connection con, int methodIndex, Object[] args) throws SQLException {
-        switch (methodIndex) {
-            case METHODINDEX_SETAUTOCOMMIT: {
-                boolean autoCommit = (Boolean) args[0];
-                con.setAutoCommit(autoCommit);
-                break;
-            }
-            case METHODINDEX_SETREADONLY: {
-                con.setReadOnly((Boolean) args[0]);
-                break;
-            }
-            case METHODINDEX_SETTRANSACTIONISOLATION: {
-                con.setTransactionIsolation((Integer) args[0]);
-                break;
-            }
-            default:
-                throw new RuntimeException("unsupported methodIndex:" + methodIndex);
+    private void putConnection(String name, Connection con) {
+        if (this.firstCon == null) {
+            this.firstDsKey = name;
+            this.firstCon = con;
+            return;
+        }
+        if (this.conMap == null) {
+            this.conMap = new LinkedHashMap<>();
+            this.conMap.put(this.firstDsKey, this.firstCon);
+        }
+        this.conMap.put(name, con);
+    }
+
+    /**
+     * 把打开实际连接之前的设置应用到实际连接.
+     * autoCommit与连接当前状态相同时不再设置，从连接池获得的连接通常已经是autoCommit，可以减少一次数据库交互
+     */
+    private void initCurrentConnection(Connection con) throws SQLException {
+        if (this.transactionIsolationSet) {
+            con.setTransactionIsolation(this.transactionIsolation);
+        }
+        if (this.readOnlySet) {
+            con.setReadOnly(this.readOnly);
+        }
+        if (con.getAutoCommit() != this.autoCommit) {
+            con.setAutoCommit(this.autoCommit);
         }
     }
 
@@ -209,6 +357,99 @@ public class DALConnection implements Connection {
                 resultSetConcurrency, resultSetHoldability);
     }
 
+    /**
+     * @return true:已经调用 setAutoCommit(false) 开始事务
+     */
+    public boolean isInTransaction() {
+        return !this.autoCommit;
+    }
+
+    /**
+     * 获得事务中已经读取的实体
+     *
+     * @param clazz 实体类型
+     * @param key   实体的key
+     * @return 没有读取过时返回null
+     */
+    public Object getIdentity(Class<?> clazz, EntityCacheKey key) {
+        if (this.identityMap == null) {
+            return null;
+        }
+        Map<EntityCacheKey, Object> map = this.identityMap.get(clazz);
+        if (map == null) {
+            return null;
+        }
+        return map.get(key);
+    }
+
+    /**
+     * 记录事务中读取的实体，不在事务中时不记录
+     *
+     * @param clazz  实体类型
+     * @param key    实体的key
+     * @param entity 实体
+     */
+    public void putIdentity(Class<?> clazz, EntityCacheKey key, Object entity) {
+        if (this.autoCommit) {
+            return;
+        }
+        if (this.identityMap == null) {
+            this.identityMap = new HashMap<>();
+        }
+        Map<EntityCacheKey, Object> map = this.identityMap.get(clazz);
+        if (map == null) {
+            map = new HashMap<>();
+            this.identityMap.put(clazz, map);
+        }
+        map.put(key, entity);
+    }
+
+    /**
+     * @param clazz 实体类型
+     * @return 是否记录过此类型的实体
+     */
+    public boolean hasIdentities(Class<?> clazz) {
+        return this.identityMap != null && this.identityMap.containsKey(clazz);
+    }
+
+    public void removeIdentity(Class<?> clazz, EntityCacheKey key) {
+        if (this.identityMap == null) {
+            return;
+        }
+        Map<EntityCacheKey, Object> map = this.identityMap.get(clazz);
+        if (map != null) {
+            map.remove(key);
+        }
+    }
+
+    /**
+     * 无法确定影响哪些数据的写操作使用
+     *
+     * @param clazz 实体类型
+     */
+    public void removeIdentities(Class<?> clazz) {
+        if (this.identityMap != null) {
+            this.identityMap.remove(clazz);
+        }
+    }
+
+    /**
+     * 登记事务提交成功后执行的任务，rollback或者close时丢弃，不在事务中时不登记
+     *
+     * @param task 任务，异常只记录日志
+     * @return false:不在事务中
+     */
+    public boolean afterCommit(Runnable task) {
+        if (this.autoCommit) {
+            return false;
+        }
+        if (this.afterCommitTasks == null) {
+            this.afterCommitTasks = new ArrayList<>();
+        }
+        this.afterCommitTasks.add(task);
+        return true;
+    }
+
     public boolean getAutoCommit() throws SQLException {
         if (this.hasCurrentConnection()) {
             return this.getCurrentConnection().getAutoCommit();
@@ -220,8 +461,6 @@ public class DALConnection implements Connection {
         this.autoCommit = autoCommit;
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setAutoCommit(autoCommit);
-        } else {
-            this.addInvoke(METHODINDEX_SETAUTOCOMMIT, new Object[]{autoCommit});
         }
         if (!this.autoCommit && DALConnectionListenerFactory.hasListener()) {
             for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
@@ -254,7 +493,7 @@ public class DALConnection implements Connection {
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setTransactionIsolation(level);
         } else {
-            this.addInvoke(METHODINDEX_SETTRANSACTIONISOLATION, new Object[]{level});
+            this.transactionIsolationSet = true;
         }
     }
 
@@ -289,7 +528,7 @@ public class DALConnection implements Connection {
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setReadOnly(readOnly);
         } else {
-            this.addInvoke(METHODINDEX_SETREADONLY, new Object[]{readOnly});
+            this.readOnlySet = true;
         }
     }
 
@@ -318,44 +557,75 @@ public class DALConnection implements Connection {
     }
 
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql);
+        return this.track(this.getCurrentConnection().prepareStatement(sql));
     }
 
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
             throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql,
-                autoGeneratedKeys);
+        return this.track(this.getCurrentConnection().prepareStatement(sql,
+                autoGeneratedKeys));
     }
 
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
             throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql, columnIndexes);
+        return this.track(this.getCurrentConnection().prepareStatement(sql, columnIndexes));
     }
 
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
             throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql, columnNames);
+        return this.track(this.getCurrentConnection().prepareStatement(sql, columnNames));
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency) throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql, resultSetType,
-                resultSetConcurrency);
+        return this.track(this.getCurrentConnection().prepareStatement(sql, resultSetType,
+                resultSetConcurrency));
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
-        return this.getCurrentConnection().prepareStatement(sql, resultSetType,
-                resultSetConcurrency, resultSetHoldability);
+        return this.track(this.getCurrentConnection().prepareStatement(sql, resultSetType,
+                resultSetConcurrency, resultSetHoldability));
+    }
+
+    /**
+     * 当前操作设置了取消句柄时，登记statement.<br>
+     * 有期限时把剩余时间设置为statement的queryTimeout，并在到达期限时取消statement
+     */
+    private PreparedStatement track(PreparedStatement ps) throws SQLException {
+        DALScope scope = DALScope.current();
+        long deadline = scope.getEffectiveDeadline(DALStatus.getDsKey());
+        if (deadline > 0) {
+            long remain = deadline - System.currentTimeMillis();
+            if (remain <= 0) {
+                ps.close();
+                throw new DALTimeoutException("deadline exceeded before execute sql");
+            }
+            // queryTimeout的单位是秒，精确的期限由定时取消保证
+            ps.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remain + 999) / 1000));
+            DALCancelHandle deadlineHandle = new DALCancelHandle();
+            deadlineHandle.register(ps);
+            deadlineHandle.cancelAfter(remain);
+            scope.setDeadlineHandle(deadlineHandle);
+        }
+        DALCancelHandle cancelHandle = scope.getCancelHandle();
+        if (cancelHandle != null) {
+            try {
+                cancelHandle.register(ps);
+            } catch (SQLException e) {
+                ps.close();
+                throw e;
+            }
+        }
+        return ps;
     }
 
     public void rollback() throws SQLException {
-        Set<Map.Entry<String, Connection>> set = this.conMap.entrySet();
+        this.identityMap = null;
+        this.afterCommitTasks = null;
         try {
-            for (Map.Entry<String, Connection> e : set) {
-                e.getValue().rollback();
-            }
+            this.complete(ROLLBACK);
         } finally {
             DALStatus.remove();
             if (DALConnectionListenerFactory.hasListener()) {
@@ -17,6 +17,10 @@ public class DALContext {
 
     private Map<String, Object> paramMap = new HashMap<String, Object>();
 
+    private long maxStaleness = -1;
+
+    private long deadline;
+
     public static DALContext create() {
         return new DALContext();
     }
@@ -92,6 +96,42 @@ public class DALContext {
         this.enableSlave = enableSlave;
     }
 
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * 设置slave允许的最大复制延迟，没有符合条件的slave时使用master
+     *
+     * @param maxStaleness 单位毫秒，小于0为不限制
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * 设置本次操作的期限，超过期限时取消正在执行的sql，已经超过期限时不再执行.
+     * 操作中通过 {@link DALSnapshot} 在其他线程执行的子查询使用同一个期限
+     *
+     * @param deadline System.currentTimeMillis() 的时间点，0为不限制
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * 设置本次操作从现在开始的超时时间
+     *
+     * @param timeoutMillis 单位毫秒
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
     /**
      * getter
      *
@@ -0,0 +1,157 @@
+package halo.query.dal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 传递分区上下文的任务与线程池包装工具.<br>
+ * 包装时获取提交任务线程的 {@link DALSnapshot}，任务运行时设置到运行线程，运行结束后恢复运行线程原来的状态
+ */
+public class DALExecutors {
+
+    private DALExecutors() {
+    }
+
+    /**
+     * 包装任务，使用当前线程的分区上下文
+     *
+     * @param task 任务
+     * @return 包装后的任务
+     */
+    public static Runnable wrap(Runnable task) {
+        return DALSnapshot.capture().wrap(task);
+    }
+
+    /**
+     * 包装任务，使用当前线程的分区上下文
+     *
+     * @param task 任务
+     * @param <V>  返回值泛型
+     * @return 包装后的任务
+     */
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        return DALSnapshot.capture().wrap(task);
+    }
+
+    /**
+     * 包装Executor，提交的任务会使用提交线程的分区上下文
+     *
+     * @param executor executor
+     * @return 包装后的executor
+     */
+    public static Executor wrap(final Executor executor) {
+        if (executor instanceof DALExecutorService) {
+            return executor;
+        }
+        if (executor instanceof ExecutorService) {
+            return wrap((ExecutorService) executor);
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    /**
+     * 包装ExecutorService，提交的任务会使用提交线程的分区上下文
+     *
+     * @param executorService executorService
+     * @return 包装后的executorService
+     */
+    public static ExecutorService wrap(ExecutorService executorService) {
+        if (executorService instanceof DALExecutorService) {
+            return executorService;
+        }
+        return new DALExecutorService(executorService);
+    }
+
+    private static <V> List<Callable<V>> wrapAll(Collection<? extends Callable<V>> tasks) {
+        DALSnapshot snapshot = DALSnapshot.capture();
+        List<Callable<V>> list = new ArrayList<>(tasks.size());
+        for (Callable<V> task : tasks) {
+            list.add(snapshot.wrap(task));
+        }
+        return list;
+    }
+
+    private static class DALExecutorService implements ExecutorService {
+
+        private final ExecutorService executorService;
+
+        DALExecutorService(ExecutorService executorService) {
+            this.executorService = executorService;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            this.executorService.execute(wrap(command));
+        }
+
+        @Override
+        public void shutdown() {
+            this.executorService.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return this.executorService.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.executorService.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.executorService.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return this.executorService.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            return this.executorService.submit(wrap(task));
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return this.executorService.submit(wrap(task), result);
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return this.executorService.submit(wrap(task));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+            return this.executorService.invokeAll(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return this.executorService.invokeAll(wrapAll(tasks), timeout, unit);
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException,
+                ExecutionException {
+            return this.executorService.invokeAny(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return this.executorService.invokeAny(wrapAll(tasks), timeout, unit);
+        }
+    }
+}
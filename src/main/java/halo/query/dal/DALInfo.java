@@ -102,4 +102,17 @@ public class DALInfo {
     public String getRealTable(Class<?> cls) {
         return tableMap.get(cls.getName());
     }
+
+    /**
+     * 复制当前对象，用于跨线程传递分区信息
+     *
+     * @return 新的对象
+     */
+    public DALInfo copy() {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.tableMap.putAll(this.tableMap);
+        dalInfo.dsKey = this.dsKey;
+        dalInfo.specify = this.specify;
+        return dalInfo;
+    }
 }
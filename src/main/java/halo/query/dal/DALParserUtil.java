@@ -1,5 +1,6 @@
 package halo.query.dal;
 
+import halo.query.HaloConfig;
 import halo.query.mapping.EntityTableInfo;
 import halo.query.mapping.EntityTableInfoFactory;
 
@@ -20,6 +21,7 @@ public class DALParserUtil {
      * @param paramMap  需要的参数
      */
     public static void process(Class clazz, DALParser dalParser, Map<String, Object> paramMap) {
+        DALScope.current().setDefaultTimeoutMillis(HaloConfig.getInstance().getEntityTimeoutMillis(clazz));
         DALInfo dalInfo = DALStatus.getDalInfo();
         if (dalInfo != null && dalInfo.isSpecify()) {
             return;
@@ -83,7 +85,7 @@ public class DALParserUtil {
      * @return 解析后的路由数据
      */
     public static DALInfo process(Class clazz, DALParser dalParser) {
-        process(clazz, dalParser, DALStatus.getParamMap());
+        process(clazz, dalParser, DALScope.current().paramMap());
         return DALStatus.getDalInfo();
     }
 }
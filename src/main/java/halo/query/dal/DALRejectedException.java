@@ -0,0 +1,12 @@
+package halo.query.dal;
+
+/**
+ * 数据源同时使用的连接数量超过 {@link HaloConcurrencyLimiter} 的上限，
+ * 或者slave不可用时使用master的连接数量超过 maxMasterFallback 并且没有可以降级的slave时抛出的异常
+ */
+public class DALRejectedException extends DALRunTimeException {
+
+    public DALRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,337 @@
+package halo.query.dal;
+
+import halo.query.HaloConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 线程内的分区上下文，包括分区解析参数、slave设置、dalInfo、当前DALConnection等.<br>
+ * 每个线程只持有一个对象，释放时在原对象上重置字段，不会重新分配对象.<br>
+ * 可以通过 try-with-resources 的方式使用，open 时保存之前的设置，close 时恢复，可以嵌套使用:
+ * <pre>
+ * try (DALScope scope = DALScope.open()) {
+ *     scope.addParam("userId", 1);
+ *     query.objById(User.class, 1);
+ * }
+ * </pre>
+ */
+public final class DALScope implements AutoCloseable {
+
+    private static final ThreadLocal<DALScope> scopeTL = new ThreadLocal<DALScope>() {
+        @Override
+        protected DALScope initialValue() {
+            return new DALScope();
+        }
+    };
+
+    /**
+     * 分区解析参数，重复使用，释放时只清空
+     */
+    private final Map<String, Object> paramMap = new HashMap<>();
+
+    /**
+     * 是否设置过slave状态
+     */
+    private boolean slaveModeSet;
+
+    private boolean slaveMode;
+
+    private DALInfo dalInfo;
+
+    private String slaveDsKey;
+
+    private DALConnection dalConnection;
+
+    /**
+     * 全局使用slave模式,需要调用主动清除
+     */
+    private boolean globalSlave;
+
+    /**
+     * slave允许的最大复制延迟，单位毫秒，小于0为不限制
+     */
+    private long maxStaleness = -1;
+
+    /**
+     * read-your-writes 会话，需要主动清除
+     */
+    private DALSession session;
+
+    /**
+     * 本次操作的取消句柄
+     */
+    private DALCancelHandle cancelHandle;
+
+    /**
+     * 本次操作的期限，System.currentTimeMillis() 的时间点，0为不限制
+     */
+    private long deadline;
+
+    /**
+     * 操作的实体类设置的默认超时时间，单位毫秒，没有设置期限时使用
+     */
+    private long defaultTimeoutMillis;
+
+    /**
+     * 到达期限时取消当前statement的句柄，sql执行完成后解除
+     */
+    private DALCancelHandle deadlineHandle;
+
+    /**
+     * 本次操作是不在事务中的单条sql，{@link HaloDALDataSource#getConnection()} 可以直接返回路由后的实际连接
+     */
+    private boolean directStatement;
+
+    /**
+     * open 之前的设置，close 时恢复
+     */
+    private DALScope saved;
+
+    private DALScope() {
+    }
+
+    /**
+     * 获得当前线程的上下文
+     *
+     * @return 当前线程的上下文
+     */
+    public static DALScope current() {
+        return scopeTL.get();
+    }
+
+    /**
+     * 开启当前线程的上下文，保存当前的设置后清除本次操作的路由信息(全局slave设置、会话与当前DALConnection保留)，
+     * 在 close 时恢复保存的设置
+     *
+     * @return 当前线程的上下文
+     */
+    public static DALScope open() {
+        DALScope scope = scopeTL.get();
+        DALScope saved = new DALScope();
+        saved.copyFrom(scope);
+        saved.saved = scope.saved;
+        scope.saved = saved;
+        scope.reset();
+        return scope;
+    }
+
+    private void copyFrom(DALScope scope) {
+        if (!this.paramMap.isEmpty()) {
+            this.paramMap.clear();
+        }
+        this.paramMap.putAll(scope.paramMap);
+        this.slaveModeSet = scope.slaveModeSet;
+        this.slaveMode = scope.slaveMode;
+        this.dalInfo = scope.dalInfo;
+        this.slaveDsKey = scope.slaveDsKey;
+        this.globalSlave = scope.globalSlave;
+        this.maxStaleness = scope.maxStaleness;
+        this.session = scope.session;
+        this.cancelHandle = scope.cancelHandle;
+        this.deadline = scope.deadline;
+        this.defaultTimeoutMillis = scope.defaultTimeoutMillis;
+        this.directStatement = scope.directStatement;
+    }
+
+    public boolean hasParam() {
+        return !this.paramMap.isEmpty();
+    }
+
+    public void addParam(String key, Object value) {
+        this.paramMap.put(key, value);
+    }
+
+    public void addParamMap(Map<String, Object> map) {
+        this.paramMap.putAll(map);
+    }
+
+    /**
+     * 获得分区解析参数的副本
+     *
+     * @return 没有参数时返回null
+     */
+    public Map<String, Object> getParamMap() {
+        if (this.paramMap.isEmpty()) {
+            return null;
+        }
+        return new HashMap<>(this.paramMap);
+    }
+
+    /**
+     * 获得分区解析参数，返回的map会被重复使用，只在解析路由时读取
+     *
+     * @return 没有参数时返回null
+     */
+    Map<String, Object> paramMap() {
+        if (this.paramMap.isEmpty()) {
+            return null;
+        }
+        return this.paramMap;
+    }
+
+    public boolean isSlaveModeSet() {
+        return slaveModeSet;
+    }
+
+    public boolean isSlaveMode() {
+        return slaveMode;
+    }
+
+    public void setSlaveMode(boolean slaveMode) {
+        this.slaveModeSet = true;
+        this.slaveMode = slaveMode;
+    }
+
+    public void clearSlaveMode() {
+        this.slaveModeSet = false;
+        this.slaveMode = false;
+    }
+
+    public DALInfo getDalInfo() {
+        return dalInfo;
+    }
+
+    public void setDalInfo(DALInfo dalInfo) {
+        this.dalInfo = dalInfo;
+    }
+
+    public String getSlaveDsKey() {
+        return slaveDsKey;
+    }
+
+    public void setSlaveDsKey(String slaveDsKey) {
+        this.slaveDsKey = slaveDsKey;
+    }
+
+    public DALConnection getDalConnection() {
+        return dalConnection;
+    }
+
+    void setDalConnection(DALConnection dalConnection) {
+        this.dalConnection = dalConnection;
+    }
+
+    boolean isDirectStatement() {
+        return directStatement;
+    }
+
+    void setDirectStatement(boolean directStatement) {
+        this.directStatement = directStatement;
+    }
+
+    public boolean isGlobalSlave() {
+        return globalSlave;
+    }
+
+    public void setGlobalSlave(boolean globalSlave) {
+        this.globalSlave = globalSlave;
+    }
+
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    public DALSession getSession() {
+        return session;
+    }
+
+    public void setSession(DALSession session) {
+        this.session = session;
+    }
+
+    public DALCancelHandle getCancelHandle() {
+        return cancelHandle;
+    }
+
+    public void setCancelHandle(DALCancelHandle cancelHandle) {
+        this.cancelHandle = cancelHandle;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    /**
+     * 获得对dsKey执行操作的期限，没有设置期限时使用实体类或者dsKey的默认超时时间从现在开始计算
+     *
+     * @param dsKey 数据源key
+     * @return System.currentTimeMillis() 的时间点，0为不限制
+     */
+    long getEffectiveDeadline(String dsKey) {
+        if (this.deadline > 0) {
+            return this.deadline;
+        }
+        long timeoutMillis = this.defaultTimeoutMillis;
+        if (timeoutMillis <= 0) {
+            timeoutMillis = HaloConfig.getInstance().getTimeoutMillis(dsKey);
+        }
+        if (timeoutMillis <= 0) {
+            return 0;
+        }
+        return System.currentTimeMillis() + timeoutMillis;
+    }
+
+    void setDeadlineHandle(DALCancelHandle deadlineHandle) {
+        this.releaseDeadlineHandle();
+        this.deadlineHandle = deadlineHandle;
+    }
+
+    /**
+     * 解除到达期限时的取消，sql执行完成或者连接归还连接池之前调用
+     */
+    void releaseDeadlineHandle() {
+        if (this.deadlineHandle != null) {
+            this.deadlineHandle.release();
+            this.deadlineHandle = null;
+        }
+    }
+
+    /**
+     * 重置本次sql操作的路由信息，不包括当前DALConnection、全局slave设置与会话
+     */
+    public void reset() {
+        if (!this.paramMap.isEmpty()) {
+            this.paramMap.clear();
+        }
+        this.slaveModeSet = false;
+        this.slaveMode = false;
+        this.slaveDsKey = null;
+        this.dalInfo = null;
+        this.maxStaleness = -1;
+        this.cancelHandle = null;
+        this.deadline = 0;
+        this.defaultTimeoutMillis = 0;
+        this.directStatement = false;
+        this.releaseDeadlineHandle();
+    }
+
+    /**
+     * 恢复 open 时保存的设置，没有通过 open 开启时重置所有信息，包括全局slave设置与会话
+     */
+    @Override
+    public void close() {
+        DALScope saved = this.saved;
+        if (saved == null) {
+            this.reset();
+            this.globalSlave = false;
+            this.session = null;
+            return;
+        }
+        this.releaseDeadlineHandle();
+        this.copyFrom(saved);
+        this.saved = saved.saved;
+    }
+}
@@ -0,0 +1,58 @@
+package halo.query.dal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * read-your-writes 会话。绑定到线程后({@link DALStatus#setSession(DALSession)})，会话中对某个master dsKey写入后的
+ * windowMillis 毫秒内，会话中对该dsKey的slave读请求会使用master.<br>
+ * 会话对象是线程安全的，可以保存在用户的http session等地方，在多个请求、多个线程之间共享
+ */
+public final class DALSession {
+
+    private final long windowNanos;
+
+    /**
+     * master dsKey与最后写入时间的对应
+     */
+    private final ConcurrentHashMap<String, Long> lastWriteMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param windowMillis 写入后读请求使用master的时间，单位毫秒，应该大于正常的复制延迟
+     */
+    public DALSession(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * 记录对dsKey的写入
+     *
+     * @param dsKey master dsKey
+     */
+    public void onWrite(String dsKey) {
+        if (dsKey != null) {
+            this.lastWriteMap.put(dsKey, System.nanoTime());
+        }
+    }
+
+    /**
+     * 是否在时间窗口内写入过dsKey
+     *
+     * @param dsKey master dsKey
+     * @return true:读请求需要使用master
+     */
+    public boolean isRecentlyWritten(String dsKey) {
+        if (dsKey == null) {
+            return false;
+        }
+        Long time = this.lastWriteMap.get(dsKey);
+        if (time == null) {
+            return false;
+        }
+        if (System.nanoTime() - time < this.windowNanos) {
+            return true;
+        }
+        this.lastWriteMap.remove(dsKey, time);
+        return false;
+    }
+}
@@ -0,0 +1,211 @@
+package halo.query.dal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 分区上下文的不可变快照，用于把当前线程的路由信息(dalInfo、slave设置、分区参数、最大复制延迟、期限、会话)传递到其他线程.<br>
+ * 快照不包含当前线程的DALConnection，其他线程会使用自己的连接.<br>
+ * 使用方式:
+ * <pre>
+ * DALSnapshot snapshot = DALStatus.capture();
+ * executor.execute(() -&gt; {
+ *     DALSnapshot prev = snapshot.apply();
+ *     try {
+ *         query.objById(User.class, 1);
+ *     } finally {
+ *         prev.apply();
+ *     }
+ * });
+ * </pre>
+ * 也可以直接使用 {@link DALExecutors} 进行包装
+ */
+public final class DALSnapshot {
+
+    /**
+     * 没有任何路由信息的快照
+     */
+    public static final DALSnapshot EMPTY = new DALSnapshot(null, null, false, false, null, false, -1, 0, null, null);
+
+    private final Map<String, Object> paramMap;
+
+    private final DALInfo dalInfo;
+
+    private final boolean slaveModeSet;
+
+    private final boolean slaveMode;
+
+    private final String slaveDsKey;
+
+    private final boolean globalSlave;
+
+    private final long maxStaleness;
+
+    /**
+     * 期限是时间点，其他线程中的子查询使用剩余的时间
+     */
+    private final long deadline;
+
+    /**
+     * 会话是线程安全的，快照中共享同一个对象
+     */
+    private final DALSession session;
+
+    /**
+     * 只有在 {@link #apply()} 返回的快照中才会有值，用于恢复线程原来的状态
+     */
+    private final DALConnection dalConnection;
+
+    private DALSnapshot(Map<String, Object> paramMap, DALInfo dalInfo, boolean slaveModeSet, boolean slaveMode,
+                        String slaveDsKey, boolean globalSlave, long maxStaleness, long deadline, DALSession session,
+                        DALConnection dalConnection) {
+        this.paramMap = paramMap;
+        this.dalInfo = dalInfo;
+        this.slaveModeSet = slaveModeSet;
+        this.slaveMode = slaveMode;
+        this.slaveDsKey = slaveDsKey;
+        this.globalSlave = globalSlave;
+        this.maxStaleness = maxStaleness;
+        this.deadline = deadline;
+        this.session = session;
+        this.dalConnection = dalConnection;
+    }
+
+    /**
+     * 获得当前线程分区上下文的快照
+     *
+     * @return 快照，当前线程没有路由信息时返回 {@link #EMPTY}
+     */
+    public static DALSnapshot capture() {
+        return create(DALScope.current(), false);
+    }
+
+    private static DALSnapshot create(DALScope scope, boolean withConnection) {
+        DALConnection con = withConnection ? scope.getDalConnection() : null;
+        if (!scope.hasParam() && scope.getDalInfo() == null && !scope.isSlaveModeSet()
+                && scope.getSlaveDsKey() == null && !scope.isGlobalSlave() && scope.getMaxStaleness() < 0
+                && scope.getDeadline() == 0 && scope.getSession() == null && con == null) {
+            return EMPTY;
+        }
+        Map<String, Object> map = null;
+        if (scope.hasParam()) {
+            map = Collections.unmodifiableMap(scope.getParamMap());
+        }
+        DALInfo info = null;
+        if (scope.getDalInfo() != null) {
+            info = scope.getDalInfo().copy();
+        }
+        return new DALSnapshot(map, info, scope.isSlaveModeSet(), scope.isSlaveMode(), scope.getSlaveDsKey(),
+                scope.isGlobalSlave(), scope.getMaxStaleness(), scope.getDeadline(), scope.getSession(), con);
+    }
+
+    /**
+     * 把快照设置到当前线程，当前线程原有的路由信息会被替换
+     *
+     * @return 当前线程原来的状态，使用完成后需要调用其 apply() 进行恢复
+     */
+    public DALSnapshot apply() {
+        DALScope scope = DALScope.current();
+        DALSnapshot prev = create(scope, true);
+        scope.reset();
+        if (this.paramMap != null) {
+            scope.addParamMap(this.paramMap);
+        }
+        if (this.dalInfo != null) {
+            // 每次使用都复制一份，避免多个线程修改同一个DALInfo
+            scope.setDalInfo(this.dalInfo.copy());
+        }
+        if (this.slaveModeSet) {
+            scope.setSlaveMode(this.slaveMode);
+        }
+        scope.setSlaveDsKey(this.slaveDsKey);
+        scope.setGlobalSlave(this.globalSlave);
+        scope.setMaxStaleness(this.maxStaleness);
+        scope.setDeadline(this.deadline);
+        scope.setSession(this.session);
+        scope.setDalConnection(this.dalConnection);
+        return prev;
+    }
+
+    /**
+     * 获得分区参数
+     *
+     * @return 不可修改的map，没有参数时返回null
+     */
+    public Map<String, Object> getParamMap() {
+        return paramMap;
+    }
+
+    public DALInfo getDalInfo() {
+        if (this.dalInfo == null) {
+            return null;
+        }
+        return this.dalInfo.copy();
+    }
+
+    public boolean isSlaveMode() {
+        return slaveMode;
+    }
+
+    public String getSlaveDsKey() {
+        return slaveDsKey;
+    }
+
+    public boolean isGlobalSlave() {
+        return globalSlave;
+    }
+
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public DALSession getSession() {
+        return session;
+    }
+
+    /**
+     * 包装任务，任务运行时使用此快照的路由信息，运行结束后恢复线程原来的状态
+     *
+     * @param task 任务
+     * @return 包装后的任务
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                DALSnapshot prev = apply();
+                try {
+                    task.run();
+                } finally {
+                    prev.apply();
+                }
+            }
+        };
+    }
+
+    /**
+     * 包装任务，任务运行时使用此快照的路由信息，运行结束后恢复线程原来的状态
+     *
+     * @param task 任务
+     * @param <V>  返回值泛型
+     * @return 包装后的任务
+     */
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                DALSnapshot prev = apply();
+                try {
+                    return task.call();
+                } finally {
+                    prev.apply();
+                }
+            }
+        };
+    }
+}
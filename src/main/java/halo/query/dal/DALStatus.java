@@ -1,30 +1,14 @@
 package halo.query.dal;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
- * 此类操作当前状态，包括数据源key，用户自定义信息
+ * 此类操作当前状态，包括数据源key，用户自定义信息。状态存储在 {@link DALScope} 中
  *
  * @author akwei
  */
 public class DALStatus {
 
-    private static final ThreadLocal<Map<String, Object>> dalParserParametersTL = new ThreadLocal<>();
-
-    private static final ThreadLocal<Boolean> mslbStatusThreadLocal = new ThreadLocal<>();
-
-    private static final ThreadLocal<DALInfo> dalInfoTL = new ThreadLocal<>();
-
-    private static final ThreadLocal<String> msDsKeyTL = new ThreadLocal<>();
-
-    private static final ThreadLocal<DALConnection> currentDALConTL = new ThreadLocal<>();
-
-    /**
-     * 全局使用slave模式,需要调用主动清除
-     */
-    private static final ThreadLocal<Boolean> globalSlaveTL = new ThreadLocal<>();
-
     private DALStatus() {
     }
 
@@ -34,7 +18,7 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasDALParam() {
-        return dalParserParametersTL.get() != null;
+        return DALScope.current().hasParam();
     }
 
     /**
@@ -43,7 +27,7 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasDALInfo() {
-        return dalInfoTL.get() != null;
+        return DALScope.current().getDalInfo() != null;
     }
 
     /**
@@ -52,7 +36,7 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasMsDsKey() {
-        return msDsKeyTL.get() != null;
+        return DALScope.current().getSlaveDsKey() != null;
     }
 
     /**
@@ -61,7 +45,7 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasCurrentDALCon() {
-        return currentDALConTL.get() != null;
+        return DALScope.current().getDalConnection() != null;
     }
 
     /**
@@ -70,7 +54,7 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasGlobalSlave() {
-        return globalSlaveTL.get() != null;
+        return DALScope.current().isGlobalSlave();
     }
 
     /**
@@ -79,12 +63,12 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasMslbStatus() {
-        return mslbStatusThreadLocal.get() != null;
+        return DALScope.current().isSlaveModeSet();
     }
 
     public static String getDsKey() {
         String key = null;
-        DALInfo dalInfo = DALStatus.getDalInfo();
+        DALInfo dalInfo = DALScope.current().getDalInfo();
         if (dalInfo != null) {
             key = dalInfo.getDsKey();
         }
@@ -106,7 +90,7 @@ public class DALStatus {
      * 设置全局启用slave模式,此设置不会跟随Connection关闭而释放,需要手动释放
      */
     public static void setGlobalSlaveMode() {
-        globalSlaveTL.set(true);
+        DALScope.current().setGlobalSlave(true);
     }
 
     /**
@@ -115,60 +99,47 @@ public class DALStatus {
      * @return true:开启了全局slave,所有查询可以走slave数据源
      */
     public static boolean isEnableGlobalSlaveMode() {
-        Boolean bool = globalSlaveTL.get();
-        if (bool == null) {
-            return false;
-        }
-        return bool;
+        return DALScope.current().isGlobalSlave();
     }
 
     public static void clearGlobalSlaveMode() {
-        globalSlaveTL.remove();
+        DALScope.current().setGlobalSlave(false);
     }
 
     public static void setSlaveDsKey(String dsKey) {
-        msDsKeyTL.set(dsKey);
+        DALScope.current().setSlaveDsKey(dsKey);
     }
 
     public static String getSlaveDsKey() {
-        return msDsKeyTL.get();
-    }
-
-    private static void setParamMap(Map<String, Object> map) {
-        dalParserParametersTL.set(map);
+        return DALScope.current().getSlaveDsKey();
     }
 
     public static void addParam(String key, Object value) {
-        Map<String, Object> map = dalParserParametersTL.get();
-        if (map == null) {
-            map = new HashMap<>();
-            dalParserParametersTL.set(map);
-        }
-        map.put(key, value);
+        DALScope.current().addParam(key, value);
     }
 
     public static void addParamMap(Map<String, Object> paramMap) {
-        Map<String, Object> map = dalParserParametersTL.get();
-        if (map == null) {
-            map = new HashMap<>();
-            dalParserParametersTL.set(map);
-        }
-        map.putAll(paramMap);
+        DALScope.current().addParamMap(paramMap);
     }
 
+    /**
+     * 获得分区解析参数
+     *
+     * @return 没有参数时返回null
+     */
     public static Map<String, Object> getParamMap() {
-        return dalParserParametersTL.get();
+        return DALScope.current().getParamMap();
     }
 
     /**
      * 设置开启slave模式
      */
     public static void setSlaveMode() {
-        mslbStatusThreadLocal.set(true);
+        DALScope.current().setSlaveMode(true);
     }
 
     public static void clearSlaveMode() {
-        mslbStatusThreadLocal.remove();
+        DALScope.current().clearSlaveMode();
     }
 
     /**
@@ -177,9 +148,10 @@ public class DALStatus {
      * @param slaveDsKey null时表示不指定数据源,不为null时表示指定数据源
      */
     public static void setSlaveMode(String slaveDsKey) {
-        setSlaveMode();
+        DALScope scope = DALScope.current();
+        scope.setSlaveMode(true);
         if (slaveDsKey != null) {
-            setSlaveDsKey(slaveDsKey);
+            scope.setSlaveDsKey(slaveDsKey);
         }
     }
 
@@ -189,52 +161,180 @@ public class DALStatus {
      * @return true:支持slave
      */
     public static boolean isEnableSlave() {
-        Boolean bool = isEnableGlobalSlaveMode();
-        if (bool) {
-            return true;
+        DALScope scope = DALScope.current();
+        return scope.isGlobalSlave() || scope.isSlaveMode();
+    }
+
+    /**
+     * 设置本次操作slave允许的最大复制延迟，没有延迟数据或者延迟超过限制的slave不会被选择，
+     * 没有符合条件的slave时使用master，同时受 {@link HaloDALDataSource#setMaxMasterFallback(int)} 限制
+     *
+     * @param maxStaleness 单位毫秒，小于0为不限制
+     * @see HaloSlaveHealthChecker#setMonitorLag(boolean)
+     */
+    public static void setMaxStaleness(long maxStaleness) {
+        DALScope.current().setMaxStaleness(maxStaleness);
+    }
+
+    public static long getMaxStaleness() {
+        return DALScope.current().getMaxStaleness();
+    }
+
+    /**
+     * 设置当前线程的read-your-writes会话，需要调用 {@link #clearSession()} 主动清除
+     *
+     * @param session 会话
+     */
+    public static void setSession(DALSession session) {
+        DALScope.current().setSession(session);
+    }
+
+    public static DALSession getSession() {
+        return DALScope.current().getSession();
+    }
+
+    public static void clearSession() {
+        DALScope.current().setSession(null);
+    }
+
+    /**
+     * 当前线程设置了会话时，获得写操作使用的dsKey
+     *
+     * @return 没有会话时返回null
+     */
+    public static String getSessionDsKey() {
+        if (DALScope.current().getSession() == null) {
+            return null;
         }
-        bool = mslbStatusThreadLocal.get();
-        if (bool == null) {
-            return false;
+        return getDsKey();
+    }
+
+    /**
+     * 记录会话中对dsKey的写操作
+     *
+     * @param dsKey {@link #getSessionDsKey()} 的返回值
+     */
+    public static void markWrite(String dsKey) {
+        DALSession session = DALScope.current().getSession();
+        if (session != null && dsKey != null) {
+            session.onWrite(dsKey);
         }
-        return bool;
+    }
+
+    /**
+     * 设置本次操作的取消句柄，操作中创建的statement会登记到句柄中
+     *
+     * @param cancelHandle 取消句柄
+     */
+    public static void setCancelHandle(DALCancelHandle cancelHandle) {
+        DALScope.current().setCancelHandle(cancelHandle);
+    }
+
+    /**
+     * 设置本次操作的期限，超过期限时取消正在执行的sql，已经超过期限时不再执行.<br>
+     * 在事务中设置时，期限对事务中之后的操作同样有效，直到事务结束
+     *
+     * @param deadline System.currentTimeMillis() 的时间点，0为不限制
+     */
+    public static void setDeadline(long deadline) {
+        DALScope.current().setDeadline(deadline);
+    }
+
+    public static long getDeadline() {
+        return DALScope.current().getDeadline();
+    }
+
+    /**
+     * 设置本次操作从现在开始的超时时间
+     *
+     * @param timeoutMillis 单位毫秒
+     */
+    public static void setTimeout(long timeoutMillis) {
+        DALScope.current().setDeadline(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * sql执行完成后解除到达期限时的取消
+     */
+    public static void afterStatement() {
+        DALScope.current().releaseDeadlineHandle();
     }
 
     public static void setDalInfo(DALInfo dalInfo) {
-        dalInfoTL.set(dalInfo);
+        DALScope.current().setDalInfo(dalInfo);
     }
 
     public static DALInfo getDalInfo() {
-        return dalInfoTL.get();
+        return DALScope.current().getDalInfo();
     }
 
     public static DALConnection getCurrentDALConnection() {
-        return currentDALConTL.get();
+        return DALScope.current().getDalConnection();
+    }
+
+    /**
+     * 当前线程在事务中时，登记事务提交成功后执行的任务.<br>
+     * 用于再次使缓存失效：事务提交之前其他线程读取的仍然是旧数据，可能在第一次失效之后重新放入缓存
+     *
+     * @param task 任务
+     * @return false:不在事务中，没有登记
+     */
+    public static boolean afterCommit(Runnable task) {
+        DALConnection dalConnection = getCurrentDALConnection();
+        return dalConnection != null && dalConnection.afterCommit(task);
     }
 
     static void setCurrentDALConnection(DALConnection dalConnection) {
-        currentDALConTL.set(dalConnection);
+        DALScope.current().setDalConnection(dalConnection);
     }
 
     public static void removeCurrentDALConnection() {
-        currentDALConTL.remove();
+        DALScope.current().setDalConnection(null);
     }
 
     public static void remove() {
-        dalParserParametersTL.remove();
-        mslbStatusThreadLocal.remove();
-        msDsKeyTL.remove();
-        dalInfoTL.remove();
+        DALScope.current().reset();
+    }
+
+    /**
+     * 获得当前线程分区上下文的快照，用于在其他线程中使用相同的路由信息
+     *
+     * @return 不可变的快照
+     * @see DALExecutors
+     */
+    public static DALSnapshot capture() {
+        return DALSnapshot.capture();
+    }
+
+    /**
+     * 开始执行不在事务中的单条sql，{@link HaloDALDataSource#getConnection()} 直接返回路由后的实际连接，
+     * 不创建 {@link DALConnection}。sql执行完成后需要调用 {@link #afterDirectStatement()}
+     */
+    public static void beginDirectStatement() {
+        DALScope scope = DALScope.current();
+        if (scope.getDalConnection() == null) {
+            scope.setDirectStatement(true);
+        }
+    }
+
+    /**
+     * 单条sql执行完成，实际连接已经归还连接池，清除本次操作的路由信息
+     */
+    public static void afterDirectStatement() {
+        DALScope scope = DALScope.current();
+        if (scope.isDirectStatement()) {
+            scope.setDirectStatement(false);
+            processDALConClose();
+        }
     }
 
     /**
      * 如果没有进行有效sql运行直接返回时,需要调用线程变量清除方法
      */
     public static void processDALConClose() {
-        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
-        if (dalConnection == null) {
-            DALStatus.removeCurrentDALConnection();
-            DALStatus.remove();
+        DALScope scope = DALScope.current();
+        if (scope.getDalConnection() == null) {
+            scope.reset();
             //实际数据并没有进行更新,但是需要操作DALConnectionListener#onDALClosed
             //但须需要判断当前是否在一个事务操作里
             if (DALConnectionListenerFactory.hasListener()) {
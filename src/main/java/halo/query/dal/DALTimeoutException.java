@@ -0,0 +1,12 @@
+package halo.query.dal;
+
+/**
+ * 操作超过期限时抛出的异常，期限通过 {@link DALContext#setDeadline(long)}、{@link DALStatus#setDeadline(long)}
+ * 或者 {@link halo.query.HaloConfig} 中的默认超时时间设置
+ */
+public class DALTimeoutException extends DALRunTimeException {
+
+    public DALTimeoutException(String message) {
+        super(message);
+    }
+}
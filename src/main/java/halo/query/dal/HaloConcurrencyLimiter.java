@@ -0,0 +1,153 @@
+package halo.query.dal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据源的并发限制，限制同时使用的连接数量，超过限制时立即抛出 {@link DALRejectedException}，
+ * 避免一个变慢的数据源占用所有请求线程.<br>
+ * 没有设置延迟阈值时为固定上限.
+ * 设置延迟阈值后使用AIMD调整上限：连接使用时间超过阈值或者获取连接失败时上限乘以0.9，
+ * 并发达到上限的一半以上并且使用时间正常时上限加1，上限在 minLimit 与 maxLimit 之间
+ */
+public final class HaloConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final String dsKey;
+
+    private final int maxLimit;
+
+    private final int minLimit;
+
+    /**
+     * 连接使用时间的阈值，单位纳秒，0为固定上限
+     */
+    private final long latencyThresholdNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong rejectCount = new AtomicLong();
+
+    /**
+     * 为了不加锁，并发调整时可能丢失个别调整，对上限影响可以忽略
+     */
+    private volatile int limit;
+
+    /**
+     * 上次减小上限的时间，一个阈值时间内只减小一次，避免一批慢请求把上限降到最小
+     */
+    private volatile long lastBackoffNanos;
+
+    HaloConcurrencyLimiter(String dsKey, int maxLimit, int minLimit, long latencyThresholdNanos) {
+        this.dsKey = dsKey;
+        this.maxLimit = maxLimit;
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.limit = maxLimit;
+        this.lastBackoffNanos = System.nanoTime() - latencyThresholdNanos;
+    }
+
+    /**
+     * 创建固定上限的并发限制，用于数据源之外的场景(例如异步操作的提交)
+     *
+     * @param dsKey 数据源key
+     * @param limit 上限
+     * @return 并发限制
+     */
+    public static HaloConcurrencyLimiter create(String dsKey, int limit) {
+        return new HaloConcurrencyLimiter(dsKey, limit, limit, 0);
+    }
+
+    /**
+     * 获取连接前调用
+     *
+     * @return false:超过上限
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = this.inFlight.get();
+            if (current >= this.limit) {
+                this.rejectCount.incrementAndGet();
+                return false;
+            }
+            if (this.inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 获取许可后没有使用连接时调用，不影响上限
+     */
+    void cancel() {
+        this.inFlight.decrementAndGet();
+    }
+
+    /**
+     * 连接关闭或者获取连接失败时调用
+     *
+     * @param begin   获取连接的开始时间，System.nanoTime()
+     * @param success 是否成功
+     */
+    public void release(long begin, boolean success) {
+        int current = this.inFlight.getAndDecrement();
+        if (this.latencyThresholdNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!success || now - begin > this.latencyThresholdNanos) {
+            if (now - this.lastBackoffNanos >= this.latencyThresholdNanos) {
+                this.lastBackoffNanos = now;
+                this.limit = Math.max(this.minLimit, (int) (this.limit * BACKOFF_RATIO));
+            }
+            return;
+        }
+        int _limit = this.limit;
+        if (current * 2 >= _limit && _limit < this.maxLimit) {
+            this.limit = _limit + 1;
+        }
+    }
+
+    public String getDsKey() {
+        return dsKey;
+    }
+
+    /**
+     * @return 当前上限
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return 是否根据使用时间调整上限
+     */
+    public boolean isAdaptive() {
+        return latencyThresholdNanos > 0;
+    }
+
+    /**
+     * @return 正在使用的连接数量
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 超过上限被拒绝的次数
+     */
+    public long getRejectCount() {
+        return rejectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "dsKey[" + dsKey + "] limit=" + getLimit() + " inFlight=" + getInFlight() + " rejectCount=" +
+                getRejectCount();
+    }
+}
@@ -4,6 +4,7 @@ import java.sql.*;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 /**
  * con 包装类
@@ -15,24 +16,102 @@ public class HaloConnectionWrapper implements Connection {
 
     private HaloDataSourceWrapper dataSourceWrapper;
 
+    /**
+     * 数据源设置了stmtCacheSize并且使用内置连接池时，物理连接的PreparedStatement缓存
+     */
+    private HaloStatementCache statementCache;
+
+    private HaloDataSourceStats stats;
+
+    private long statsBegin;
+
+    private Semaphore permits;
+
+    private HaloConcurrencyLimiter limiter;
+
+    /**
+     * 是否已经通知数据源连接关闭
+     */
+    private boolean released;
+
+    /**
+     * 使用连接时是否出现过异常，连接关闭时作为失败计入统计与并发限制.<br>
+     * 记录连接本身的操作以及缓存的statement执行sql时的异常
+     */
+    private boolean failed;
+
     public HaloConnectionWrapper(Connection con, HaloDataSourceWrapper dataSourceWrapper) {
         this.con = con;
         this.dataSourceWrapper = dataSourceWrapper;
+        if (dataSourceWrapper != null && dataSourceWrapper.getStmtCacheSize() > 0 &&
+                con instanceof HaloPooledConnection) {
+            this.statementCache = ((HaloPooledConnection) con).getStatementCache(dataSourceWrapper
+                    .getStmtCacheSize(), dataSourceWrapper.getStatementCacheStats());
+        }
+    }
+
+    /**
+     * 设置连接所属dsKey的统计，连接关闭时结束计时
+     */
+    void setStats(HaloDataSourceStats stats, long begin) {
+        this.stats = stats;
+        this.statsBegin = begin;
+    }
+
+    /**
+     * 设置连接关闭时需要释放的许可
+     */
+    void setPermits(Semaphore permits) {
+        this.permits = permits;
+    }
+
+    /**
+     * 设置连接关闭时需要释放的并发限制，使用 setStats 的开始时间计算使用时间
+     */
+    void setLimiter(HaloConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * 标记本次使用失败
+     */
+    void markFailed() {
+        this.failed = true;
+    }
+
+    private SQLException failed(SQLException e) {
+        this.failed = true;
+        return e;
     }
 
     @Override
     public Statement createStatement() throws SQLException {
-        return this.con.createStatement();
+        try {
+            return this.con.createStatement();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return this.con.prepareStatement(sql);
+        try {
+            if (this.statementCache != null) {
+                return this.statementCache.prepareStatement(this, sql, HaloStatementCache.Key.NO_KEYS);
+            }
+            return this.con.prepareStatement(sql);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return this.con.prepareCall(sql);
+        try {
+            return this.con.prepareCall(sql);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -42,7 +121,11 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setAutoCommit(boolean autoCommit) throws SQLException {
-        this.con.setAutoCommit(autoCommit);
+        try {
+            this.con.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -52,17 +135,49 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void commit() throws SQLException {
-        this.con.commit();
+        try {
+            this.con.commit();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public void rollback() throws SQLException {
-        this.con.rollback();
+        try {
+            this.con.rollback();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public void close() throws SQLException {
-        this.con.close();
+        try {
+            this.con.close();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        } finally {
+            if (this.stats != null) {
+                HaloDataSourceStats _stats = this.stats;
+                this.stats = null;
+                _stats.end(this.statsBegin, !this.failed);
+            }
+            if (this.permits != null) {
+                Semaphore _permits = this.permits;
+                this.permits = null;
+                _permits.release();
+            }
+            if (this.limiter != null) {
+                HaloConcurrencyLimiter _limiter = this.limiter;
+                this.limiter = null;
+                _limiter.release(this.statsBegin, !this.failed);
+            }
+            if (!this.released && this.dataSourceWrapper != null) {
+                this.released = true;
+                this.dataSourceWrapper.release();
+            }
+        }
 //        this.dataSourceWrapper.decrCounter();
     }
 
@@ -78,7 +193,11 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setReadOnly(boolean readOnly) throws SQLException {
-        this.con.setReadOnly(readOnly);
+        try {
+            this.con.setReadOnly(readOnly);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -88,7 +207,11 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setCatalog(String catalog) throws SQLException {
-        this.con.setCatalog(catalog);
+        try {
+            this.con.setCatalog(catalog);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -98,7 +221,11 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setTransactionIsolation(int level) throws SQLException {
-        this.con.setTransactionIsolation(level);
+        try {
+            this.con.setTransactionIsolation(level);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -118,17 +245,29 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        return this.con.createStatement(resultSetType, resultSetConcurrency);
+        try {
+            return this.con.createStatement(resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return this.con.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        try {
+            return this.con.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return this.con.prepareCall(sql, resultSetType, resultSetConcurrency);
+        try {
+            return this.con.prepareCall(sql, resultSetType, resultSetConcurrency);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -153,52 +292,95 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public Savepoint setSavepoint() throws SQLException {
-        return this.con.setSavepoint();
+        try {
+            return this.con.setSavepoint();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public Savepoint setSavepoint(String name) throws SQLException {
-        return this.con.setSavepoint(name);
+        try {
+            return this.con.setSavepoint(name);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public void rollback(Savepoint savepoint) throws SQLException {
-        this.con.rollback(savepoint);
+        try {
+            this.con.rollback(savepoint);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        this.con.releaseSavepoint(savepoint);
+        try {
+            this.con.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return this.con.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        try {
+            return this.con.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return this.con.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        try {
+            return this.con.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return this.con.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        try {
+            return this.con.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return this.con.prepareStatement(sql, autoGeneratedKeys);
+        try {
+            if (this.statementCache != null) {
+                return this.statementCache.prepareStatement(this, sql, autoGeneratedKeys);
+            }
+            return this.con.prepareStatement(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        return this.con.prepareStatement(sql, columnIndexes);
+        try {
+            return this.con.prepareStatement(sql, columnIndexes);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        return this.con.prepareStatement(sql, columnNames);
+        try {
+            return this.con.prepareStatement(sql, columnNames);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
     }
 
     @Override
@@ -2,6 +2,7 @@ package halo.query.dal;
 
 import halo.query.dal.slave.DefSlaveSelectStrategy;
 import halo.query.dal.slave.SlaveSelectStrategy;
+import halo.query.dal.slave.StatsSlaveSelectStrategy;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -12,8 +13,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -32,14 +33,107 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
 //    private final AtomicInteger threadNumber = new AtomicInteger(1);
 
     /**
-     * 存储dsKey和数据源的对应
+     * 存储dsKey和数据源的对应，重新加载时整体替换
      */
-    private final Map<String, HaloDataSourceWrapper> dataSourceMap = new ConcurrentHashMap<>();
+    private volatile Map<String, HaloDataSourceWrapper> dataSourceMap = new ConcurrentHashMap<>();
 
-    private final Map<String, List<String>> masterSlaveDsKeyMap = new ConcurrentHashMap<>();
+    private volatile Map<String, List<String>> masterSlaveDsKeyMap = new ConcurrentHashMap<>();
+
+    /**
+     * 根据dataSourceMap与masterSlaveDsKeyMap创建的路由表，拓扑变化时整体替换
+     */
+    private volatile HaloRoutingTable routingTable = HaloRoutingTable.EMPTY;
+
+    /**
+     * 被标记为不可用的slave dsKey
+     */
+    private final Set<String> downSlaveDsKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * 所有slave都不可用时，每个master最多可以同时承担的读请求连接数量，小于0为不限制
+     */
+    private int maxMasterFallback = -1;
+
+    private final ConcurrentHashMap<String, Semaphore> masterFallbackPermitsMap = new ConcurrentHashMap<>();
 
     private String defaultDsKey;
 
+    /**
+     * 启动时是否预热连接池
+     */
+    private boolean warmUp;
+
+    /**
+     * 预热时每个连接执行的sql，为空时使用 Connection.isValid 检查
+     */
+    private String warmUpQuery;
+
+    /**
+     * 创建数据源与预热的总期限，单位毫秒
+     */
+    private long startupTimeoutMillis = 60000;
+
+    /**
+     * 启动时并行创建数据源与预热使用的最大线程数量
+     */
+    private int initThreads = 16;
+
+    private long startupDeadline;
+
+    private volatile boolean initialized;
+
+    private volatile Map<String, Long> warmUpMillisMap = Collections.emptyMap();
+
+    /**
+     * 延迟创建的连接池空闲超过此时间后被关闭，单位毫秒，0为不关闭
+     */
+    private long idlePoolCloseMillis;
+
+    /**
+     * 所有内置连接池共享的物理连接数量上限，小于等于0为不限制
+     */
+    private int maxTotalConnections;
+
+    private volatile Semaphore connectionPermits;
+
+    private ScheduledExecutorService idlePoolReaper;
+
+    /**
+     * 被移除的数据源等待正在使用的连接归还的最长时间，单位毫秒，超时后强制关闭连接池
+     */
+    private long drainTimeoutMillis = 30000;
+
+    /**
+     * 每个数据源同时使用的连接数量上限，小于等于0为不限制
+     */
+    private int maxConcurrency;
+
+    /**
+     * dsKey与同时使用的连接数量上限的对应，优先于 maxConcurrency
+     */
+    private Map<String, Integer> maxConcurrencyMap = Collections.emptyMap();
+
+    /**
+     * 自适应上限的最小值
+     */
+    private int minConcurrency = 1;
+
+    /**
+     * 连接使用时间超过此值时减小上限，单位毫秒，小于等于0为固定上限
+     */
+    private long adaptiveConcurrencyLatencyMillis;
+
+    private final ConcurrentHashMap<String, HaloConcurrencyLimiter> limiterMap = new ConcurrentHashMap<>();
+
+    /**
+     * 并发执行多个分区连接的commit、rollback、close使用的线程数量，0为依次执行
+     */
+    private int completionThreads;
+
+    private Executor completionExecutor;
+
+    private ExecutorService createdCompletionExecutor;
+
     private PrintWriter logWriter;
 
     private int loginTimeout = 0;
@@ -56,11 +150,362 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         return slaveSelectStrategy;
     }
 
+    /**
+     * 设置slave选择策略，{@link SlaveSelectStrategy#parse(String, List)} 收到的slave列表由路由表共享，不可修改
+     *
+     * @param slaveSelectStrategy slave选择策略
+     */
     public void setSlaveSelectStrategy(SlaveSelectStrategy slaveSelectStrategy) {
+        if (slaveSelectStrategy instanceof StatsSlaveSelectStrategy) {
+            ((StatsSlaveSelectStrategy) slaveSelectStrategy).setDataSource(this);
+        }
         this.slaveSelectStrategy = slaveSelectStrategy;
+        this.rebuildRoutingTable();
+    }
+
+    /**
+     * 重新创建路由表，数据源或者主从关系变化后调用
+     */
+    synchronized void rebuildRoutingTable() {
+        this.routingTable = HaloRoutingTable.build(this.dataSourceMap, this.masterSlaveDsKeyMap,
+                this.slaveSelectStrategy, this.downSlaveDsKeys, this.buildLimiterMap(this.dataSourceMap.keySet()));
+    }
+
+    /**
+     * 只重新解析受影响的路由，数据源较多时逐个添加数据源不需要每次创建整个路由表.<br>
+     * 完成 afterPropertiesSet 之前不更新，由 afterPropertiesSet 统一创建
+     *
+     * @param changedDsKeys 数据源、slave列表或者可用状态发生变化的dsKey
+     */
+    private synchronized void updateRoutingTable(Collection<String> changedDsKeys) {
+        if (!this.initialized) {
+            return;
+        }
+        long latencyThresholdNanos = this.getLatencyThresholdNanos();
+        for (String dsKey : changedDsKeys) {
+            if (this.dataSourceMap.containsKey(dsKey)) {
+                this.updateLimiter(dsKey, latencyThresholdNanos);
+            } else {
+                this.limiterMap.remove(dsKey);
+            }
+        }
+        this.routingTable = this.routingTable.update(changedDsKeys, this.dataSourceMap, this.masterSlaveDsKeyMap,
+                this.slaveSelectStrategy, this.downSlaveDsKeys, new HashMap<>(this.limiterMap));
+    }
+
+    /**
+     * 为数据源创建并发限制，设置没有变化的数据源继续使用原来的对象
+     */
+    private Map<String, HaloConcurrencyLimiter> buildLimiterMap(Set<String> dsKeys) {
+        long latencyThresholdNanos = this.getLatencyThresholdNanos();
+        for (String dsKey : dsKeys) {
+            this.updateLimiter(dsKey, latencyThresholdNanos);
+        }
+        this.limiterMap.keySet().retainAll(dsKeys);
+        return new HashMap<>(this.limiterMap);
+    }
+
+    private long getLatencyThresholdNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, this.adaptiveConcurrencyLatencyMillis));
+    }
+
+    private void updateLimiter(String dsKey, long latencyThresholdNanos) {
+        Integer value = this.maxConcurrencyMap.get(dsKey);
+        int max = value != null ? value : this.maxConcurrency;
+        if (max <= 0) {
+            this.limiterMap.remove(dsKey);
+            return;
+        }
+        HaloConcurrencyLimiter old = this.limiterMap.get(dsKey);
+        if (old == null || old.getMaxLimit() != max || old.isAdaptive() != (latencyThresholdNanos > 0)) {
+            this.limiterMap.put(dsKey, new HaloConcurrencyLimiter(dsKey, max, this.minConcurrency,
+                    latencyThresholdNanos));
+        }
+    }
+
+    /**
+     * 设置每个数据源同时使用的连接数量上限，超过上限时立即抛出 {@link DALRejectedException}
+     *
+     * @param maxConcurrency 上限，小于等于0为不限制
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 设置指定数据源同时使用的连接数量上限，没有设置的数据源使用 maxConcurrency
+     *
+     * @param maxConcurrencyMap key:dsKey value:上限，小于等于0为不限制
+     */
+    public void setMaxConcurrencyMap(Map<String, Integer> maxConcurrencyMap) {
+        this.maxConcurrencyMap = new HashMap<>(maxConcurrencyMap);
+    }
+
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+    /**
+     * 设置后根据连接使用时间调整上限(AIMD)，设置的上限作为最大值
+     *
+     * @param adaptiveConcurrencyLatencyMillis 连接使用时间超过此值时减小上限，单位毫秒，小于等于0为固定上限
+     */
+    public void setAdaptiveConcurrencyLatencyMillis(long adaptiveConcurrencyLatencyMillis) {
+        this.adaptiveConcurrencyLatencyMillis = adaptiveConcurrencyLatencyMillis;
+    }
+
+    /**
+     * @return dsKey与并发限制的对应，用于监控
+     */
+    public Map<String, HaloConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableMap(this.limiterMap);
+    }
+
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public void setWarmUpQuery(String warmUpQuery) {
+        this.warmUpQuery = warmUpQuery;
+    }
+
+    public void setStartupTimeoutMillis(long startupTimeoutMillis) {
+        this.startupTimeoutMillis = startupTimeoutMillis;
+    }
+
+    public void setInitThreads(int initThreads) {
+        this.initThreads = initThreads;
+    }
+
+    public void setCompletionThreads(int completionThreads) {
+        this.completionThreads = completionThreads;
+    }
+
+    /**
+     * 设置并发执行多个分区连接的commit、rollback、close使用的线程池，设置后 completionThreads 无效.
+     * 线程池拒绝任务时在当前线程执行
+     *
+     * @param completionExecutor 线程池
+     */
+    public void setCompletionExecutor(Executor completionExecutor) {
+        this.completionExecutor = completionExecutor;
+    }
+
+    /**
+     * @return 并发完成事务使用的线程池，为null时依次执行
+     */
+    Executor getCompletionExecutor() {
+        return completionExecutor;
+    }
+
+    int getInitThreads() {
+        return initThreads;
+    }
+
+    /**
+     * @return 创建数据源与预热的总期限，单位毫秒
+     */
+    long getStartupTimeoutMillis() {
+        return startupTimeoutMillis;
+    }
+
+    /**
+     * @return true:已经完成 afterPropertiesSet
+     */
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * 获得启动期限，第一次调用时开始计时
+     *
+     * @return System.nanoTime() 的期限
+     */
+    synchronized long getStartupDeadline() {
+        if (this.startupDeadline == 0) {
+            this.startupDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.startupTimeoutMillis);
+        }
+        return this.startupDeadline;
+    }
+
+    /**
+     * 获得启动时每个数据源的预热时间
+     *
+     * @return dsKey与预热时间(毫秒)的对应，预热失败或者超时的数据源为-1，没有开启预热时为空
+     */
+    public Map<String, Long> getWarmUpMillisMap() {
+        return warmUpMillisMap;
+    }
+
+    public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    public void setIdlePoolCloseMillis(long idlePoolCloseMillis) {
+        this.idlePoolCloseMillis = idlePoolCloseMillis;
+    }
+
+    /**
+     * 设置所有数据源共享的物理连接数量上限，只对内置连接池 {@link HaloPooledDataSource} 有效
+     *
+     * @param maxTotalConnections 上限，小于等于0为不限制
+     */
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+        this.connectionPermits = maxTotalConnections > 0 ? new Semaphore(maxTotalConnections) : null;
+    }
+
+    /**
+     * 获得所有内置连接池共享的物理连接许可，没有设置上限时返回null
+     */
+    Semaphore getConnectionPermits() {
+        return this.connectionPermits;
     }
 
-    void addSlave2Master(String masterDsKey, String slaveDsKey) {
+    /**
+     * @return 当前所有内置连接池已经创建的物理连接数量，没有设置上限时返回-1
+     */
+    public int getTotalPhysicalConnections() {
+        Semaphore permits = this.getConnectionPermits();
+        if (permits == null) {
+            return -1;
+        }
+        return this.maxTotalConnections - permits.availablePermits();
+    }
+
+    /**
+     * 关闭空闲超时的延迟创建连接池，可以手动调用
+     */
+    public void closeIdlePools() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(this.idlePoolCloseMillis);
+        for (HaloDataSourceWrapper dataSourceWrapper : this.dataSourceMap.values()) {
+            DataSource dataSource = dataSourceWrapper.closeIfIdle(idleNanos);
+            if (dataSource != null) {
+                log.info("close idle pool of dataSource[" + dataSourceWrapper.getDsKey() + "]");
+                HaloDataSourceUtil.destory(dataSourceWrapper.getDsKey(), dataSource);
+            }
+        }
+    }
+
+    public void setMaxMasterFallback(int maxMasterFallback) {
+        this.maxMasterFallback = maxMasterFallback;
+    }
+
+    /**
+     * 标记slave不可用，不会再被选择
+     *
+     * @param slaveDsKey slave dsKey
+     */
+    public void markSlaveDown(String slaveDsKey) {
+        if (this.downSlaveDsKeys.add(slaveDsKey)) {
+            log.warn("slave[" + slaveDsKey + "] was marked down");
+            this.updateRoutingTable(Collections.singleton(slaveDsKey));
+        }
+    }
+
+    /**
+     * 标记slave恢复可用
+     *
+     * @param slaveDsKey slave dsKey
+     */
+    public void markSlaveUp(String slaveDsKey) {
+        if (this.downSlaveDsKeys.remove(slaveDsKey)) {
+            log.info("slave[" + slaveDsKey + "] was marked up");
+            this.updateRoutingTable(Collections.singleton(slaveDsKey));
+        }
+    }
+
+    /**
+     * @return 当前不可用的slave dsKey
+     */
+    public Set<String> getDownSlaveDsKeys() {
+        return Collections.unmodifiableSet(this.downSlaveDsKeys);
+    }
+
+    /**
+     * 使用新的数据源与主从关系整体替换当前拓扑，新的请求立即使用新的路由表.<br>
+     * 不在新拓扑中的数据源在正在使用的连接归还后关闭，最多等待 drainTimeoutMillis
+     *
+     * @param newDataSourceMap       dsKey与数据源的对应，没有变化的数据源应该使用原来的对象
+     * @param newMasterSlaveDsKeyMap master与slave的对应
+     * @param newDefaultDsKey        默认数据源key
+     */
+    synchronized void swapTopology(Map<String, HaloDataSourceWrapper> newDataSourceMap,
+                                   Map<String, List<String>> newMasterSlaveDsKeyMap, String newDefaultDsKey) {
+        if (newDefaultDsKey != null && !newDataSourceMap.containsKey(newDefaultDsKey)) {
+            throw new DALRunTimeException("default ds[" + newDefaultDsKey + "] must be not empty");
+        }
+        Map<String, HaloDataSourceWrapper> dsMap = new ConcurrentHashMap<>(newDataSourceMap);
+        Map<String, List<String>> msMap = new ConcurrentHashMap<>();
+        for (Map.Entry<String, List<String>> e : newMasterSlaveDsKeyMap.entrySet()) {
+            if (e.getValue() != null && !e.getValue().isEmpty()) {
+                msMap.put(e.getKey(), new CopyOnWriteArrayList<>(e.getValue()));
+            }
+        }
+        this.downSlaveDsKeys.retainAll(dsMap.keySet());
+        // 先创建路由表，出现异常时保持原来的拓扑
+        HaloRoutingTable table = HaloRoutingTable.build(dsMap, msMap, this.slaveSelectStrategy,
+                this.downSlaveDsKeys, this.buildLimiterMap(dsMap.keySet()));
+        Map<String, HaloDataSourceWrapper> oldDataSourceMap = this.dataSourceMap;
+        this.dataSourceMap = dsMap;
+        this.masterSlaveDsKeyMap = msMap;
+        if (newDefaultDsKey != null) {
+            this.defaultDsKey = newDefaultDsKey;
+        }
+        this.routingTable = table;
+        List<HaloDataSourceWrapper> retired = new ArrayList<>();
+        for (HaloDataSourceWrapper dataSourceWrapper : oldDataSourceMap.values()) {
+            if (dsMap.get(dataSourceWrapper.getDsKey()) != dataSourceWrapper) {
+                retired.add(dataSourceWrapper);
+            }
+        }
+        this.retire(retired);
+    }
+
+    /**
+     * 在后台等待数据源正在使用的连接归还后关闭连接池
+     */
+    private void retire(final List<HaloDataSourceWrapper> dataSourceWrappers) {
+        final List<HaloDataSourceWrapper> list = new ArrayList<>();
+        for (HaloDataSourceWrapper dataSourceWrapper : dataSourceWrappers) {
+            if (dataSourceWrapper.getCreatedDataSource() != null) {
+                list.add(dataSourceWrapper);
+            }
+        }
+        if (list.isEmpty()) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.drainTimeoutMillis);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (HaloDataSourceWrapper dataSourceWrapper : list) {
+                    while (dataSourceWrapper.getActiveCount() > 0 && System.nanoTime() < deadline) {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if (dataSourceWrapper.getActiveCount() > 0) {
+                        log.warn("dataSource[" + dataSourceWrapper.getDsKey() + "] still has " +
+                                dataSourceWrapper.getActiveCount() + " active connections after drain timeout");
+                    }
+                    HaloDataSourceUtil.destory(dataSourceWrapper);
+                }
+            }
+        }, "HaloDALDataSource-drainer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    synchronized void addSlave2Master(String masterDsKey, String slaveDsKey) {
+        this.putSlave2Master(masterDsKey, slaveDsKey);
+        this.updateRoutingTable(Collections.singleton(masterDsKey));
+    }
+
+    private void putSlave2Master(String masterDsKey, String slaveDsKey) {
         List<String> list = this.masterSlaveDsKeyMap.get(masterDsKey);
         if (list == null) {
             list = new CopyOnWriteArrayList<>();
@@ -71,14 +516,40 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         }
     }
 
-    boolean setSlaves2Master(String masterDsKey, List<String> slaveDsKeys) {
+    synchronized boolean setSlaves2Master(String masterDsKey, List<String> slaveDsKeys) {
         if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
             this.masterSlaveDsKeyMap.put(masterDsKey, new CopyOnWriteArrayList<>(slaveDsKeys));
+            this.updateRoutingTable(Collections.singleton(masterDsKey));
             return true;
         }
         return false;
     }
 
+    /**
+     * 添加数据源以及相关的主从关系，只更新一次路由表
+     *
+     * @param haloDataSourceWrapper 数据源
+     * @param slaveMap              数据源配置中的master与slave的对应
+     * @param masterDsKey           数据源作为此master的slave，为null时不设置
+     */
+    synchronized void addDataSource(HaloDataSourceWrapper haloDataSourceWrapper, Map<String, List<String>> slaveMap,
+                                    String masterDsKey) {
+        Set<String> changed = new HashSet<>();
+        this.dataSourceMap.put(haloDataSourceWrapper.getDsKey(), haloDataSourceWrapper);
+        changed.add(haloDataSourceWrapper.getDsKey());
+        for (Map.Entry<String, List<String>> e : slaveMap.entrySet()) {
+            if (e.getValue() != null && !e.getValue().isEmpty()) {
+                this.masterSlaveDsKeyMap.put(e.getKey(), new CopyOnWriteArrayList<>(e.getValue()));
+                changed.add(e.getKey());
+            }
+        }
+        if (masterDsKey != null) {
+            this.putSlave2Master(masterDsKey, haloDataSourceWrapper.getDsKey());
+            changed.add(masterDsKey);
+        }
+        this.updateRoutingTable(changed);
+    }
+
     String getDefaultDsKey() {
         return defaultDsKey;
     }
@@ -89,71 +560,105 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
      * @return 数据源包装类
      */
     HaloDataSourceProxy getCurrentDataSourceProxy(boolean autoCommit) {
+        HaloRoutingTable table = this.routingTable;
         String master = DALStatus.getDsKey();
         String slave = null;
         if (DALStatus.isEnableSlave()) {
             if (autoCommit) {
-                slave = DALStatus.getSlaveDsKey();
+                DALScope scope = DALScope.current();
+                if (scope.getSession() != null && scope.getSession().isRecentlyWritten(master)) {
+                    // read-your-writes，会话中刚写入过master，读请求也使用master
+                    return table.getProxy(master, null, this.slaveSelectStrategy);
+                }
+                slave = scope.getSlaveDsKey();
                 if (slave == null) {
-                    slave = this.getSlaveKey(master);
+                    if (table.isAllSlavesDown(master)) {
+                        return this.getMasterFallbackProxy(table, master, this.getSlaveDsKeys(master));
+                    }
+                    List<String> slaveDsKeys = table.getSlaveDsKeys(master);
+                    if (scope.getMaxStaleness() >= 0 && slaveDsKeys != null) {
+                        slaveDsKeys = this.filterByStaleness(slaveDsKeys, scope.getMaxStaleness());
+                        if (slaveDsKeys == null) {
+                            // 所有slave的延迟都超过要求，与所有slave不可用相同，使用master并受 maxMasterFallback 限制。
+                            // 超过限制时不能降级为延迟过大的slave
+                            return this.getMasterFallbackProxy(table, master, null);
+                        }
+                    }
+                    slave = this.slaveSelectStrategy.parse(master, slaveDsKeys);
                     if (slave != null) {
-                        DALStatus.setSlaveDsKey(slave);
+                        scope.setSlaveDsKey(slave);
                     }
                 }
             } else {
                 log.warn("autoCommit=false and slave used master[" + master + "]");
             }
         }
-        String name;
-        if (slave == null) {
-            name = master;
-        } else {
-            name = slave;
-        }
-        return this.getHaloDataSourceProxy(master, slave, name);
+        return table.getProxy(master, slave, this.slaveSelectStrategy);
     }
 
     /**
-     * 获取数据源。根据name获得的数据源，先检查是否是slave模式，如果是slave模式，就获取slave对应的数据源。再检查是否是引用数据源，如果是，就获取引用的数据源
+     * 获得复制延迟不超过maxStaleness的slave，没有延迟数据的slave不会被选择
+     *
+     * @return 没有符合条件的slave时返回null
      */
-    private HaloDataSourceProxy getHaloDataSourceProxy(String master, String slave, String name) {
-        HaloDataSourceWrapper haloDataSourceWrapper = this.dataSourceMap.get(name);
-        if (haloDataSourceWrapper == null) {
-            throw new DALRunTimeException("no datasource forKey [" + name + "]");
+    private List<String> filterByStaleness(List<String> slaveDsKeys, long maxStaleness) {
+        if (slaveDsKeys == null) {
+            return null;
         }
-        if (haloDataSourceWrapper.isSlaveMode()) {
-            String key = getSlaveKey(master);
-            return getHaloDataSourceProxy(master, slave, key);
+        List<String> list = new ArrayList<>(slaveDsKeys.size());
+        for (String slaveDsKey : slaveDsKeys) {
+            HaloDataSourceStats stats = this.getDataSourceStats(slaveDsKey);
+            long lag = stats == null ? -1 : stats.getReplicationLag();
+            if (lag >= 0 && lag <= maxStaleness) {
+                list.add(slaveDsKey);
+            }
+        }
+        if (list.isEmpty()) {
+            return null;
         }
-        if (!haloDataSourceWrapper.isRef()) {
-            HaloDataSourceProxy proxy = new HaloDataSourceProxy();
-            proxy.setDataSourceWrapper(haloDataSourceWrapper);
-            proxy.setMaster(master);
-            proxy.setSlave(slave);
+        return list;
+    }
+
+    /**
+     * 所有slave不可用时，读请求使用master，同时使用的连接数量受 maxMasterFallback 限制.<br>
+     * 超过限制时降级为从 degradeSlaveDsKeys 中选择slave，而不是直接失败，
+     * 只有没有可以降级的slave时才抛出 {@link DALRejectedException}
+     *
+     * @param degradeSlaveDsKeys 超过限制时可以使用的slave，例如被标记为不可用的slave
+     */
+    private HaloDataSourceProxy getMasterFallbackProxy(HaloRoutingTable table, String master,
+                                                       List<String> degradeSlaveDsKeys) {
+        HaloDataSourceProxy proxy = table.getProxy(master, null, this.slaveSelectStrategy);
+        if (this.maxMasterFallback < 0) {
             return proxy;
         }
-        HaloDataSourceWrapper refhaloDataSourceWrapper = this.dataSourceMap.get(haloDataSourceWrapper.getRefDsKey());
-        if (refhaloDataSourceWrapper == null) {
-            throw new DALRunTimeException("no datasource forKey [" + name + "]");
+        Semaphore permits = this.masterFallbackPermitsMap.get(master);
+        if (permits == null) {
+            permits = new Semaphore(this.maxMasterFallback);
+            Semaphore old = this.masterFallbackPermitsMap.putIfAbsent(master, permits);
+            if (old != null) {
+                permits = old;
+            }
         }
-        if (refhaloDataSourceWrapper.isRef()) {
-            throw new DALRunTimeException(haloDataSourceWrapper.getRefDsKey() + " must not be ref");
+        if (permits.availablePermits() <= 0 && degradeSlaveDsKeys != null && !degradeSlaveDsKeys.isEmpty()) {
+            String slave = this.slaveSelectStrategy.parse(master, Collections.unmodifiableList(degradeSlaveDsKeys));
+            if (slave != null) {
+                log.warn("master[" + master + "] exceeds maxMasterFallback, degrade to slave[" + slave + "]");
+                return table.getProxy(master, slave, this.slaveSelectStrategy);
+            }
         }
-        HaloDataSourceProxy proxy = new HaloDataSourceProxy();
-        proxy.setDataSourceWrapper(refhaloDataSourceWrapper);
-        proxy.setMaster(master);
-        proxy.setSlave(slave);
-        proxy.setDb(haloDataSourceWrapper.getDb());
-        return proxy;
+        return proxy.withPermits(permits);
     }
 
-    private String getSlaveKey(String master) {
-        List<String> slaveDsKeys = this.masterSlaveDsKeyMap.get(master);
-        List<String> copyList = null;
-        if (slaveDsKeys != null) {
-            copyList = new ArrayList<>(slaveDsKeys);
-        }
-        return this.slaveSelectStrategy.parse(master, copyList);
+    /**
+     * 获得master与slave对应的数据源代理，用于检查slave状态
+     */
+    HaloDataSourceProxy getDataSourceProxy(String master, String slave) {
+        return this.routingTable.getProxy(master, slave, this.slaveSelectStrategy);
+    }
+
+    Map<String, List<String>> getMasterSlaveDsKeyMap() {
+        return new HashMap<>(this.masterSlaveDsKeyMap);
     }
 
     /**
@@ -165,13 +670,25 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         this.defaultDsKey = defaultDsKey;
     }
 
-    void addDataSource(HaloDataSourceWrapper haloDataSourceWrapper) {
+    synchronized void addDataSource(HaloDataSourceWrapper haloDataSourceWrapper) {
         this.dataSourceMap.put(haloDataSourceWrapper.getDsKey(), haloDataSourceWrapper);
+        this.updateRoutingTable(Collections.singleton(haloDataSourceWrapper.getDsKey()));
     }
 
+    /**
+     * 获得连接。通过 {@link DALStatus#beginDirectStatement()} 开始的单条sql，没有取消句柄与期限时直接返回路由后的实际连接，
+     * 关闭时直接归还连接池，由 {@link DALStatus#afterDirectStatement()} 清除路由信息。其他情况返回 {@link DALConnection}
+     *
+     * @return 连接
+     * @throws SQLException 获得连接时的异常
+     */
     public Connection getConnection() throws SQLException {
-        DALConnection connection = new DALConnection(this);
-        DALStatus.setCurrentDALConnection(connection);
+        Connection connection = this.getDirectConnection();
+        if (connection == null) {
+            DALConnection dalConnection = new DALConnection(this);
+            DALStatus.setCurrentDALConnection(dalConnection);
+            connection = dalConnection;
+        }
         if (DALConnectionListenerFactory.hasListener()) {
             for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
                 listener.onDALOpened();
@@ -180,6 +697,33 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         return connection;
     }
 
+    /**
+     * 获得路由后的实际连接，有取消句柄或者期限时需要登记statement，仍然使用 {@link DALConnection}
+     *
+     * @return 不能直接使用实际连接时返回null
+     */
+    private Connection getDirectConnection() throws SQLException {
+        DALScope scope = DALScope.current();
+        if (!scope.isDirectStatement()) {
+            return null;
+        }
+        String name = DALStatus.getDsKey();
+        if (scope.getCancelHandle() != null || scope.getEffectiveDeadline(name) > 0) {
+            scope.setDirectStatement(false);
+            return null;
+        }
+        Connection con = DALConnection.openConnection(this, name, true);
+        if (!con.getAutoCommit()) {
+            try {
+                con.setAutoCommit(true);
+            } catch (SQLException e) {
+                con.close();
+                throw e;
+            }
+        }
+        return con;
+    }
+
     public Connection getConnection(String username, String password)
             throws SQLException {
         throw new SQLException("only support getConnection()");
@@ -214,6 +758,12 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
     }
 
     public void destory() {
+        if (this.idlePoolReaper != null) {
+            this.idlePoolReaper.shutdownNow();
+        }
+        if (this.createdCompletionExecutor != null) {
+            this.createdCompletionExecutor.shutdown();
+        }
         Set<Map.Entry<String, HaloDataSourceWrapper>> set = this.dataSourceMap.entrySet();
         for (Map.Entry<String, HaloDataSourceWrapper> e : set) {
             HaloDataSourceUtil.destory(e.getValue());
@@ -228,6 +778,50 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
                 throw new RuntimeException("default ds must be not empty");
             }
         }
+        this.rebuildRoutingTable();
+        if (this.completionExecutor == null && this.completionThreads > 0) {
+            this.createdCompletionExecutor = new ThreadPoolExecutor(this.completionThreads, this
+                    .completionThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this
+                    .completionThreads * 16), new ThreadFactory() {
+
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HaloDALDataSource-completion-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ((ThreadPoolExecutor) this.createdCompletionExecutor).allowCoreThreadTimeOut(true);
+            this.completionExecutor = this.createdCompletionExecutor;
+        }
+        if (this.warmUp) {
+            this.warmUpMillisMap = Collections.unmodifiableMap(HaloDataSourceInitializer.warmUp(this.getDataSources(),
+                    this.warmUpQuery, this.initThreads, this.getStartupDeadline()));
+        }
+        if (this.idlePoolCloseMillis > 0 && this.idlePoolReaper == null) {
+            this.idlePoolReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HaloDALDataSource-idle-pool-reaper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long period = Math.max(1000, this.idlePoolCloseMillis / 4);
+            this.idlePoolReaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        closeIdlePools();
+                    } catch (Throwable e) {
+                        log.error("close idle pools error", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        this.initialized = true;
 //        this.executorService = new ThreadPoolExecutor(5, 10, 60, TimeUnit.SECONDS, new LinkedBlockingDeque<>(1000), r -> {
 //            Thread t = new Thread(r, "HaloDALDataSource-thread-" + threadNumber.getAndIncrement());
 //            t.setDaemon(false);
@@ -235,6 +829,35 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
 //        });
     }
 
+    /**
+     * 获得数据源的运行统计，统计属于当前数据源对象，数据源被移除或者替换后不再更新
+     *
+     * @param dsKey 数据源key
+     * @return 数据源不存在时返回null
+     */
+    public HaloDataSourceStats getDataSourceStats(String dsKey) {
+        HaloDataSourceWrapper dataSourceWrapper = this.dataSourceMap.get(dsKey);
+        if (dataSourceWrapper == null) {
+            return null;
+        }
+        return dataSourceWrapper.getStats();
+    }
+
+    /**
+     * @return dsKey与运行统计的对应
+     */
+    public Map<String, HaloDataSourceStats> getAllDataSourceStats() {
+        Map<String, HaloDataSourceStats> map = new HashMap<>();
+        for (HaloDataSourceWrapper dataSourceWrapper : this.dataSourceMap.values()) {
+            map.put(dataSourceWrapper.getDsKey(), dataSourceWrapper.getStats());
+        }
+        return map;
+    }
+
+    HaloDataSourceWrapper getDataSourceWrapper(String dsKey) {
+        return this.dataSourceMap.get(dsKey);
+    }
+
     List<HaloDataSourceWrapper> getDataSources() {
         if (this.dataSourceMap.isEmpty()) {
             return new ArrayList<>(0);
@@ -251,26 +874,64 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
     public abstract void loadDataSource(Map<String, Object> ctxMap, String masterDsKey);
 
     /**
-     * 删除数据源
+     * 删除数据源，连接池在正在使用的连接归还后关闭
      *
      * @param dsKey 数据源key
      */
-    public void removeDataSource(String dsKey) {
-        Collection<List<String>> values = this.masterSlaveDsKeyMap.values();
-        for (List<String> keys : values) {
-            for (String key : keys) {
-                if (key.equals(dsKey)) {
-                    keys.remove(key);
-                }
+    public synchronized void removeDataSource(String dsKey) {
+        Set<String> changed = new HashSet<>();
+        changed.add(dsKey);
+        for (Map.Entry<String, List<String>> e : this.masterSlaveDsKeyMap.entrySet()) {
+            if (e.getValue().removeAll(Collections.singleton(dsKey))) {
+                changed.add(e.getKey());
             }
         }
         HaloDataSourceWrapper dataSourceWrapper = this.dataSourceMap.remove(dsKey);
+        this.updateRoutingTable(changed);
         if (dataSourceWrapper != null) {
-            HaloDataSourceUtil.destory(dataSourceWrapper);
+            this.retire(Collections.singletonList(dataSourceWrapper));
         }
+        this.downSlaveDsKeys.remove(dsKey);
     }
 
     public List<String> getSlaveDsKeys(String masterDsKey) {
         return this.masterSlaveDsKeyMap.get(masterDsKey);
     }
+
+    /**
+     * 获得数据源引用的db名称，slave模式的数据源使用第一个slave引用的db名称
+     *
+     * @param dsKey 数据源key
+     * @return 不是引用数据源时返回null
+     */
+    public String getRefDb(String dsKey) {
+        HaloDataSourceWrapper dataSourceWrapper = this.dataSourceMap.get(dsKey);
+        if (dataSourceWrapper == null) {
+            return null;
+        }
+        if (dataSourceWrapper.isSlaveMode()) {
+            List<String> slaveDsKeys = this.masterSlaveDsKeyMap.get(dsKey);
+            if (slaveDsKeys == null || slaveDsKeys.isEmpty()) {
+                return null;
+            }
+            dataSourceWrapper = this.dataSourceMap.get(slaveDsKeys.get(0));
+            if (dataSourceWrapper == null) {
+                return null;
+            }
+        }
+        if (dataSourceWrapper.isRef()) {
+            return dataSourceWrapper.getDb();
+        }
+        return null;
+    }
+
+    /**
+     * 获得master当前可用的slave，不包括被标记为不可用的slave
+     *
+     * @param masterDsKey master dsKey
+     * @return 不可修改的列表，没有可用slave时返回null
+     */
+    public List<String> getAvailableSlaveDsKeys(String masterDsKey) {
+        return this.routingTable.getSlaveDsKeys(masterDsKey);
+    }
 }
\ No newline at end of file
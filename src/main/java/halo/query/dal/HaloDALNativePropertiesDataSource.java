@@ -0,0 +1,13 @@
+package halo.query.dal;
+
+/**
+ * 通过properties文件创建使用内置连接池 {@link HaloPooledDataSource} 的dal数据源，配置属性与c3p0相同
+ */
+public class HaloDALNativePropertiesDataSource extends HaloPropertiesDataSource {
+
+    public static final String NAME = "halo.query.dal.HaloPooledDataSource";
+
+    public HaloDALNativePropertiesDataSource() {
+        this.setDataSourceClassName(NAME);
+    }
+}
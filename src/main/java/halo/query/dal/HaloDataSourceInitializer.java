@@ -0,0 +1,243 @@
+package halo.query.dal;
+
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 启动时并行创建数据源、预热连接池的工具.<br>
+ * 所有任务都在启动期限内完成，使用临时线程池，完成后关闭
+ */
+final class HaloDataSourceInitializer {
+
+    private static final Logger logger = Logger.getLogger(HaloDataSourceInitializer.class);
+
+    private HaloDataSourceInitializer() {
+    }
+
+    /**
+     * 并行执行任务，在期限内没有全部完成时抛出异常.<br>
+     * 出现异常时，已经完成以及之后才完成的任务的结果交给 discard 处理，例如关闭已经创建的连接池
+     *
+     * @param name          任务名称，用于线程名称与日志
+     * @param tasks         任务
+     * @param threads       最大线程数量
+     * @param deadlineNanos 期限，System.nanoTime()
+     * @param discard       处理没有返回的结果，为null时不处理
+     * @param <T>           返回值泛型
+     * @return 按照任务顺序的结果
+     */
+    static <T> List<T> invokeAll(String name, List<Callable<T>> tasks, int threads, long deadlineNanos,
+                                 Consumer<T> discard) {
+        if (tasks.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Result<T>> results = new ArrayList<>(tasks.size());
+        ExecutorService executorService = newExecutor(name, Math.min(threads, tasks.size()));
+        try {
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                Result<T> result = new Result<>(task, failed, discard);
+                results.add(result);
+                futures.add(executorService.submit(result));
+            }
+            List<T> list = new ArrayList<>(tasks.size());
+            for (Future<T> future : futures) {
+                long remain = deadlineNanos - System.nanoTime();
+                try {
+                    list.add(future.get(Math.max(0, remain), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    throw new DALRunTimeException(name + " not finished before startup deadline");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DALRunTimeException(name + " interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new DALRunTimeException(name + " error", cause);
+                }
+            }
+            return list;
+        } catch (RuntimeException e) {
+            failed.set(true);
+            for (Result<T> result : results) {
+                result.discard();
+            }
+            throw e;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * 并行预热数据源，每个数据源打开 minPoolSize 个连接并执行预热sql，然后全部归还到连接池.<br>
+     * 超过期限的数据源不再继续预热，不会抛出异常
+     *
+     * @param dataSourceWrappers 数据源
+     * @param warmUpQuery        预热sql，为空时使用 Connection.isValid 检查
+     * @param threads            最大线程数量
+     * @param deadlineNanos      期限，System.nanoTime()
+     * @return dsKey与预热时间(毫秒)的对应，预热失败或者超时的数据源为-1
+     */
+    static Map<String, Long> warmUp(List<HaloDataSourceWrapper> dataSourceWrappers, final String warmUpQuery,
+                                    int threads, final long deadlineNanos) {
+        final Map<String, Long> resultMap = new ConcurrentHashMap<>();
+        List<HaloDataSourceWrapper> list = new ArrayList<>();
+        for (HaloDataSourceWrapper dataSourceWrapper : dataSourceWrappers) {
+            // 延迟创建的连接池不预热
+            if (!dataSourceWrapper.isLazy() && dataSourceWrapper.getDataSource() != null) {
+                list.add(dataSourceWrapper);
+                resultMap.put(dataSourceWrapper.getDsKey(), -1L);
+            }
+        }
+        if (list.isEmpty()) {
+            return resultMap;
+        }
+        ExecutorService executorService = newExecutor("warm-up", Math.min(threads, list.size()));
+        try {
+            for (final HaloDataSourceWrapper dataSourceWrapper : list) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long begin = System.nanoTime();
+                        String dsKey = dataSourceWrapper.getDsKey();
+                        try {
+                            int count = warmUp(dataSourceWrapper.getDataSource(), warmUpQuery, deadlineNanos);
+                            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+                            resultMap.put(dsKey, millis);
+                            logger.info("warm up dataSource[" + dsKey + "] " + count + " connections in " +
+                                    millis + "ms");
+                        } catch (Exception e) {
+                            logger.warn("warm up dataSource[" + dsKey + "] failed", e);
+                        }
+                    }
+                });
+            }
+            executorService.shutdown();
+            long remain = deadlineNanos - System.nanoTime();
+            if (!executorService.awaitTermination(Math.max(0, remain), TimeUnit.NANOSECONDS)) {
+                logger.warn("warm up not finished before startup deadline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executorService.shutdownNow();
+        }
+        return new HashMap<>(resultMap);
+    }
+
+    private static int warmUp(DataSource dataSource, String warmUpQuery, long deadlineNanos) throws SQLException {
+        int size = Math.max(1, getMinPoolSize(dataSource));
+        List<Connection> cons = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                if (System.nanoTime() > deadlineNanos || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                Connection con = dataSource.getConnection();
+                cons.add(con);
+                if (warmUpQuery == null) {
+                    con.isValid(3);
+                } else {
+                    try (Statement stmt = con.createStatement()) {
+                        stmt.execute(warmUpQuery);
+                    }
+                }
+            }
+            return cons.size();
+        } finally {
+            for (Connection con : cons) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    logger.warn("close warm up connection error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 通过 getMinPoolSize 方法获得连接池的最小连接数，c3p0与内置连接池都有此方法
+     */
+    private static int getMinPoolSize(DataSource dataSource) {
+        try {
+            Method method = dataSource.getClass().getMethod("getMinPoolSize");
+            Object value = method.invoke(dataSource);
+            if (value instanceof Number) {
+                return ((Number) value).intValue();
+            }
+        } catch (Exception e) {
+            // 不支持时只打开一个连接
+        }
+        return 1;
+    }
+
+    /**
+     * 保存任务的结果，整体失败时由调用线程或者任务线程中的一个交给 discard 处理
+     */
+    private static final class Result<T> implements Callable<T> {
+
+        private final Callable<T> task;
+
+        private final AtomicBoolean failed;
+
+        private final Consumer<T> discard;
+
+        private final AtomicBoolean discarded = new AtomicBoolean();
+
+        private volatile T value;
+
+        Result(Callable<T> task, AtomicBoolean failed, Consumer<T> discard) {
+            this.task = task;
+            this.failed = failed;
+            this.discard = discard;
+        }
+
+        @Override
+        public T call() throws Exception {
+            T t = this.task.call();
+            this.value = t;
+            if (this.failed.get()) {
+                // 在整体失败之后才完成
+                this.discard();
+            }
+            return t;
+        }
+
+        void discard() {
+            T t = this.value;
+            if (t == null || this.discard == null || !this.discarded.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                this.discard.accept(t);
+            } catch (RuntimeException e) {
+                logger.warn("discard result error", e);
+            }
+        }
+    }
+
+    private static ExecutorService newExecutor(final String name, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HaloDALDataSource-" + name + "-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -5,59 +5,118 @@ import org.apache.log4j.Logger;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
 
 /**
- * 数据源代理类，在获取Connection时使用，不会长久存储到内存中
+ * 数据源代理类，在获取Connection时使用。对象不可变，由 {@link HaloRoutingTable} 预先创建并共享
  * Created by akwei on 9/17/16.
  */
 class HaloDataSourceProxy {
 
     private static Logger logger = Logger.getLogger(HaloDataSourceProxy.class);
 
-    private String master;
+    private final String master;
 
-    private String slave;
+    private final String slave;
 
     /**
      * 当前数据源引用其他数据源时，需要设置db为实际的数据库名称
      */
-    private String db;
+    private final String db;
 
-    private HaloDataSourceWrapper dataSourceWrapper;
+    private final HaloDataSourceWrapper dataSourceWrapper;
 
-    String getDb() {
-        return db;
+    /**
+     * 实际使用的dsKey的统计
+     */
+    private final HaloDataSourceStats stats;
+
+    /**
+     * 不为null时，获取连接需要先获得许可，连接关闭时释放
+     */
+    private final Semaphore permits;
+
+    /**
+     * 实际使用的dsKey的并发限制，没有设置时为null
+     */
+    private final HaloConcurrencyLimiter limiter;
+
+    HaloDataSourceProxy(HaloDataSourceWrapper dataSourceWrapper, String master, String slave, String db,
+                        HaloDataSourceStats stats, HaloConcurrencyLimiter limiter) {
+        this(dataSourceWrapper, master, slave, db, stats, null, limiter);
     }
 
-    void setDb(String db) {
+    private HaloDataSourceProxy(HaloDataSourceWrapper dataSourceWrapper, String master, String slave, String db,
+                                HaloDataSourceStats stats, Semaphore permits, HaloConcurrencyLimiter limiter) {
+        this.dataSourceWrapper = dataSourceWrapper;
+        this.master = master;
+        this.slave = slave;
         this.db = db;
+        this.stats = stats;
+        this.permits = permits;
+        this.limiter = limiter;
     }
 
-    String getMaster() {
-        return master;
+    /**
+     * 创建需要获得许可才能获取连接的代理
+     *
+     * @param permits 许可
+     * @return 新的代理
+     */
+    HaloDataSourceProxy withPermits(Semaphore permits) {
+        return new HaloDataSourceProxy(this.dataSourceWrapper, this.master, this.slave, this.db, this.stats, permits,
+                this.limiter);
     }
 
-    void setMaster(String master) {
-        this.master = master;
+    String getDb() {
+        return db;
+    }
+
+    String getMaster() {
+        return master;
     }
 
     String getSlave() {
         return slave;
     }
 
-    void setSlave(String slave) {
-        this.slave = slave;
+    HaloDataSourceWrapper getDataSourceWrapper() {
+        return dataSourceWrapper;
     }
 
-    void setDataSourceWrapper(HaloDataSourceWrapper dataSourceWrapper) {
-        this.dataSourceWrapper = dataSourceWrapper;
+    HaloDataSourceStats getStats() {
+        return stats;
     }
 
     Connection getConnection() throws SQLException {
-        long begin = System.currentTimeMillis();
-        Connection con = this.dataSourceWrapper.getConnection();
-        long end = System.currentTimeMillis();
-        int result = (int) (end - begin);
+        if (this.limiter != null && !this.limiter.tryAcquire()) {
+            throw new DALRejectedException("dsKey[" + this.limiter.getDsKey() + "] concurrency exceeds limit " +
+                    this.limiter.getLimit());
+        }
+        if (this.permits != null && !this.permits.tryAcquire()) {
+            if (this.limiter != null) {
+                this.limiter.cancel();
+            }
+            throw new DALRejectedException("master[" + master + "] has no available permits");
+        }
+        long begin = this.stats.begin();
+        HaloConnectionWrapper con;
+        try {
+            con = this.dataSourceWrapper.getHaloConnection();
+        } catch (SQLException | RuntimeException e) {
+            this.stats.end(begin, false);
+            if (this.permits != null) {
+                this.permits.release();
+            }
+            if (this.limiter != null) {
+                this.limiter.release(begin, false);
+            }
+            throw e;
+        }
+        con.setStats(this.stats, begin);
+        con.setPermits(this.permits);
+        con.setLimiter(this.limiter);
+        int result = (int) ((System.nanoTime() - begin) / 1000000);
         if (HaloConfig.getInstance().isSlowCon(result)) {
             try {
                 logger.warn("master[" + master + "] slave[" + slave + "] getcon slow time:" + result);
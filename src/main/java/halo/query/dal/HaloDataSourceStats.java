@@ -0,0 +1,141 @@
+package halo.query.dal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据源的运行统计，按dsKey记录正在使用的连接数量以及连接使用时间的EWMA.<br>
+ * 连接从 {@link HaloDataSourceProxy#getConnection()} 获取开始计时，到连接关闭时结束，
+ * 对于不在事务中的从库查询，使用时间基本就是获取连接与执行sql的时间.<br>
+ * 失败时按照不小于 {@link #FAILURE_PENALTY_NANOS} 的时间计入EWMA，连续失败的slave不会因为没有成功样本而被优先选择.<br>
+ * 统计属于 {@link HaloDataSourceWrapper}，数据源被移除或者替换时一起丢弃。
+ * slave选择策略通过 {@link HaloDALDataSource#getDataSourceStats(String)} 获得统计数据
+ */
+public final class HaloDataSourceStats {
+
+    /**
+     * EWMA的权重，越大越偏向最近的数据
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * 失败时计入EWMA的最小时间
+     */
+    static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String dsKey;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * 计入EWMA的样本数量，包括失败
+     */
+    private final AtomicLong samples = new AtomicLong();
+
+    /**
+     * 为了不加锁，并发更新时可能丢失个别样本，对平均值影响可以忽略
+     */
+    private volatile double ewmaNanos;
+
+    /**
+     * slave的复制延迟，单位毫秒，-1为未知
+     */
+    private volatile long replicationLag = -1;
+
+    HaloDataSourceStats(String dsKey) {
+        this.dsKey = dsKey;
+    }
+
+    /**
+     * 获取连接前调用
+     *
+     * @return 开始时间，结束时传给 {@link #end(long, boolean)}
+     */
+    long begin() {
+        this.inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 连接关闭或者获取连接失败时调用
+     *
+     * @param begin   {@link #begin()} 的返回值
+     * @param success 是否成功
+     */
+    void end(long begin, boolean success) {
+        this.inFlight.decrementAndGet();
+        long time = System.nanoTime() - begin;
+        if (success) {
+            this.count.incrementAndGet();
+        } else {
+            this.errorCount.incrementAndGet();
+            time = Math.max(time, FAILURE_PENALTY_NANOS);
+        }
+        if (this.samples.getAndIncrement() == 0) {
+            this.ewmaNanos = time;
+        } else {
+            this.ewmaNanos = this.ewmaNanos + ALPHA * (time - this.ewmaNanos);
+        }
+    }
+
+    public String getDsKey() {
+        return dsKey;
+    }
+
+    /**
+     * @return 正在使用的连接数量
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 成功使用连接的次数
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return 获取或者使用连接失败的次数
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return 连接使用时间的EWMA，单位纳秒，包括失败的惩罚时间。没有样本时为0
+     */
+    public double getEwmaNanos() {
+        return ewmaNanos;
+    }
+
+    /**
+     * @return 连接使用时间的EWMA，单位毫秒
+     */
+    public double getEwmaMillis() {
+        return ewmaNanos / 1000000;
+    }
+
+    /**
+     * @return slave的复制延迟，单位毫秒，-1为未知(没有开启检查、检查失败或者复制已经停止)
+     */
+    public long getReplicationLag() {
+        return replicationLag;
+    }
+
+    void setReplicationLag(long replicationLag) {
+        this.replicationLag = replicationLag;
+    }
+
+    @Override
+    public String toString() {
+        return "dsKey[" + dsKey + "] inFlight=" + getInFlight() + " count=" + getCount() + " errorCount=" +
+                getErrorCount() + " ewma=" + getEwmaMillis() + "ms lag=" + getReplicationLag() + "ms";
+    }
+}
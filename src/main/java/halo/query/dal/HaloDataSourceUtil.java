@@ -1,12 +1,11 @@
 package halo.query.dal;
 
-import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.mchange.v2.c3p0.DataSources;
+import com.mchange.v2.c3p0.PooledDataSource;
 import org.apache.log4j.Logger;
 
 import javax.sql.DataSource;
 import java.lang.reflect.Method;
-import java.sql.SQLException;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,24 +18,34 @@ public class HaloDataSourceUtil {
     private static Logger logger = Logger.getLogger(HaloDataSourceUtil.class);
 
     static void destory(HaloDataSourceWrapper dataSourceWrapper) {
+        destory(dataSourceWrapper.getDsKey(), dataSourceWrapper.getCreatedDataSource());
+    }
+
+    static void destory(String dsKey, DataSource dataSource) {
         try {
-            logger.info("begin destory dataSource[" + dataSourceWrapper.getDsKey() + "] ... ... ...");
-            DataSources.destroy(dataSourceWrapper.getDataSource());
-        } catch (SQLException e) {
-            logger.warn("can not destory datasource[" + dataSourceWrapper.getDsKey() + "]", e);
+            logger.info("begin destory dataSource[" + dsKey + "] ... ... ...");
+            if (dataSource instanceof PooledDataSource) {
+                DataSources.destroy(dataSource);
+            } else if (dataSource instanceof AutoCloseable) {
+                ((AutoCloseable) dataSource).close();
+            }
+        } catch (Exception e) {
+            logger.warn("can not destory datasource[" + dsKey + "]", e);
         }
     }
 
+    private static final Class<?>[] SETTER_PARAM_TYPES = {String.class, int.class, boolean.class, long.class};
+
     private static Method getMethod(Class<?> clazz, String methodName) {
-        try {
-            return getMethod(clazz, methodName, String.class);
-        } catch (NoSuchMethodException e) {
+        NoSuchMethodException ex = null;
+        for (Class<?> paramType : SETTER_PARAM_TYPES) {
             try {
-                return getMethod(clazz, methodName, int.class);
-            } catch (NoSuchMethodException e1) {
-                throw new RuntimeException(e1);
+                return getMethod(clazz, methodName, paramType);
+            } catch (NoSuchMethodException e) {
+                ex = e;
             }
         }
+        throw new RuntimeException(ex);
     }
 
     static String createSetterMethodName(String fileName) {
@@ -56,18 +65,30 @@ public class HaloDataSourceUtil {
     }
 
     static void methodInvoke(Object obj, String methodName, Object value) {
-        Method method = getMethod(ComboPooledDataSource.class, methodName);
+        Method method = getMethod(obj.getClass(), methodName);
         Class<?>[] paramTypes = method.getParameterTypes();
         Class<?> paramType = paramTypes[0];
         try {
             if (paramType.equals(String.class)) {
-                method.invoke(obj, value);
+                method.invoke(obj, value == null ? null : value.toString());
+            } else if (paramType.equals(boolean.class)) {
+                if (value instanceof Boolean) {
+                    method.invoke(obj, value);
+                } else {
+                    method.invoke(obj, Boolean.parseBoolean(value.toString()));
+                }
+            } else if (paramType.equals(long.class)) {
+                if (value instanceof Number) {
+                    method.invoke(obj, ((Number) value).longValue());
+                } else {
+                    method.invoke(obj, Long.parseLong(value.toString()));
+                }
             } else {
                 int i;
-                if (value instanceof Integer) {
-                    i = (Integer) value;
+                if (value instanceof Number) {
+                    i = ((Number) value).intValue();
                 } else {
-                    i = Integer.parseInt((String) value);
+                    i = Integer.parseInt(value.toString());
                 }
                 method.invoke(obj, i);
             }
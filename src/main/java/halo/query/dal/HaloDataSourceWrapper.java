@@ -1,10 +1,14 @@
 package halo.query.dal;
 
+import org.apache.log4j.Logger;
+
 import javax.sql.DataSource;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * 数据源包装类
@@ -12,7 +16,7 @@ import java.sql.SQLFeatureNotSupportedException;
  */
 public class HaloDataSourceWrapper implements DataSource {
 
-//    private static Logger logger = Logger.getLogger(HaloDataSourceWrapper.class);
+    private static final Logger logger = Logger.getLogger(HaloDataSourceWrapper.class);
 
 //    /**
 //     * 连接池是否被停用,默认没有被停用
@@ -21,9 +25,26 @@ public class HaloDataSourceWrapper implements DataSource {
 
 //    private AtomicInteger counter = new AtomicInteger(0);
 
+    /**
+     * 正在关闭延迟创建的连接池时 activeCount 的值
+     */
+    private static final int CLOSING = Integer.MIN_VALUE / 2;
+
     private String dsKey;
 
-    private DataSource dataSource;
+    private volatile DataSource dataSource;
+
+    /**
+     * 不为空时，连接池在第一次使用时创建，空闲后可以被关闭
+     */
+    private Supplier<DataSource> dataSourceFactory;
+
+    /**
+     * 正在使用的连接数量
+     */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    private volatile long lastAccess = System.nanoTime();
 
     /**
      * 引用的数据源DsKey，不为空时，检查引用数据源
@@ -40,14 +61,36 @@ public class HaloDataSourceWrapper implements DataSource {
      */
     private String db;
 
+    /**
+     * 每个物理连接缓存的PreparedStatement数量，0为不缓存。只对内置连接池 {@link HaloPooledDataSource} 有效，
+     * c3p0可以使用 maxStatementsPerConnection 配置
+     */
+    private int stmtCacheSize;
+
+    private final HaloStatementCacheStats statementCacheStats = new HaloStatementCacheStats();
+
+    /**
+     * 使用当前dsKey获取连接的统计，引用数据源与被引用的数据源分别统计
+     */
+    private final HaloDataSourceStats stats;
+
     HaloDataSourceWrapper(String dsKey, DataSource dataSource, String refDsKey, String db, boolean slaveMode) {
         this.dsKey = dsKey;
+        this.stats = new HaloDataSourceStats(dsKey);
         this.dataSource = dataSource;
         this.refDsKey = refDsKey;
         this.db = db;
         this.slaveMode = slaveMode;
     }
 
+    /**
+     * 创建连接池在第一次使用时才创建的数据源
+     */
+    HaloDataSourceWrapper(String dsKey, Supplier<DataSource> dataSourceFactory) {
+        this(dsKey, null, null, null, false);
+        this.dataSourceFactory = dataSourceFactory;
+    }
+
     boolean isSlaveMode() {
         return slaveMode;
     }
@@ -60,6 +103,32 @@ public class HaloDataSourceWrapper implements DataSource {
         return refDsKey;
     }
 
+    int getStmtCacheSize() {
+        return stmtCacheSize;
+    }
+
+    void setStmtCacheSize(int stmtCacheSize) {
+        this.stmtCacheSize = stmtCacheSize;
+    }
+
+    /**
+     * 获得当前数据源PreparedStatement缓存的统计
+     *
+     * @return 统计对象
+     */
+    public HaloStatementCacheStats getStatementCacheStats() {
+        return statementCacheStats;
+    }
+
+    /**
+     * 获得使用当前dsKey获取连接的统计
+     *
+     * @return 统计对象
+     */
+    public HaloDataSourceStats getStats() {
+        return stats;
+    }
+
     public boolean isRef() {
         return this.refDsKey != null;
     }
@@ -68,8 +137,94 @@ public class HaloDataSourceWrapper implements DataSource {
         return dsKey;
     }
 
+    /**
+     * 获得连接池，延迟创建的连接池还没有创建时进行创建
+     *
+     * @return 连接池，引用数据源与slave模式数据源返回null
+     */
     public DataSource getDataSource() {
-        return dataSource;
+        DataSource ds = this.dataSource;
+        if (ds == null && this.dataSourceFactory != null) {
+            return this.createDataSource();
+        }
+        return ds;
+    }
+
+    /**
+     * 获得已经创建的连接池，不会创建延迟创建的连接池
+     */
+    DataSource getCreatedDataSource() {
+        return this.dataSource;
+    }
+
+    /**
+     * 是否是连接池在第一次使用时才创建的数据源
+     */
+    boolean isLazy() {
+        return this.dataSourceFactory != null;
+    }
+
+    private synchronized DataSource createDataSource() {
+        if (this.dataSource == null) {
+            this.dataSource = this.dataSourceFactory.get();
+            logger.info("create pool of dataSource[" + this.dsKey + "]");
+        }
+        return this.dataSource;
+    }
+
+    /**
+     * 关闭空闲超过 idleNanos 并且没有正在使用连接的延迟创建连接池
+     *
+     * @return 被关闭的连接池，没有关闭时返回null
+     */
+    synchronized DataSource closeIfIdle(long idleNanos) {
+        if (this.dataSourceFactory == null || this.dataSource == null) {
+            return null;
+        }
+        if (System.nanoTime() - this.lastAccess < idleNanos) {
+            return null;
+        }
+        if (!this.activeCount.compareAndSet(0, CLOSING)) {
+            return null;
+        }
+        try {
+            DataSource ds = this.dataSource;
+            this.dataSource = null;
+            return ds;
+        } finally {
+            this.activeCount.addAndGet(-CLOSING);
+        }
+    }
+
+    /**
+     * 获得连接前调用，保证使用期间连接池不会被关闭
+     */
+    private DataSource acquire() {
+        while (true) {
+            if (this.activeCount.incrementAndGet() > 0) {
+                return this.getDataSource();
+            }
+            // 连接池正在被关闭，等待关闭完成后重新创建
+            this.activeCount.decrementAndGet();
+            synchronized (this) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 连接关闭或者获取连接失败时调用
+     */
+    void release() {
+        this.lastAccess = System.nanoTime();
+        this.activeCount.decrementAndGet();
+    }
+
+    /**
+     * @return 正在使用的连接数量
+     */
+    public int getActiveCount() {
+        return Math.max(0, this.activeCount.get());
     }
 
 //    public boolean isDiscarded() {
@@ -82,49 +237,63 @@ public class HaloDataSourceWrapper implements DataSource {
 
     @Override
     public Connection getConnection() throws SQLException {
-        Connection con = this.dataSource.getConnection();
+        return this.getHaloConnection();
+    }
+
+    HaloConnectionWrapper getHaloConnection() throws SQLException {
+        DataSource ds = this.acquire();
+        Connection con;
+        try {
+            con = ds.getConnection();
+        } catch (SQLException e) {
+            this.release();
+            throw e;
+        } catch (RuntimeException e) {
+            this.release();
+            throw e;
+        }
 //        this.incrCounter();
         return new HaloConnectionWrapper(con, this);
     }
 
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        return this.dataSource.getConnection(username, password);
+        return this.getDataSource().getConnection(username, password);
     }
 
     @Override
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        return this.dataSource.unwrap(iface);
+        return this.getDataSource().unwrap(iface);
     }
 
     @Override
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return this.dataSource.isWrapperFor(iface);
+        return this.getDataSource().isWrapperFor(iface);
     }
 
     @Override
     public PrintWriter getLogWriter() throws SQLException {
-        return this.dataSource.getLogWriter();
+        return this.getDataSource().getLogWriter();
     }
 
     @Override
     public void setLogWriter(PrintWriter out) throws SQLException {
-        this.dataSource.setLogWriter(out);
+        this.getDataSource().setLogWriter(out);
     }
 
     @Override
     public void setLoginTimeout(int seconds) throws SQLException {
-        this.dataSource.setLoginTimeout(seconds);
+        this.getDataSource().setLoginTimeout(seconds);
     }
 
     @Override
     public int getLoginTimeout() throws SQLException {
-        return this.dataSource.getLoginTimeout();
+        return this.getDataSource().getLoginTimeout();
     }
 
     @Override
     public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
-        return this.dataSource.getParentLogger();
+        return this.getDataSource().getParentLogger();
     }
 
 //    public void incrCounter() {
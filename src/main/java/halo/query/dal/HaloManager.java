@@ -1,7 +1,9 @@
 package halo.query.dal;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 数据源管理
@@ -52,4 +54,19 @@ public class HaloManager {
         }
         return list;
     }
+
+    /**
+     * 获取所有数据源的PreparedStatement缓存统计
+     *
+     * @return dsKey与统计的对应
+     */
+    public Map<String, HaloStatementCacheStats> getStatementCacheStats() {
+        Map<String, HaloStatementCacheStats> map = new HashMap<>();
+        for (HaloDataSourceWrapper dataSource : this.haloDALDataSource.getDataSources()) {
+            if (dataSource.getStmtCacheSize() > 0) {
+                map.put(dataSource.getDsKey(), dataSource.getStatementCacheStats());
+            }
+        }
+        return map;
+    }
 }
@@ -0,0 +1,394 @@
+package halo.query.dal;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link HaloPooledDataSource} 借出的连接，关闭时恢复被修改的连接属性并归还到连接池.<br>
+ * 关闭后再调用其他方法会抛出 SQLException
+ */
+final class HaloPooledConnection implements Connection {
+
+    private Connection con;
+
+    private final HaloPooledDataSource pool;
+
+    private final HaloPooledDataSource.PoolEntry entry;
+
+    /**
+     * 是否修改过autoCommit、readOnly、transactionIsolation，归还时需要恢复.<br>
+     * catalog 不恢复，由 {@link HaloPooledDataSource.PoolEntry#catalog} 记录物理连接当前的数据库，避免重复切换
+     */
+    private boolean autoCommitChanged;
+
+    private boolean readOnlyChanged;
+
+    private int originIsolation = -1;
+
+    HaloPooledConnection(Connection con, HaloPooledDataSource pool, HaloPooledDataSource.PoolEntry entry) {
+        this.con = con;
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    /**
+     * 获得物理连接的PreparedStatement缓存，第一次使用时创建
+     */
+    HaloStatementCache getStatementCache(int maxSize, HaloStatementCacheStats stats) {
+        HaloStatementCache cache = this.entry.statementCache;
+        if (cache == null) {
+            cache = new HaloStatementCache(this.entry.con, maxSize, stats);
+            this.entry.statementCache = cache;
+        }
+        return cache;
+    }
+
+    private Connection delegate() throws SQLException {
+        Connection _con = this.con;
+        if (_con == null) {
+            throw new SQLException("connection is closed");
+        }
+        return _con;
+    }
+
+    private Connection clientInfoDelegate() throws SQLClientInfoException {
+        Connection _con = this.con;
+        if (_con == null) {
+            throw new SQLClientInfoException("connection is closed", null);
+        }
+        return _con;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        Connection _con = this.con;
+        if (_con == null) {
+            return;
+        }
+        this.con = null;
+        if (this.entry.statementCache != null) {
+            this.entry.statementCache.releaseAll();
+        }
+        try {
+            this.restore(_con);
+        } catch (SQLException e) {
+            this.pool.remove(this.entry);
+            throw e;
+        }
+        this.pool.requite(this.entry);
+    }
+
+    /**
+     * 回滚未提交的事务，恢复被修改的连接属性
+     */
+    private void restore(Connection _con) throws SQLException {
+        if (this.autoCommitChanged) {
+            if (!_con.getAutoCommit()) {
+                _con.rollback();
+                _con.setAutoCommit(true);
+            }
+        }
+        if (this.readOnlyChanged) {
+            _con.setReadOnly(false);
+        }
+        if (this.originIsolation != -1) {
+            _con.setTransactionIsolation(this.originIsolation);
+        }
+        _con.clearWarnings();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return this.con == null;
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        this.delegate().setAutoCommit(autoCommit);
+        this.autoCommitChanged = true;
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        this.delegate().setReadOnly(readOnly);
+        this.readOnlyChanged = true;
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        Connection _con = this.delegate();
+        if (catalog != null && catalog.equals(this.entry.catalog)) {
+            return;
+        }
+        this.entry.catalog = null;
+        _con.setCatalog(catalog);
+        this.entry.catalog = catalog;
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        Connection _con = this.delegate();
+        String catalog = this.entry.catalog;
+        if (catalog == null) {
+            catalog = _con.getCatalog();
+            this.entry.catalog = catalog;
+        }
+        return catalog;
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        Connection _con = this.delegate();
+        if (this.originIsolation == -1) {
+            this.originIsolation = _con.getTransactionIsolation();
+        }
+        _con.setTransactionIsolation(level);
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        Connection _con = this.con;
+        if (_con == null) {
+            return;
+        }
+        this.con = null;
+        this.pool.remove(this.entry);
+        _con.abort(executor);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        return this.delegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || this.delegate().isWrapperFor(iface);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return this.delegate().createStatement();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return this.delegate().prepareStatement(sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return this.delegate().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return this.delegate().nativeSQL(sql);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return this.delegate().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        this.delegate().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        this.delegate().rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return this.delegate().getMetaData();
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return this.delegate().isReadOnly();
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return this.delegate().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return this.delegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        this.delegate().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.delegate().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.delegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return this.delegate().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        this.delegate().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        this.delegate().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return this.delegate().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return this.delegate().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return this.delegate().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        this.delegate().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        this.delegate().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return this.delegate().prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return this.delegate().prepareStatement(sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return this.delegate().prepareStatement(sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return this.delegate().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return this.delegate().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return this.delegate().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return this.delegate().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return this.delegate().isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        this.clientInfoDelegate().setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        this.clientInfoDelegate().setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return this.delegate().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return this.delegate().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return this.delegate().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return this.delegate().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        this.delegate().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return this.delegate().getSchema();
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        this.delegate().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return this.delegate().getNetworkTimeout();
+    }
+}
@@ -0,0 +1,874 @@
+package halo.query.dal;
+
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内置的轻量连接池，可以代替c3p0在 {@link HaloPropertiesDataSource} 中使用，dataSourceClassName 设置为
+ * halo.query.dal.HaloPooledDataSource 即可.<br>
+ * 配置属性的名称与c3p0相同(driverClass、jdbcUrl、user、password、minPoolSize、maxPoolSize、initialPoolSize、
+ * checkoutTimeout、maxIdleTime、idleConnectionTestPeriod、preferredTestQuery、testConnectionOnCheckout)，
+ * 只影响c3p0内部实现的配置(acquireIncrement、maxStatements等)会被忽略.<br>
+ * 获取连接时先检查当前线程最近使用的连接，然后无锁扫描共享列表，没有空闲连接时等待其他线程归还的连接，
+ * 连接数没有达到上限时同时由后台线程创建新的连接，先得到哪个连接就使用哪个.
+ * 空闲超过 validationIdleMillis 的连接在获取时会进行检查.<br>
+ * 使用完成后需要调用 {@link #close()} 关闭连接池
+ */
+public class HaloPooledDataSource implements DataSource, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(HaloPooledDataSource.class);
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+    /**
+     * 每个线程最多记录的最近使用的连接数量
+     */
+    private static final int THREAD_ENTRY_SIZE = 8;
+
+    /**
+     * 当前线程最近使用的连接，所有连接池共享，线程使用很多数据源时也只保存 THREAD_ENTRY_SIZE 个连接.
+     * 使用弱引用，避免线程持有已经移除的连接
+     */
+    private static final ThreadLocal<List<WeakReference<PoolEntry>>> THREAD_ENTRIES = new ThreadLocal<>();
+
+    private static final AtomicInteger CREATOR_NUMBER = new AtomicInteger(1);
+
+    /**
+     * 所有连接池共享的创建连接的线程池，获取连接的线程不需要等待连接创建完成，可以使用在此期间归还的连接
+     */
+    private static final ThreadPoolExecutor CREATOR = createCreator();
+
+    private final CopyOnWriteArrayList<PoolEntry> sharedList = new CopyOnWriteArrayList<>();
+
+    /**
+     * 等待连接的线程在 available 上等待，连接归还、创建完成或者移除时通知
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+
+    private final Condition available = this.waitLock.newCondition();
+
+    /**
+     * 连接归还、创建或者移除的次数，等待前检查是否有变化，避免错过扫描之后的通知
+     */
+    private final AtomicLong changeSequence = new AtomicLong();
+
+    /**
+     * 创建连接失败的次数，等待连接的线程发现有新的失败时抛出异常
+     */
+    private final AtomicLong createErrorSequence = new AtomicLong();
+
+    private volatile Exception createError;
+
+    /**
+     * 正在后台创建的连接数量
+     */
+    private final AtomicInteger pendingCreates = new AtomicInteger();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final AtomicLong destroyedCount = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private final Object initLock = new Object();
+
+    private volatile boolean initialized;
+
+    private volatile boolean closed;
+
+    private ScheduledExecutorService housekeeper;
+
+    private String driverClass;
+
+    private String jdbcUrl;
+
+    private String user;
+
+    private String password;
+
+    private int minPoolSize = 3;
+
+    private int maxPoolSize = 15;
+
+    private int initialPoolSize = 3;
+
+    /**
+     * 等待连接的最长时间，单位毫秒，0为一直等待
+     */
+    private int checkoutTimeout;
+
+    /**
+     * 空闲连接的最长保留时间，单位秒，0为一直保留
+     */
+    private int maxIdleTime;
+
+    /**
+     * 检查空闲连接的间隔，单位秒，0为不检查
+     */
+    private int idleConnectionTestPeriod;
+
+    private String preferredTestQuery;
+
+    /**
+     * 获取连接时是否总是检查连接
+     */
+    private boolean testConnectionOnCheckout;
+
+    /**
+     * 连接空闲超过此时间才会在获取时检查，单位毫秒
+     */
+    private long validationIdleMillis = 500;
+
+    /**
+     * 检查连接的超时时间，单位秒
+     */
+    private int validationTimeout = 3;
+
+    /**
+     * 多个连接池共享的物理连接数量上限，为空时不限制
+     */
+    private Semaphore connectionPermits;
+
+    private volatile int loginTimeout;
+
+    private volatile PrintWriter logWriter;
+
+    public void setDriverClass(String driverClass) {
+        this.driverClass = driverClass;
+    }
+
+    public String getDriverClass() {
+        return driverClass;
+    }
+
+    public void setJdbcUrl(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setInitialPoolSize(int initialPoolSize) {
+        this.initialPoolSize = initialPoolSize;
+    }
+
+    public int getInitialPoolSize() {
+        return initialPoolSize;
+    }
+
+    public void setCheckoutTimeout(int checkoutTimeout) {
+        this.checkoutTimeout = checkoutTimeout;
+    }
+
+    public int getCheckoutTimeout() {
+        return checkoutTimeout;
+    }
+
+    public void setMaxIdleTime(int maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public void setIdleConnectionTestPeriod(int idleConnectionTestPeriod) {
+        this.idleConnectionTestPeriod = idleConnectionTestPeriod;
+    }
+
+    public int getIdleConnectionTestPeriod() {
+        return idleConnectionTestPeriod;
+    }
+
+    public void setPreferredTestQuery(String preferredTestQuery) {
+        this.preferredTestQuery = preferredTestQuery;
+    }
+
+    public String getPreferredTestQuery() {
+        return preferredTestQuery;
+    }
+
+    public void setTestConnectionOnCheckout(boolean testConnectionOnCheckout) {
+        this.testConnectionOnCheckout = testConnectionOnCheckout;
+    }
+
+    public boolean isTestConnectionOnCheckout() {
+        return testConnectionOnCheckout;
+    }
+
+    public void setValidationIdleMillis(long validationIdleMillis) {
+        this.validationIdleMillis = validationIdleMillis;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * 设置多个连接池共享的物理连接数量上限，每个物理连接占用一个许可，连接关闭时释放
+     *
+     * @param connectionPermits 许可
+     */
+    public void setConnectionPermits(Semaphore connectionPermits) {
+        this.connectionPermits = connectionPermits;
+    }
+
+    /**
+     * c3p0兼容配置，内置连接池每次创建一个连接，忽略此配置
+     */
+    public void setAcquireIncrement(int acquireIncrement) {
+    }
+
+    /**
+     * c3p0兼容配置，statement缓存使用 stmtCacheSize 配置，忽略此配置
+     */
+    public void setMaxStatements(int maxStatements) {
+    }
+
+    /**
+     * c3p0兼容配置，忽略此配置
+     */
+    public void setMaxStatementsPerConnection(int maxStatementsPerConnection) {
+    }
+
+    /**
+     * @return 连接池中的连接总数
+     */
+    public int getTotalConnections() {
+        return this.totalConnections.get();
+    }
+
+    /**
+     * @return 正在使用的连接数量
+     */
+    public int getActiveConnections() {
+        int count = 0;
+        for (PoolEntry entry : this.sharedList) {
+            if (entry.state.get() == PoolEntry.IN_USE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 空闲的连接数量
+     */
+    public int getIdleConnections() {
+        int count = 0;
+        for (PoolEntry entry : this.sharedList) {
+            if (entry.state.get() == PoolEntry.NOT_IN_USE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 正在等待连接的线程数量
+     */
+    public int getThreadsAwaitingConnection() {
+        return this.waiters.get();
+    }
+
+    public long getBorrowCount() {
+        return this.borrowCount.get();
+    }
+
+    /**
+     * @return 等待连接超时的次数
+     */
+    public long getTimeoutCount() {
+        return this.timeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return this.createdCount.get();
+    }
+
+    public long getDestroyedCount() {
+        return this.destroyedCount.get();
+    }
+
+    /**
+     * @return 获取连接的平均等待时间，单位毫秒
+     */
+    public double getAvgWaitMillis() {
+        long count = this.borrowCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return this.waitNanos.get() / 1000000.0 / count;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!this.initialized) {
+            this.init();
+        }
+        long begin = System.nanoTime();
+        PoolEntry entry = this.borrow(begin);
+        this.borrowCount.incrementAndGet();
+        this.waitNanos.addAndGet(System.nanoTime() - begin);
+        return new HaloPooledConnection(entry.con, this, entry);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("use getConnection()");
+    }
+
+    private void init() throws SQLException {
+        synchronized (this.initLock) {
+            if (this.initialized) {
+                return;
+            }
+            if (this.closed) {
+                throw new SQLException("pool is closed");
+            }
+            if (this.jdbcUrl == null) {
+                throw new SQLException("jdbcUrl must be not null");
+            }
+            if (this.driverClass != null) {
+                try {
+                    Class.forName(this.driverClass);
+                } catch (ClassNotFoundException e) {
+                    throw new SQLException("can not load driverClass[" + this.driverClass + "]", e);
+                }
+            }
+            for (int i = 0; i < this.initialPoolSize; i++) {
+                PoolEntry entry = this.tryCreate();
+                if (entry == null) {
+                    break;
+                }
+                entry.state.set(PoolEntry.NOT_IN_USE);
+            }
+            final String name = "HaloPooledDataSource-housekeeper-" + POOL_NUMBER.getAndIncrement();
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long period = this.idleConnectionTestPeriod > 0 ? this.idleConnectionTestPeriod : 30;
+            this.housekeeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        housekeep();
+                    } catch (Throwable e) {
+                        logger.warn("pool housekeeping error", e);
+                    }
+                }
+            }, period, period, TimeUnit.SECONDS);
+            this.initialized = true;
+        }
+    }
+
+    private PoolEntry borrow(long begin) throws SQLException {
+        // 当前线程最近使用的连接
+        List<WeakReference<PoolEntry>> threadEntries = THREAD_ENTRIES.get();
+        if (threadEntries != null) {
+            for (int i = threadEntries.size() - 1; i >= 0; i--) {
+                PoolEntry entry = threadEntries.get(i).get();
+                if (entry != null && entry.pool == this &&
+                        entry.state.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                    if (this.checkBorrowed(entry)) {
+                        return entry;
+                    }
+                }
+            }
+        }
+        long timeoutNanos = this.checkoutTimeout > 0 ? TimeUnit.MILLISECONDS.toNanos(this.checkoutTimeout) :
+                Long.MAX_VALUE;
+        // 当前操作设置了期限时，等待连接的时间不超过剩余时间
+        long deadline = DALScope.current().getDeadline();
+        if (deadline > 0) {
+            long remainNanos = TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis()) +
+                    (System.nanoTime() - begin);
+            timeoutNanos = Math.min(timeoutNanos, Math.max(0, remainNanos));
+        }
+        this.waiters.incrementAndGet();
+        try {
+            long errorSequence = this.createErrorSequence.get();
+            while (true) {
+                if (this.closed) {
+                    throw new SQLException("pool is closed");
+                }
+                long sequence = this.changeSequence.get();
+                for (PoolEntry entry : this.sharedList) {
+                    if (entry.state.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                        if (this.checkBorrowed(entry)) {
+                            return entry;
+                        }
+                    }
+                }
+                if (this.createErrorSequence.get() != errorSequence && this.pendingCreates.get() == 0) {
+                    // 开始等待之后创建连接失败，并且没有正在创建的连接
+                    throw new SQLException("can not create connection of jdbcUrl[" + this.jdbcUrl + "]",
+                            this.createError);
+                }
+                if (this.pendingCreates.get() < this.waiters.get()) {
+                    this.createAsync();
+                }
+                long remain = timeoutNanos - (System.nanoTime() - begin);
+                if (remain <= 0) {
+                    this.timeoutCount.incrementAndGet();
+                    throw new SQLTransientConnectionException("get connection timeout, waited " +
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms, active=" + this.getActiveConnections() + " total=" +
+                            this.totalConnections.get());
+                }
+                this.waitLock.lock();
+                try {
+                    if (this.changeSequence.get() == sequence) {
+                        this.available.awaitNanos(remain);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("interrupted while waiting for connection", e);
+                } finally {
+                    this.waitLock.unlock();
+                }
+            }
+        } finally {
+            this.waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 通知等待连接的线程重新扫描共享列表
+     *
+     * @param all true:通知所有等待的线程
+     */
+    private void signalWaiters(boolean all) {
+        this.changeSequence.incrementAndGet();
+        if (this.waiters.get() == 0) {
+            return;
+        }
+        this.waitLock.lock();
+        try {
+            if (all) {
+                this.available.signalAll();
+            } else {
+                this.available.signal();
+            }
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    /**
+     * 检查获取到的连接，连接不可用时移除连接
+     *
+     * @return false:连接不可用
+     */
+    private boolean checkBorrowed(PoolEntry entry) {
+        if (this.testConnectionOnCheckout ||
+                System.nanoTime() - entry.lastAccess > TimeUnit.MILLISECONDS.toNanos(this.validationIdleMillis)) {
+            if (!this.isConnectionAlive(entry.con)) {
+                this.remove(entry);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 连接数量没有达到上限时创建新的连接，新的连接为使用状态
+     *
+     * @return 达到上限时返回null
+     */
+    private PoolEntry tryCreate() throws SQLException {
+        if (!this.reserveCreateSlot()) {
+            return null;
+        }
+        try {
+            PoolEntry entry = new PoolEntry(this.newConnection(), this);
+            this.sharedList.add(entry);
+            this.createdCount.incrementAndGet();
+            return entry;
+        } catch (SQLException e) {
+            this.releaseCreateSlot();
+            throw e;
+        } catch (RuntimeException e) {
+            this.releaseCreateSlot();
+            throw e;
+        }
+    }
+
+    /**
+     * 连接数量没有达到上限时在后台创建新的连接，创建完成后放入共享列表并通知等待的线程
+     */
+    private void createAsync() {
+        if (!this.reserveCreateSlot()) {
+            return;
+        }
+        this.pendingCreates.incrementAndGet();
+        CREATOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean failed = false;
+                try {
+                    if (closed) {
+                        releaseCreateSlot();
+                        return;
+                    }
+                    PoolEntry entry = new PoolEntry(newConnection(), HaloPooledDataSource.this);
+                    sharedList.add(entry);
+                    createdCount.incrementAndGet();
+                    entry.state.set(PoolEntry.NOT_IN_USE);
+                    if (closed && entry.state.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                        remove(entry);
+                    }
+                } catch (Exception e) {
+                    failed = true;
+                    releaseCreateSlot();
+                    createError = e;
+                    createErrorSequence.incrementAndGet();
+                    logger.warn("can not create connection of jdbcUrl[" + jdbcUrl + "]: " + e.getMessage());
+                } finally {
+                    pendingCreates.decrementAndGet();
+                    signalWaiters(failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * 占用一个连接数量，同时占用全局许可
+     *
+     * @return false:达到本连接池或者全局的上限
+     */
+    private boolean reserveCreateSlot() {
+        int cur;
+        do {
+            cur = this.totalConnections.get();
+            if (cur >= this.maxPoolSize) {
+                return false;
+            }
+        } while (!this.totalConnections.compareAndSet(cur, cur + 1));
+        if (this.connectionPermits != null && !this.connectionPermits.tryAcquire()) {
+            // 达到全局上限，等待本连接池归还的连接
+            this.totalConnections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseCreateSlot() {
+        this.totalConnections.decrementAndGet();
+        if (this.connectionPermits != null) {
+            this.connectionPermits.release();
+        }
+    }
+
+    private static ThreadPoolExecutor createCreator() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HaloPooledDataSource-creator-" + CREATOR_NUMBER.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private Connection newConnection() throws SQLException {
+        Properties props = new Properties();
+        if (this.user != null) {
+            props.setProperty("user", this.user);
+        }
+        if (this.password != null) {
+            props.setProperty("password", this.password);
+        }
+        Connection con = DriverManager.getConnection(this.jdbcUrl, props);
+        if (con == null) {
+            throw new SQLException("no driver accepts jdbcUrl[" + this.jdbcUrl + "]");
+        }
+        return con;
+    }
+
+    private boolean isConnectionAlive(Connection con) {
+        try {
+            if (this.preferredTestQuery == null) {
+                return con.isValid(this.validationTimeout);
+            }
+            try (Statement stmt = con.createStatement()) {
+                stmt.setQueryTimeout(this.validationTimeout);
+                stmt.execute(this.preferredTestQuery);
+            }
+            return true;
+        } catch (SQLException e) {
+            logger.warn("connection of jdbcUrl[" + this.jdbcUrl + "] is broken: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 归还连接
+     */
+    void requite(PoolEntry entry) {
+        if (this.closed) {
+            this.remove(entry);
+            return;
+        }
+        entry.lastAccess = System.nanoTime();
+        entry.state.set(PoolEntry.NOT_IN_USE);
+        this.signalWaiters(false);
+        recordThreadEntry(entry);
+    }
+
+    /**
+     * 记录当前线程最近使用的连接，超过 THREAD_ENTRY_SIZE 时移除最久没有使用的
+     */
+    private static void recordThreadEntry(PoolEntry entry) {
+        List<WeakReference<PoolEntry>> threadEntries = THREAD_ENTRIES.get();
+        if (threadEntries == null) {
+            threadEntries = new ArrayList<>(THREAD_ENTRY_SIZE + 1);
+            THREAD_ENTRIES.set(threadEntries);
+        }
+        int last = threadEntries.size() - 1;
+        if (last >= 0 && threadEntries.get(last).get() == entry) {
+            return;
+        }
+        for (int i = last; i >= 0; i--) {
+            PoolEntry e = threadEntries.get(i).get();
+            if (e == null || e == entry || e.state.get() == PoolEntry.REMOVED) {
+                threadEntries.remove(i);
+            }
+        }
+        threadEntries.add(new WeakReference<>(entry));
+        if (threadEntries.size() > THREAD_ENTRY_SIZE) {
+            threadEntries.remove(0);
+        }
+    }
+
+    /**
+     * 从连接池中移除并关闭连接，用于连接已经损坏的情况
+     */
+    void remove(PoolEntry entry) {
+        if (entry.state.getAndSet(PoolEntry.REMOVED) == PoolEntry.REMOVED) {
+            return;
+        }
+        if (this.sharedList.remove(entry)) {
+            this.releaseCreateSlot();
+            this.destroyedCount.incrementAndGet();
+            // 连接数量减少后等待的线程可以创建新的连接
+            this.signalWaiters(false);
+        }
+        if (entry.statementCache != null) {
+            entry.statementCache.close();
+        }
+        closeQuietly(entry.con);
+    }
+
+    /**
+     * 关闭空闲超时的连接，检查空闲连接，补充连接到 minPoolSize
+     */
+    void housekeep() {
+        if (this.closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long maxIdleNanos = TimeUnit.SECONDS.toNanos(this.maxIdleTime);
+        for (PoolEntry entry : this.sharedList) {
+            if (!entry.state.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                continue;
+            }
+            if (this.maxIdleTime > 0 && now - entry.lastAccess > maxIdleNanos &&
+                    this.totalConnections.get() > this.minPoolSize) {
+                this.remove(entry);
+                continue;
+            }
+            if (this.idleConnectionTestPeriod > 0 && !this.isConnectionAlive(entry.con)) {
+                this.remove(entry);
+                continue;
+            }
+            entry.state.set(PoolEntry.NOT_IN_USE);
+        }
+        while (!this.closed && this.totalConnections.get() < this.minPoolSize) {
+            try {
+                PoolEntry entry = this.tryCreate();
+                if (entry == null) {
+                    break;
+                }
+                this.requite(entry);
+            } catch (SQLException e) {
+                logger.warn("can not fill pool of jdbcUrl[" + this.jdbcUrl + "]", e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * 关闭连接池，空闲连接立即关闭，正在使用的连接在归还时关闭
+     */
+    @Override
+    public void close() {
+        synchronized (this.initLock) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        if (this.housekeeper != null) {
+            this.housekeeper.shutdownNow();
+        }
+        List<PoolEntry> list = new ArrayList<>(this.sharedList);
+        for (PoolEntry entry : list) {
+            if (entry.state.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                this.remove(entry);
+            }
+        }
+        this.signalWaiters(true);
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            logger.warn("close connection error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return this.logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return this.loginTimeout;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        throw new SQLException("not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * 连接池中的连接
+     */
+    static final class PoolEntry {
+
+        static final int NOT_IN_USE = 0;
+
+        static final int IN_USE = 1;
+
+        /**
+         * 后台任务正在检查
+         */
+        static final int RESERVED = 2;
+
+        static final int REMOVED = -1;
+
+        final Connection con;
+
+        /**
+         * 连接所属的连接池
+         */
+        final HaloPooledDataSource pool;
+
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+
+        volatile long lastAccess = System.nanoTime();
+
+        /**
+         * 物理连接当前的数据库，为null时未知
+         */
+        String catalog;
+
+        /**
+         * 物理连接的PreparedStatement缓存，使用数据源的stmtCacheSize配置，只在借出连接的线程中使用
+         */
+        HaloStatementCache statementCache;
+
+        PoolEntry(Connection con, HaloPooledDataSource pool) {
+            this.con = con;
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package halo.query.dal;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.Calendar;
+
+/**
+ * 可以被 {@link HaloStatementCache} 缓存的PreparedStatement包装类.<br>
+ * close 时不会关闭真实的statement，而是清除参数后放回缓存，直到被淘汰或者所属连接关闭
+ */
+class HaloPreparedStatementWrapper implements PreparedStatement {
+
+    private final PreparedStatement ps;
+
+    private final HaloStatementCache cache;
+
+    private final HaloStatementCache.Key key;
+
+    /**
+     * 本次借出的连接
+     */
+    private Connection con;
+
+    /**
+     * 使用者是否已经调用了close
+     */
+    private boolean closed;
+
+    /**
+     * 是否使用过批量操作，放回缓存时需要清除
+     */
+    private boolean batched;
+
+    /**
+     * 是否修改过queryTimeout、fetchSize、maxRows、maxFieldSize、fetchDirection、escapeProcessing、poolable，
+     * 放回缓存时需要恢复
+     */
+    private boolean modified;
+
+    /**
+     * 调用过closeOnCompletion，无法恢复，不能再放回缓存
+     */
+    private boolean closeOnCompletion;
+
+    /**
+     * getGeneratedKeys 返回的结果集，放回缓存时关闭
+     */
+    private ResultSet generatedKeys;
+
+    HaloPreparedStatementWrapper(PreparedStatement ps, HaloStatementCache cache, HaloStatementCache.Key key,
+                                 Connection con) {
+        this.ps = ps;
+        this.cache = cache;
+        this.key = key;
+        this.con = con;
+    }
+
+    HaloStatementCache.Key getKey() {
+        return key;
+    }
+
+    /**
+     * 从缓存中再次取出时调用
+     *
+     * @param con 本次借出的连接
+     */
+    void reopen(Connection con) {
+        this.con = con;
+        this.closed = false;
+    }
+
+    boolean isInUse() {
+        return !this.closed;
+    }
+
+    /**
+     * @return 是否可以放回缓存
+     */
+    boolean isReusable() {
+        return !this.closeOnCompletion;
+    }
+
+    /**
+     * 放回缓存前清除本次使用留下的状态
+     *
+     * @throws SQLException 清除失败时，statement不能再被复用
+     */
+    void reset() throws SQLException {
+        ResultSet rs = this.ps.getResultSet();
+        if (rs != null) {
+            rs.close();
+        }
+        if (this.generatedKeys != null) {
+            ResultSet keys = this.generatedKeys;
+            this.generatedKeys = null;
+            keys.close();
+        }
+        this.ps.clearParameters();
+        if (this.batched) {
+            this.ps.clearBatch();
+            this.batched = false;
+        }
+        if (this.modified) {
+            this.ps.setQueryTimeout(0);
+            this.ps.setFetchSize(0);
+            this.ps.setMaxRows(0);
+            this.ps.setMaxFieldSize(0);
+            this.ps.setFetchDirection(ResultSet.FETCH_FORWARD);
+            this.ps.setEscapeProcessing(true);
+            this.ps.setPoolable(true);
+            this.modified = false;
+        }
+        this.ps.clearWarnings();
+    }
+
+    /**
+     * 执行sql出现异常时通知借出的连接，连接关闭时作为失败计入统计
+     */
+    private SQLException failed(SQLException e) {
+        if (this.con instanceof HaloConnectionWrapper) {
+            ((HaloConnectionWrapper) this.con).markFailed();
+        }
+        return e;
+    }
+
+    /**
+     * 关闭真实的statement
+     */
+    void closePhysically() throws SQLException {
+        this.closed = true;
+        this.ps.close();
+    }
+
+    private PreparedStatement delegate() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("statement was closed");
+        }
+        return this.ps;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.cache.release(this);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return this.closed || this.ps.isClosed();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        this.delegate().setQueryTimeout(seconds);
+        this.modified = true;
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        this.delegate().setFetchSize(rows);
+        this.modified = true;
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        this.delegate().setMaxRows(max);
+        this.modified = true;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        this.delegate();
+        return this.con;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this.ps)) {
+            return iface.cast(this.ps);
+        }
+        return this.ps.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this.ps) || this.ps.isWrapperFor(iface);
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeQuery(sql);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeUpdate(sql);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return this.delegate().getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        this.delegate().setMaxFieldSize(max);
+        this.modified = true;
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return this.delegate().getMaxRows();
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        this.delegate().setEscapeProcessing(enable);
+        this.modified = true;
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return this.delegate().getQueryTimeout();
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        this.delegate().cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return this.delegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        this.delegate().clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        this.delegate().setCursorName(name);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.execute(sql);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return this.delegate().getResultSet();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return this.delegate().getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return this.delegate().getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        this.delegate().setFetchDirection(direction);
+        this.modified = true;
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return this.delegate().getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return this.delegate().getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return this.delegate().getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return this.delegate().getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        this.batched = true;
+        this.delegate().addBatch(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        this.delegate().clearBatch();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeBatch();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return this.delegate().getMoreResults(current);
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        ResultSet rs = this.delegate().getGeneratedKeys();
+        this.generatedKeys = rs;
+        return rs;
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeUpdate(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeUpdate(sql, columnIndexes);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeUpdate(sql, columnNames);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.execute(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.execute(sql, columnIndexes);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.execute(sql, columnNames);
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return this.delegate().getResultSetHoldability();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        this.delegate().setPoolable(poolable);
+        this.modified = true;
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return this.delegate().isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        this.delegate().closeOnCompletion();
+        this.closeOnCompletion = true;
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return this.delegate().isCloseOnCompletion();
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeQuery();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.executeUpdate();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        this.delegate().setNull(parameterIndex, sqlType);
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        this.delegate().setBoolean(parameterIndex, x);
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        this.delegate().setByte(parameterIndex, x);
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        this.delegate().setShort(parameterIndex, x);
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        this.delegate().setInt(parameterIndex, x);
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        this.delegate().setLong(parameterIndex, x);
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        this.delegate().setFloat(parameterIndex, x);
+    }
+
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        this.delegate().setDouble(parameterIndex, x);
+    }
+
+    @Override
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        this.delegate().setBigDecimal(parameterIndex, x);
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        this.delegate().setString(parameterIndex, x);
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        this.delegate().setBytes(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        this.delegate().setDate(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        this.delegate().setTime(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        this.delegate().setTimestamp(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        this.delegate().setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        this.delegate().setUnicodeStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        this.delegate().setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        this.delegate().clearParameters();
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        this.delegate().setObject(parameterIndex, x, targetSqlType);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        this.delegate().setObject(parameterIndex, x);
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        PreparedStatement _ps = this.delegate();
+        try {
+            return _ps.execute();
+        } catch (SQLException e) {
+            throw this.failed(e);
+        }
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        this.batched = true;
+        this.delegate().addBatch();
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+        this.delegate().setCharacterStream(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        this.delegate().setRef(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        this.delegate().setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        this.delegate().setClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        this.delegate().setArray(parameterIndex, x);
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return this.delegate().getMetaData();
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        this.delegate().setDate(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        this.delegate().setTime(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        this.delegate().setTimestamp(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        this.delegate().setNull(parameterIndex, sqlType, typeName);
+    }
+
+    @Override
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        this.delegate().setURL(parameterIndex, x);
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return this.delegate().getParameterMetaData();
+    }
+
+    @Override
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        this.delegate().setRowId(parameterIndex, x);
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String value) throws SQLException {
+        this.delegate().setNString(parameterIndex, value);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+        this.delegate().setNCharacterStream(parameterIndex, value, length);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, NClob value) throws SQLException {
+        this.delegate().setNClob(parameterIndex, value);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        this.delegate().setClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+        this.delegate().setBlob(parameterIndex, inputStream, length);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        this.delegate().setNClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+        this.delegate().setSQLXML(parameterIndex, xmlObject);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+        this.delegate().setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        this.delegate().setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        this.delegate().setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+        this.delegate().setCharacterStream(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        this.delegate().setAsciiStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        this.delegate().setBinaryStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        this.delegate().setCharacterStream(parameterIndex, reader);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+        this.delegate().setNCharacterStream(parameterIndex, value);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader) throws SQLException {
+        this.delegate().setClob(parameterIndex, reader);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+        this.delegate().setBlob(parameterIndex, inputStream);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+        this.delegate().setNClob(parameterIndex, reader);
+    }
+}
@@ -1,10 +1,18 @@
 package halo.query.dal;
 
 import halo.query.JsonUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import javax.sql.DataSource;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * 属性配置文件的数据源
@@ -13,6 +21,8 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class HaloPropertiesDataSource extends HaloDALDataSource {
 
+    private static final Log log = LogFactory.getLog(HaloPropertiesDataSource.class);
+
     /**
      * 设置数据源的className
      */
@@ -32,89 +42,176 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
 
     private static final String DB_KEY = "db";
 
-    private final Map<String, String> GLOBAL_CONFIG_MAP = new HashMap<>();
+    /**
+     * 每个物理连接缓存的PreparedStatement数量，不属于连接池的配置，只对内置连接池有效
+     */
+    private static final String STMT_CACHE_SIZE_KEY = "stmtCacheSize";
 
     private String name;
 
+    /**
+     * 是否在第一次使用时才创建连接池，数据源数量很多时使用
+     */
+    private boolean lazyInit;
+
+    /**
+     * 是否监听配置文件的变化，变化后自动重新加载
+     */
+    private boolean watch;
+
+    private HaloPropertiesWatcher watcher;
+
+    /**
+     * 当前使用的配置，用于重新加载时判断连接池是否需要重新创建
+     */
+    private volatile LoadContext current = new LoadContext(new HashMap<String, String>());
+
     public void setName(String name) {
         this.name = name;
     }
 
+    public void setLazyInit(boolean lazyInit) {
+        this.lazyInit = lazyInit;
+    }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
+        this.load();
+        super.afterPropertiesSet();
+        if (this.watch) {
+            this.watcher = HaloPropertiesWatcher.create(this.name, new Runnable() {
+                @Override
+                public void run() {
+                    reload();
+                }
+            });
+        }
+    }
+
+    /**
+     * 重新读取配置文件，在原有拓扑之外创建新的拓扑后整体替换.<br>
+     * 配置没有变化的数据源继续使用原来的连接池，被替换的连接池在正在使用的连接归还后关闭.
+     * 出现异常时继续使用原有的拓扑
+     */
+    public synchronized void reload() {
+        ResourceBundle.clearCache();
+        this.load();
+        log.info("reload dataSource config[" + this.name + "] success");
+    }
+
+    private synchronized void load() {
         ResourceBundle resourceBundle = ResourceBundle.getBundle(this.name);
         Set<String> keySet = resourceBundle.keySet();
         Map<String, String> map = new HashMap<>();
+        Map<String, String> globalConfigMap = new HashMap<>();
+        String defaultDsKey = null;
         for (String key : keySet) {
             String value = resourceBundle.getString(key);
             if (key.startsWith(GLOBAL_KEY)) {
-                GLOBAL_CONFIG_MAP.put(key.substring(GLOBAL_KEY.length()), value);
+                globalConfigMap.put(key.substring(GLOBAL_KEY.length()), value);
                 continue;
             }
             if (key.equals(DEFAULT_KEY)) {
-                this.setDefaultDsKey(value);
+                defaultDsKey = value;
             } else {
                 map.put(key, value);
             }
         }
 
+        // 并行创建数据源，数据源较多时减少启动时间
+        final LoadContext ctx = new LoadContext(globalConfigMap);
+        List<Callable<HaloDataSourceWrapper>> tasks = new ArrayList<>(map.size());
         for (Map.Entry<String, String> e : map.entrySet()) {
-            String dsKey = e.getKey();
-            Map<String, Object> cfgMap = (Map<String, Object>) JsonUtil.parse(e.getValue(), Map.class);
-            this.addDataSource(this.createDataSource(dsKey, cfgMap));
+            final String dsKey = e.getKey();
+            final String cfg = e.getValue();
+            tasks.add(new Callable<HaloDataSourceWrapper>() {
+                @Override
+                public HaloDataSourceWrapper call() throws Exception {
+                    Map<String, Object> cfgMap = (Map<String, Object>) JsonUtil.parse(cfg, Map.class);
+                    return createDataSource(dsKey, cfgMap, ctx);
+                }
+            });
         }
-        super.afterPropertiesSet();
+        long deadline = this.isInitialized() ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this
+                .getStartupTimeoutMillis()) : this.getStartupDeadline();
+        // 出现异常时关闭本次创建的连接池，继续使用的原有连接池不关闭
+        Consumer<HaloDataSourceWrapper> discard = new Consumer<HaloDataSourceWrapper>() {
+            @Override
+            public void accept(HaloDataSourceWrapper dataSourceWrapper) {
+                if (getDataSourceWrapper(dataSourceWrapper.getDsKey()) != dataSourceWrapper) {
+                    HaloDataSourceUtil.destory(dataSourceWrapper);
+                }
+            }
+        };
+        List<HaloDataSourceWrapper> dataSourceWrappers = HaloDataSourceInitializer.invokeAll("init", tasks,
+                this.getInitThreads(), deadline, discard);
+        Map<String, HaloDataSourceWrapper> dataSourceMap = new HashMap<>();
+        for (HaloDataSourceWrapper dataSourceWrapper : dataSourceWrappers) {
+            dataSourceMap.put(dataSourceWrapper.getDsKey(), dataSourceWrapper);
+        }
+        try {
+            this.swapTopology(dataSourceMap, ctx.slaveMap, defaultDsKey);
+        } catch (RuntimeException e) {
+            for (HaloDataSourceWrapper dataSourceWrapper : dataSourceWrappers) {
+                discard.accept(dataSourceWrapper);
+            }
+            throw e;
+        }
+        this.current = ctx;
     }
 
     @Override
     public void loadDataSource(Map<String, Object> ctxMap, String masterDsKey) {
         String dsKey = (String) ctxMap.get("dsKey");
         Map<String, Object> cfgMap = (Map<String, Object>) ctxMap.get("cfgMap");
-        this.addDataSource(this.createDataSource(dsKey, cfgMap));
-        this.addSlave2Master(masterDsKey, dsKey);
+        LoadContext ctx = new LoadContext(this.current.globalConfigMap);
+        this.addDataSource(this.createDataSource(dsKey, cfgMap, ctx), ctx.slaveMap, masterDsKey);
+        this.current.poolCfgMap.putAll(ctx.poolCfgMap);
     }
 
-    private HaloDataSourceWrapper createDataSource(String dsKey, Map<String, Object> cfgMap) {
+    @Override
+    public void destory() {
+        if (this.watcher != null) {
+            this.watcher.close();
+        }
+        super.destory();
+    }
+
+    private HaloDataSourceWrapper createDataSource(String dsKey, Map<String, Object> cfgMap, LoadContext ctx) {
         if (cfgMap == null) {
             throw new IllegalArgumentException("dsKey[" + dsKey + "] config must be not empty");
         }
+        List<String> slaveDsKeys = (List<String>) cfgMap.get(DS_SLAVE_KEY);
+        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
+            ctx.slaveMap.put(dsKey, slaveDsKeys);
+        }
         if (cfgMap.containsKey(REF_DSKEY_KEY)) {
             return this.createRefDataSource(dsKey, cfgMap);
         }
         if (!cfgMap.containsKey(URL_KEY) && !cfgMap.containsKey(JDBCURL_KEY)) {
-            return this.createSlaveModeDataSource(dsKey, cfgMap);
+            return this.createSlaveModeDataSource(dsKey);
         }
-        return this.createNormalDataSource(dsKey, cfgMap);
+        return this.createNormalDataSource(dsKey, cfgMap, ctx);
     }
 
     private HaloDataSourceWrapper createRefDataSource(String dsKey, Map<String, Object> cfgMap) {
-        Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
         String refDsKey = (String) cfgMap.get(REF_DSKEY_KEY);
         String db = (String) cfgMap.get(DB_KEY);
         return new HaloDataSourceWrapper(dsKey, null, refDsKey, db, false);
     }
 
-    private HaloDataSourceWrapper createSlaveModeDataSource(String dsKey, Map<String, Object> cfgMap) {
-        Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
+    private HaloDataSourceWrapper createSlaveModeDataSource(String dsKey) {
         return new HaloDataSourceWrapper(dsKey, null, null, null, true);
     }
 
-    private HaloDataSourceWrapper createNormalDataSource(String dsKey, Map<String, Object> cfgMap) {
+    private HaloDataSourceWrapper createNormalDataSource(String dsKey, Map<String, Object> cfgMap, LoadContext ctx) {
         Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
         _cfgMap.remove(DS_SLAVE_KEY);
-        for (Map.Entry<String, String> entry : GLOBAL_CONFIG_MAP.entrySet()) {
+        for (Map.Entry<String, String> entry : ctx.globalConfigMap.entrySet()) {
             String propertyKey = entry.getKey();
             if (propertyKey.equals(JDBCURL_KEY) || propertyKey.equals(URL_KEY)) {
                 continue;
@@ -128,7 +225,7 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
         //jdbcUrl
         String prvJdbcUrl = (String) _cfgMap.get(JDBCURL_KEY);
         if (HaloDataSourceUtil.isEmpty(prvJdbcUrl)) {
-            String globalJdbcUrl = GLOBAL_CONFIG_MAP.get(JDBCURL_KEY);
+            String globalJdbcUrl = ctx.globalConfigMap.get(JDBCURL_KEY);
             if (globalJdbcUrl == null) {
                 throw new IllegalArgumentException("global.jdbcUrl or [db].jdbcUrl must be not empty");
             }
@@ -142,8 +239,38 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
             _cfgMap.put(JDBCURL_KEY, jdbcUrl);
         }
         _cfgMap.remove(URL_KEY);
-        DataSource dataSource = HaloDataSourceUtil.createDataSource(this.dataSourceClassName, _cfgMap);
-        return new HaloDataSourceWrapper(dsKey, dataSource, null, null, false);
+        ctx.poolCfgMap.put(dsKey, new HashMap<>(_cfgMap));
+        HaloDataSourceWrapper old = this.getDataSourceWrapper(dsKey);
+        if (old != null && _cfgMap.equals(this.current.poolCfgMap.get(dsKey))) {
+            // 配置没有变化，继续使用原来的连接池
+            return old;
+        }
+        Object stmtCacheSize = _cfgMap.remove(STMT_CACHE_SIZE_KEY);
+        HaloDataSourceWrapper dataSourceWrapper;
+        if (this.lazyInit) {
+            final Map<String, Object> poolCfgMap = _cfgMap;
+            dataSourceWrapper = new HaloDataSourceWrapper(dsKey, new Supplier<DataSource>() {
+                @Override
+                public DataSource get() {
+                    return createPool(poolCfgMap);
+                }
+            });
+        } else {
+            dataSourceWrapper = new HaloDataSourceWrapper(dsKey, this.createPool(_cfgMap), null, null, false);
+        }
+        if (stmtCacheSize != null) {
+            dataSourceWrapper.setStmtCacheSize(Integer.parseInt(stmtCacheSize.toString()));
+        }
+        return dataSourceWrapper;
+    }
+
+    private DataSource createPool(Map<String, Object> cfgMap) {
+        DataSource dataSource = HaloDataSourceUtil.createDataSource(this.dataSourceClassName, cfgMap);
+        Semaphore connectionPermits = this.getConnectionPermits();
+        if (connectionPermits != null && dataSource instanceof HaloPooledDataSource) {
+            ((HaloPooledDataSource) dataSource).setConnectionPermits(connectionPermits);
+        }
+        return dataSource;
     }
 
     private String buildJdbcUrl(String url, String globalJdbcUrlTpl) {
@@ -163,4 +290,23 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
     public void setDataSourceClassName(String dataSourceClassName) {
         this.dataSourceClassName = dataSourceClassName;
     }
+
+    /**
+     * 一次加载使用的全局配置与加载结果
+     */
+    private static final class LoadContext {
+
+        private final Map<String, String> globalConfigMap;
+
+        private final Map<String, List<String>> slaveMap = new ConcurrentHashMap<>();
+
+        /**
+         * dsKey与创建连接池使用的配置的对应
+         */
+        private final Map<String, Map<String, Object>> poolCfgMap = new ConcurrentHashMap<>();
+
+        LoadContext(Map<String, String> globalConfigMap) {
+            this.globalConfigMap = globalConfigMap;
+        }
+    }
 }
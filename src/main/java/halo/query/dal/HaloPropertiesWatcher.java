@@ -0,0 +1,111 @@
+package halo.query.dal;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监听properties配置文件的变化，文件修改后执行回调.<br>
+ * 只支持文件系统中的配置文件，jar包中的配置文件不能监听
+ */
+final class HaloPropertiesWatcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(HaloPropertiesWatcher.class);
+
+    /**
+     * 文件修改后等待的时间，避免编辑器多次写入时重复回调
+     */
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private final WatchService watchService;
+
+    private final Path file;
+
+    private final Runnable callback;
+
+    private volatile boolean closed;
+
+    private HaloPropertiesWatcher(WatchService watchService, Path file, Runnable callback) {
+        this.watchService = watchService;
+        this.file = file;
+        this.callback = callback;
+    }
+
+    /**
+     * 监听 ResourceBundle 对应的配置文件
+     *
+     * @param bundleName ResourceBundle名称
+     * @param callback   文件修改后的回调
+     * @return 配置文件不在文件系统中时返回null
+     */
+    static HaloPropertiesWatcher create(String bundleName, Runnable callback) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = HaloPropertiesWatcher.class.getClassLoader();
+        }
+        URL url = classLoader.getResource(bundleName.replace('.', '/') + ".properties");
+        if (url == null || !"file".equals(url.getProtocol())) {
+            logger.warn("can not watch config[" + bundleName + "], url is " + url);
+            return null;
+        }
+        try {
+            Path file = new File(url.toURI()).toPath().toAbsolutePath();
+            WatchService watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+            HaloPropertiesWatcher watcher = new HaloPropertiesWatcher(watchService, file, callback);
+            Thread t = new Thread(watcher, "HaloPropertiesWatcher-" + bundleName);
+            t.setDaemon(true);
+            t.start();
+            logger.info("watch config file " + file);
+            return watcher;
+        } catch (Exception e) {
+            logger.warn("can not watch config[" + bundleName + "]", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!this.closed) {
+            try {
+                WatchKey key = this.watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (context instanceof Path && this.file.getFileName().equals(context)) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+                TimeUnit.MILLISECONDS.sleep(DEBOUNCE_MILLIS);
+                // 忽略等待期间的其他修改事件
+                WatchKey pending;
+                while ((pending = this.watchService.poll()) != null) {
+                    pending.pollEvents();
+                    pending.reset();
+                }
+                this.callback.run();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("reload config file " + this.file + " error", e);
+            }
+        }
+    }
+
+    void close() {
+        this.closed = true;
+        try {
+            this.watchService.close();
+        } catch (Exception e) {
+            logger.warn("close watch service error", e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package halo.query.dal;
+
+import halo.query.dal.slave.SlaveSelectStrategy;
+
+import java.util.*;
+
+/**
+ * 不可变的路由表，由 {@link HaloDALDataSource} 在数据源拓扑变化时重新创建并整体替换.<br>
+ * 预先解析好每个dsKey对应的真实数据源、db以及slave列表，获取连接时只需要读取map，不需要创建对象。
+ * 只有slave模式的数据源以及手动指定的不在slave列表中的slave才会在获取时解析
+ */
+final class HaloRoutingTable {
+
+    static final HaloRoutingTable EMPTY = new HaloRoutingTable(Collections.<String, HaloDataSourceWrapper>emptyMap(),
+            Collections.<String, Route>emptyMap(), Collections.<String, HaloConcurrencyLimiter>emptyMap());
+
+    private final Map<String, HaloDataSourceWrapper> dataSourceMap;
+
+    private final Map<String, Route> routeMap;
+
+    private final Map<String, HaloConcurrencyLimiter> limiterMap;
+
+    private HaloRoutingTable(Map<String, HaloDataSourceWrapper> dataSourceMap, Map<String, Route> routeMap,
+                             Map<String, HaloConcurrencyLimiter> limiterMap) {
+        this.dataSourceMap = dataSourceMap;
+        this.routeMap = routeMap;
+        this.limiterMap = limiterMap;
+    }
+
+    /**
+     * 根据当前的数据源与主从关系创建路由表
+     *
+     * @param dataSourceMap        dsKey与数据源的对应
+     * @param masterSlaveDsKeyMap master与slave dsKey的对应
+     * @param slaveSelectStrategy slave选择策略，解析slave模式数据源时使用
+     * @param downSlaveDsKeys     不可用的slave，不会出现在slave列表中
+     * @param limiterMap          dsKey与并发限制的对应
+     * @return 路由表
+     */
+    static HaloRoutingTable build(Map<String, HaloDataSourceWrapper> dataSourceMap,
+                                  Map<String, List<String>> masterSlaveDsKeyMap,
+                                  SlaveSelectStrategy slaveSelectStrategy, Set<String> downSlaveDsKeys,
+                                  Map<String, HaloConcurrencyLimiter> limiterMap) {
+        Map<String, HaloDataSourceWrapper> dsMap = new HashMap<>(dataSourceMap);
+        Set<String> dsKeys = new HashSet<>(dsMap.keySet());
+        dsKeys.addAll(masterSlaveDsKeyMap.keySet());
+        HaloRoutingTable table = new HaloRoutingTable(Collections.unmodifiableMap(dsMap),
+                new HashMap<String, Route>(), limiterMap);
+        for (String dsKey : dsKeys) {
+            table.putRoute(dsKey, masterSlaveDsKeyMap.get(dsKey), slaveSelectStrategy, downSlaveDsKeys);
+        }
+        return table;
+    }
+
+    /**
+     * 在当前路由表的基础上创建新的路由表，只重新解析受影响的dsKey，其他dsKey直接使用原来的路由.<br>
+     * 受影响的dsKey包括：变化的dsKey、引用了变化的dsKey的数据源、slave列表中包含以上dsKey的master
+     *
+     * @param changedDsKeys       数据源、slave列表或者可用状态发生变化的dsKey
+     * @param dataSourceMap       dsKey与数据源的对应
+     * @param masterSlaveDsKeyMap master与slave dsKey的对应
+     * @param slaveSelectStrategy slave选择策略，解析slave模式数据源时使用
+     * @param downSlaveDsKeys     不可用的slave，不会出现在slave列表中
+     * @param limiterMap          dsKey与并发限制的对应
+     * @return 新的路由表
+     */
+    HaloRoutingTable update(Collection<String> changedDsKeys, Map<String, HaloDataSourceWrapper> dataSourceMap,
+                            Map<String, List<String>> masterSlaveDsKeyMap,
+                            SlaveSelectStrategy slaveSelectStrategy, Set<String> downSlaveDsKeys,
+                            Map<String, HaloConcurrencyLimiter> limiterMap) {
+        Set<String> affected = new HashSet<>(changedDsKeys);
+        for (HaloDataSourceWrapper wrapper : dataSourceMap.values()) {
+            if (wrapper.isRef() && changedDsKeys.contains(wrapper.getRefDsKey())) {
+                affected.add(wrapper.getDsKey());
+            }
+        }
+        Set<String> masters = new HashSet<>();
+        for (Map.Entry<String, List<String>> e : masterSlaveDsKeyMap.entrySet()) {
+            for (String slave : e.getValue()) {
+                if (affected.contains(slave)) {
+                    masters.add(e.getKey());
+                    break;
+                }
+            }
+        }
+        affected.addAll(masters);
+        HaloRoutingTable table = new HaloRoutingTable(Collections.unmodifiableMap(new HashMap<>(dataSourceMap)),
+                new HashMap<>(this.routeMap), limiterMap);
+        for (String dsKey : affected) {
+            if (!dataSourceMap.containsKey(dsKey) && !masterSlaveDsKeyMap.containsKey(dsKey)) {
+                table.routeMap.remove(dsKey);
+                continue;
+            }
+            table.putRoute(dsKey, masterSlaveDsKeyMap.get(dsKey), slaveSelectStrategy, downSlaveDsKeys);
+        }
+        return table;
+    }
+
+    /**
+     * 解析dsKey的路由，只能在创建路由表时调用
+     */
+    private void putRoute(String dsKey, List<String> slaves, SlaveSelectStrategy slaveSelectStrategy,
+                          Set<String> downSlaveDsKeys) {
+        List<String> slaveDsKeys = null;
+        boolean allSlavesDown = false;
+        if (slaves != null && !slaves.isEmpty()) {
+            List<String> list = new ArrayList<>(slaves);
+            list.removeAll(downSlaveDsKeys);
+            if (list.isEmpty()) {
+                allSlavesDown = true;
+            } else {
+                slaveDsKeys = Collections.unmodifiableList(list);
+            }
+        }
+        HaloDataSourceProxy proxy = null;
+        HaloDataSourceWrapper wrapper = this.dataSourceMap.get(dsKey);
+        if (wrapper != null && !wrapper.isSlaveMode()) {
+            proxy = this.resolveQuietly(dsKey, null, dsKey, slaveSelectStrategy);
+        }
+        Map<String, HaloDataSourceProxy> slaveProxyMap = new HashMap<>();
+        if (slaveDsKeys != null) {
+            for (String slave : slaveDsKeys) {
+                HaloDataSourceWrapper slaveWrapper = this.dataSourceMap.get(slave);
+                if (slaveWrapper == null || slaveWrapper.isSlaveMode()) {
+                    continue;
+                }
+                HaloDataSourceProxy slaveProxy = this.resolveQuietly(dsKey, slave, slave, slaveSelectStrategy);
+                if (slaveProxy != null) {
+                    slaveProxyMap.put(slave, slaveProxy);
+                }
+            }
+        }
+        this.routeMap.put(dsKey, new Route(proxy, slaveDsKeys, slaveProxyMap, allSlavesDown));
+    }
+
+    /**
+     * 获得master对应的slave列表
+     *
+     * @param master master dsKey
+     * @return 不可修改的列表，没有slave时返回null
+     */
+    List<String> getSlaveDsKeys(String master) {
+        Route route = this.routeMap.get(master);
+        if (route == null) {
+            return null;
+        }
+        return route.slaveDsKeys;
+    }
+
+    /**
+     * master配置了slave，但是所有slave都不可用
+     *
+     * @param master master dsKey
+     * @return true:所有slave都不可用
+     */
+    boolean isAllSlavesDown(String master) {
+        Route route = this.routeMap.get(master);
+        return route != null && route.allSlavesDown;
+    }
+
+    /**
+     * 获得数据源代理
+     *
+     * @param master              master dsKey
+     * @param slave               slave dsKey，为null时使用master
+     * @param slaveSelectStrategy slave选择策略
+     * @return 数据源代理
+     */
+    HaloDataSourceProxy getProxy(String master, String slave, SlaveSelectStrategy slaveSelectStrategy) {
+        Route route = this.routeMap.get(master);
+        if (route != null) {
+            HaloDataSourceProxy proxy;
+            if (slave == null) {
+                proxy = route.proxy;
+            } else {
+                proxy = route.slaveProxyMap.get(slave);
+            }
+            if (proxy != null) {
+                return proxy;
+            }
+        }
+        String name;
+        if (slave == null) {
+            name = master;
+        } else {
+            name = slave;
+        }
+        return this.resolve(master, slave, name, slaveSelectStrategy);
+    }
+
+    private HaloDataSourceProxy resolveQuietly(String master, String slave, String name,
+                                               SlaveSelectStrategy slaveSelectStrategy) {
+        try {
+            return this.resolve(master, slave, name, slaveSelectStrategy);
+        } catch (DALRunTimeException e) {
+            // 引用的数据源可能还没有加载，获取时再解析并抛出异常
+            return null;
+        }
+    }
+
+    /**
+     * 获取数据源。根据name获得的数据源，先检查是否是slave模式，如果是slave模式，就获取slave对应的数据源。再检查是否是引用数据源，如果是，就获取引用的数据源
+     */
+    private HaloDataSourceProxy resolve(String master, String slave, String name,
+                                        SlaveSelectStrategy slaveSelectStrategy) {
+        HaloDataSourceWrapper haloDataSourceWrapper = null;
+        if (name != null) {
+            haloDataSourceWrapper = this.dataSourceMap.get(name);
+        }
+        if (haloDataSourceWrapper == null) {
+            throw new DALRunTimeException("no datasource forKey [" + name + "]");
+        }
+        if (haloDataSourceWrapper.isSlaveMode()) {
+            String key = slaveSelectStrategy.parse(master, this.getSlaveDsKeys(master));
+            return this.resolve(master, slave, key, slaveSelectStrategy);
+        }
+        if (!haloDataSourceWrapper.isRef()) {
+            return new HaloDataSourceProxy(haloDataSourceWrapper, master, slave, null,
+                    haloDataSourceWrapper.getStats(), this.limiterMap.get(name));
+        }
+        HaloDataSourceWrapper refhaloDataSourceWrapper = this.dataSourceMap.get(haloDataSourceWrapper.getRefDsKey());
+        if (refhaloDataSourceWrapper == null) {
+            throw new DALRunTimeException("no datasource forKey [" + name + "]");
+        }
+        if (refhaloDataSourceWrapper.isRef()) {
+            throw new DALRunTimeException(haloDataSourceWrapper.getRefDsKey() + " must not be ref");
+        }
+        return new HaloDataSourceProxy(refhaloDataSourceWrapper, master, slave, haloDataSourceWrapper.getDb(),
+                haloDataSourceWrapper.getStats(), this.limiterMap.get(name));
+    }
+
+    private static final class Route {
+
+        /**
+         * 使用master时的数据源代理，slave模式数据源或者解析失败时为null
+         */
+        private final HaloDataSourceProxy proxy;
+
+        private final List<String> slaveDsKeys;
+
+        private final Map<String, HaloDataSourceProxy> slaveProxyMap;
+
+        private final boolean allSlavesDown;
+
+        private Route(HaloDataSourceProxy proxy, List<String> slaveDsKeys,
+                      Map<String, HaloDataSourceProxy> slaveProxyMap, boolean allSlavesDown) {
+            this.proxy = proxy;
+            this.slaveDsKeys = slaveDsKeys;
+            this.slaveProxyMap = slaveProxyMap;
+            this.allSlavesDown = allSlavesDown;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package halo.query.dal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * slave健康检查。后台定时对每个slave执行检查sql，连续失败 failureThreshold 次后标记slave不可用，
+ * 不再参与slave选择(熔断)；不可用的slave继续被检查，连续成功 recoveryThreshold 次后恢复.<br>
+ * 所有slave都不可用时，读请求会使用master，可以通过 {@link HaloDALDataSource#setMaxMasterFallback(int)} 限制.<br>
+ * 开启 monitorLag 后同时检查slave的复制延迟，供 {@link DALStatus#setMaxStaleness(long)} 使用.<br>
+ * 检查在最多 checkThreads 个线程中执行，获取连接与执行sql都不超过 validationTimeout。
+ * 上一次检查还没有结束的slave(例如网络没有响应)本次不再检查，不会占用更多线程
+ * <pre>
+ * &lt;bean class="halo.query.dal.HaloSlaveHealthChecker" init-method="afterPropertiesSet" destroy-method="destory"&gt;
+ *     &lt;property name="haloDALDataSource" ref="dataSource"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class HaloSlaveHealthChecker implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(HaloSlaveHealthChecker.class);
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private HaloDALDataSource haloDALDataSource;
+
+    /**
+     * 检查间隔，单位毫秒
+     */
+    private long checkInterval = 5000;
+
+    private String validationQuery = "SELECT 1";
+
+    /**
+     * 单次检查超时时间，单位秒
+     */
+    private int validationTimeout = 2;
+
+    private int failureThreshold = 3;
+
+    private int recoveryThreshold = 2;
+
+    /**
+     * 执行检查的最大线程数量
+     */
+    private int checkThreads = 4;
+
+    /**
+     * 是否检查slave的复制延迟
+     */
+    private boolean monitorLag;
+
+    /**
+     * 获得心跳时间(毫秒时间戳)的sql，例如 select ts from heartbeat where id=1。master定时更新心跳时间，
+     * 延迟为当前时间与心跳时间的差，需要保证服务器时间同步。为null时使用 SHOW SLAVE STATUS 的 Seconds_Behind_Master
+     */
+    private String heartbeatSql;
+
+    /**
+     * 只在检查线程中访问
+     */
+    private final Map<String, SlaveHealth> healthMap = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService checkExecutor;
+
+    /**
+     * slave与正在执行的检查的对应，只在检查线程中访问
+     */
+    private final Map<String, Future<Boolean>> runningMap = new HashMap<>();
+
+    public void setHaloDALDataSource(HaloDALDataSource haloDALDataSource) {
+        this.haloDALDataSource = haloDALDataSource;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setRecoveryThreshold(int recoveryThreshold) {
+        this.recoveryThreshold = recoveryThreshold;
+    }
+
+    public void setCheckThreads(int checkThreads) {
+        this.checkThreads = checkThreads;
+    }
+
+    public void setMonitorLag(boolean monitorLag) {
+        this.monitorLag = monitorLag;
+    }
+
+    public void setHeartbeatSql(String heartbeatSql) {
+        this.heartbeatSql = heartbeatSql;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.haloDALDataSource == null) {
+            this.haloDALDataSource = HaloDALDataSource.getInstance();
+        }
+        if (this.haloDALDataSource == null) {
+            throw new IllegalArgumentException("haloDALDataSource must be not null");
+        }
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HaloSlaveHealthChecker-thread-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(this.checkThreads, this.checkThreads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.checkThreads * 64), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        this.checkExecutor = executor;
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (Throwable e) {
+                    log.error("slave health check error", e);
+                }
+            }
+        }, this.checkInterval, this.checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void destory() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        if (this.checkExecutor != null) {
+            this.checkExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 检查所有slave，可以手动调用
+     */
+    public synchronized void check() {
+        Map<String, Future<Boolean>> futureMap = new HashMap<>();
+        Set<String> checked = new HashSet<>();
+        for (Map.Entry<String, List<String>> e : this.haloDALDataSource.getMasterSlaveDsKeyMap().entrySet()) {
+            for (String slave : e.getValue()) {
+                if (!checked.add(slave)) {
+                    continue;
+                }
+                Future<Boolean> running = this.runningMap.get(slave);
+                if (running != null && !running.isDone()) {
+                    log.warn("last check of slave[" + slave + "] is still running, skip");
+                    continue;
+                }
+                final HaloDataSourceProxy proxy;
+                try {
+                    proxy = this.haloDALDataSource.getDataSourceProxy(e.getKey(), slave);
+                } catch (DALRunTimeException ex) {
+                    log.warn("can not resolve slave[" + slave + "]: " + ex.getMessage());
+                    continue;
+                }
+                HaloDataSourceWrapper dataSourceWrapper = proxy.getDataSourceWrapper();
+                if (dataSourceWrapper.isLazy() && dataSourceWrapper.getCreatedDataSource() == null
+                        && !this.haloDALDataSource.getDownSlaveDsKeys().contains(slave)) {
+                    // 没有使用过的延迟创建连接池不检查，避免检查时创建连接池
+                    continue;
+                }
+                Future<Boolean> future;
+                try {
+                    future = this.checkExecutor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return validate(proxy);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    log.warn("too many running checks, skip slave[" + slave + "]");
+                    continue;
+                }
+                futureMap.put(slave, future);
+                this.runningMap.put(slave, future);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.validationTimeout + 1);
+        for (Map.Entry<String, Future<Boolean>> e : futureMap.entrySet()) {
+            boolean ok;
+            try {
+                long wait = Math.max(0, deadline - System.nanoTime());
+                ok = e.getValue().get(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                // 没有结束的检查继续执行，下一次检查时跳过
+                log.warn("check slave[" + e.getKey() + "] fail: " + ex);
+                ok = false;
+            }
+            this.onResult(e.getKey(), ok);
+        }
+        this.healthMap.keySet().retainAll(checked);
+        this.runningMap.keySet().retainAll(checked);
+    }
+
+    /**
+     * 记录一次检查结果，连续失败或者连续成功达到阈值时标记slave不可用或者恢复
+     *
+     * @param slave slave dsKey
+     * @param ok    检查是否成功
+     */
+    private void onResult(String slave, boolean ok) {
+        SlaveHealth health = this.healthMap.get(slave);
+        if (health == null) {
+            health = new SlaveHealth();
+            health.down = this.haloDALDataSource.getDownSlaveDsKeys().contains(slave);
+            this.healthMap.put(slave, health);
+        }
+        if (ok) {
+            health.failures = 0;
+            health.successes++;
+            if (health.down && health.successes >= this.recoveryThreshold) {
+                health.down = false;
+                this.haloDALDataSource.markSlaveUp(slave);
+            }
+            return;
+        }
+        health.successes = 0;
+        health.failures++;
+        if (!health.down && health.failures >= this.failureThreshold) {
+            health.down = true;
+            this.haloDALDataSource.markSlaveDown(slave);
+        }
+    }
+
+    /**
+     * 直接从数据源获取连接执行检查sql，不计入数据源统计.<br>
+     * 内置连接池等待连接的时间不超过 validationTimeout，c3p0需要配置 checkoutTimeout
+     */
+    private boolean validate(HaloDataSourceProxy proxy) {
+        Connection con = null;
+        Statement st = null;
+        int networkTimeout = -1;
+        DALStatus.setTimeout(TimeUnit.SECONDS.toMillis(this.validationTimeout));
+        try {
+            con = proxy.getDataSourceWrapper().getHaloConnection();
+            try {
+                int timeout = con.getNetworkTimeout();
+                con.setNetworkTimeout(this.scheduler, (int) TimeUnit.SECONDS.toMillis(this.validationTimeout + 1));
+                networkTimeout = timeout;
+            } catch (SQLFeatureNotSupportedException | AbstractMethodError ignored) {
+                // 驱动不支持时只使用queryTimeout
+            }
+            st = con.createStatement();
+            st.setQueryTimeout(this.validationTimeout);
+            st.execute(this.validationQuery);
+            if (this.monitorLag) {
+                proxy.getStats().setReplicationLag(this.queryLag(proxy, st));
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("validate master[" + proxy.getMaster() + "] slave[" + proxy.getSlave() + "] fail: " + e
+                    .getMessage());
+            if (this.monitorLag) {
+                proxy.getStats().setReplicationLag(-1);
+            }
+            return false;
+        } finally {
+            if (st != null) {
+                try {
+                    st.close();
+                } catch (Exception ignored) {
+                }
+            }
+            if (con != null) {
+                try {
+                    if (networkTimeout >= 0) {
+                        // 连接归还后还会被业务使用，恢复原来的设置
+                        con.setNetworkTimeout(this.scheduler, networkTimeout);
+                    }
+                } catch (Exception ignored) {
+                }
+                try {
+                    con.close();
+                } catch (Exception ignored) {
+                }
+            }
+            DALStatus.remove();
+        }
+    }
+
+    /**
+     * 获得复制延迟
+     *
+     * @return 单位毫秒，无法获得时返回-1
+     */
+    private long queryLag(HaloDataSourceProxy proxy, Statement st) {
+        ResultSet rs = null;
+        try {
+            if (this.heartbeatSql != null) {
+                rs = st.executeQuery(this.heartbeatSql);
+                if (rs.next()) {
+                    return Math.max(0, System.currentTimeMillis() - rs.getLong(1));
+                }
+                return -1;
+            }
+            rs = st.executeQuery("SHOW SLAVE STATUS");
+            if (rs.next()) {
+                Object seconds = rs.getObject("Seconds_Behind_Master");
+                if (seconds != null) {
+                    return ((Number) seconds).longValue() * 1000;
+                }
+            }
+            return -1;
+        } catch (Exception e) {
+            log.warn("query lag for slave[" + proxy.getSlave() + "] fail: " + e.getMessage());
+            return -1;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private static class SlaveHealth {
+
+        private int failures;
+
+        private int successes;
+
+        private boolean down;
+    }
+}
@@ -0,0 +1,196 @@
+package halo.query.dal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单个物理连接的PreparedStatement LRU缓存，key为sql与是否返回自增主键.<br>
+ * 缓存保存在内置连接池的 {@link HaloPooledDataSource.PoolEntry} 中，与物理连接的生命周期相同，
+ * 连接归还到连接池后再次借出时仍然可以使用，物理连接关闭时关闭所有缓存的statement.<br>
+ * 与Connection一样同一时间只能被一个线程使用，因此没有同步.<br>
+ * 同一个sql的statement正在被使用时(例如遍历结果集时执行相同的sql)，直接创建不缓存的statement
+ */
+class HaloStatementCache {
+
+    private static final Log log = LogFactory.getLog(HaloStatementCache.class);
+
+    /**
+     * 物理连接
+     */
+    private final Connection con;
+
+    private final int maxSize;
+
+    private final HaloStatementCacheStats stats;
+
+    /**
+     * 按访问顺序排序，第一个是最久没有使用的
+     */
+    private final LinkedHashMap<Key, HaloPreparedStatementWrapper> map;
+
+    private boolean closed;
+
+    HaloStatementCache(Connection con, int maxSize, HaloStatementCacheStats stats) {
+        this.con = con;
+        this.maxSize = maxSize;
+        this.stats = stats;
+        this.map = new LinkedHashMap<>(maxSize * 2, 0.75f, true);
+    }
+
+    /**
+     * @param owner             本次借出的连接，statement的 getConnection 返回此连接
+     * @param sql               sql
+     * @param autoGeneratedKeys {@link Key#NO_KEYS} 或者 {@link java.sql.Statement#RETURN_GENERATED_KEYS} 等
+     * @return PreparedStatement
+     * @throws SQLException 创建statement时的异常
+     */
+    PreparedStatement prepareStatement(Connection owner, String sql, int autoGeneratedKeys) throws SQLException {
+        Key key = new Key(sql, autoGeneratedKeys);
+        HaloPreparedStatementWrapper wrapper = this.map.get(key);
+        if (wrapper != null) {
+            if (wrapper.isInUse()) {
+                this.stats.miss();
+                return this.prepare(this.con, sql, autoGeneratedKeys);
+            }
+            this.stats.hit();
+            wrapper.reopen(owner);
+            return wrapper;
+        }
+        this.stats.miss();
+        PreparedStatement ps = this.prepare(this.con, sql, autoGeneratedKeys);
+        wrapper = new HaloPreparedStatementWrapper(ps, this, key, owner);
+        this.map.put(key, wrapper);
+        this.evict();
+        return wrapper;
+    }
+
+    private PreparedStatement prepare(Connection con, String sql, int autoGeneratedKeys) throws SQLException {
+        if (autoGeneratedKeys == Key.NO_KEYS) {
+            return con.prepareStatement(sql);
+        }
+        return con.prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    /**
+     * 超过容量时从最久没有使用的开始淘汰空闲的statement
+     */
+    private void evict() {
+        if (this.map.size() <= this.maxSize) {
+            return;
+        }
+        Iterator<HaloPreparedStatementWrapper> it = this.map.values().iterator();
+        while (it.hasNext() && this.map.size() > this.maxSize) {
+            HaloPreparedStatementWrapper wrapper = it.next();
+            if (wrapper.isInUse()) {
+                continue;
+            }
+            it.remove();
+            this.stats.evict();
+            this.closeQuietly(wrapper);
+        }
+    }
+
+    /**
+     * 使用者关闭statement时调用，放回缓存。已经被淘汰或者连接已经关闭时，关闭真实的statement
+     */
+    void release(HaloPreparedStatementWrapper wrapper) throws SQLException {
+        if (this.closed || this.map.get(wrapper.getKey()) != wrapper) {
+            wrapper.closePhysically();
+            return;
+        }
+        if (!wrapper.isReusable()) {
+            this.map.remove(wrapper.getKey());
+            wrapper.closePhysically();
+            return;
+        }
+        try {
+            wrapper.reset();
+        } catch (SQLException e) {
+            this.map.remove(wrapper.getKey());
+            this.closeQuietly(wrapper);
+            throw e;
+        }
+        this.evict();
+    }
+
+    /**
+     * 连接归还到连接池时调用，关闭使用者没有关闭的statement，与关闭连接时关闭所有statement的行为一致
+     */
+    void releaseAll() {
+        Iterator<HaloPreparedStatementWrapper> it = this.map.values().iterator();
+        while (it.hasNext()) {
+            HaloPreparedStatementWrapper wrapper = it.next();
+            if (wrapper.isInUse()) {
+                it.remove();
+                this.closeQuietly(wrapper);
+            }
+        }
+    }
+
+    /**
+     * 物理连接关闭时关闭所有缓存的statement
+     */
+    void close() {
+        this.closed = true;
+        for (Map.Entry<Key, HaloPreparedStatementWrapper> e : this.map.entrySet()) {
+            this.closeQuietly(e.getValue());
+        }
+        this.map.clear();
+    }
+
+    int size() {
+        return this.map.size();
+    }
+
+    private void closeQuietly(HaloPreparedStatementWrapper wrapper) {
+        try {
+            wrapper.closePhysically();
+        } catch (SQLException e) {
+            log.warn("close cached statement error", e);
+        }
+    }
+
+    static final class Key {
+
+        /**
+         * 使用 {@link Connection#prepareStatement(String)} 创建
+         */
+        static final int NO_KEYS = -1;
+
+        private final String sql;
+
+        private final int autoGeneratedKeys;
+
+        private final int hash;
+
+        Key(String sql, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.hash = 31 * sql.hashCode() + autoGeneratedKeys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.autoGeneratedKeys == key.autoGeneratedKeys && this.sql.equals(key.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package halo.query.dal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据源的PreparedStatement缓存统计，同一个数据源所有连接的缓存共享一个统计对象
+ */
+public class HaloStatementCacheStats {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    void hit() {
+        this.hits.incrementAndGet();
+    }
+
+    void miss() {
+        this.misses.incrementAndGet();
+    }
+
+    void evict() {
+        this.evictions.incrementAndGet();
+    }
+
+    /**
+     * @return 从缓存中获得statement的次数
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return 缓存中没有可用statement，需要重新prepare的次数
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return 缓存已满时淘汰statement的次数
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return 命中率，没有请求时返回0
+     */
+    public double getHitRatio() {
+        long hit = this.hits.get();
+        long total = hit + this.misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+}
@@ -0,0 +1,54 @@
+package halo.query.dal.slave;
+
+import halo.query.HaloQueryMSLDBDebugInfo;
+import halo.query.dal.HaloDataSourceStats;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * power of two choices: 随机选择两个slave，选择 连接使用时间EWMA * (正在使用的连接数量 + 1) 较小的一个.<br>
+ * 没有样本的slave得分为0，会优先被选择，以获得样本。失败按照惩罚时间计入EWMA，失败的slave得分变高
+ */
+public class EwmaSlaveSelectStrategy extends StatsSlaveSelectStrategy {
+
+    private static Logger logger = Logger.getLogger(EwmaSlaveSelectStrategy.class);
+
+    @Override
+    public String parse(String masterDsKey, List<String> slaveDsKeys) {
+        if (slaveDsKeys == null || slaveDsKeys.isEmpty()) {
+            return null;
+        }
+        int size = slaveDsKeys.size();
+        if (size == 1) {
+            return slaveDsKeys.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            j++;
+        }
+        String first = slaveDsKeys.get(i);
+        String second = slaveDsKeys.get(j);
+        String selected;
+        if (score(first) <= score(second)) {
+            selected = first;
+        } else {
+            selected = second;
+        }
+        if (HaloQueryMSLDBDebugInfo.getInstance().isEnableDebug()) {
+            logger.info("will return slave datasource [" + selected + "] from [" + first + "," + second + "]");
+        }
+        return selected;
+    }
+
+    private double score(String slaveDsKey) {
+        HaloDataSourceStats stats = this.getStats(slaveDsKey);
+        if (stats == null) {
+            return 0;
+        }
+        return stats.getEwmaNanos() * (stats.getInFlight() + 1);
+    }
+}
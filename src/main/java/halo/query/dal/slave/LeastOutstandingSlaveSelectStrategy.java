@@ -0,0 +1,43 @@
+package halo.query.dal.slave;
+
+import halo.query.HaloQueryMSLDBDebugInfo;
+import halo.query.dal.HaloDataSourceStats;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择正在使用的连接数量最少的slave，数量相同时从随机位置开始选择第一个
+ */
+public class LeastOutstandingSlaveSelectStrategy extends StatsSlaveSelectStrategy {
+
+    private static Logger logger = Logger.getLogger(LeastOutstandingSlaveSelectStrategy.class);
+
+    @Override
+    public String parse(String masterDsKey, List<String> slaveDsKeys) {
+        if (slaveDsKeys == null || slaveDsKeys.isEmpty()) {
+            return null;
+        }
+        int size = slaveDsKeys.size();
+        if (size == 1) {
+            return slaveDsKeys.get(0);
+        }
+        int start = ThreadLocalRandom.current().nextInt(size);
+        String selected = null;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            String slaveDsKey = slaveDsKeys.get((start + i) % size);
+            HaloDataSourceStats stats = this.getStats(slaveDsKey);
+            int inFlight = stats == null ? 0 : stats.getInFlight();
+            if (inFlight < min) {
+                min = inFlight;
+                selected = slaveDsKey;
+            }
+        }
+        if (HaloQueryMSLDBDebugInfo.getInstance().isEnableDebug()) {
+            logger.info("will return slave datasource [" + selected + "] inFlight=" + min);
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,35 @@
+package halo.query.dal.slave;
+
+import halo.query.dal.HaloDALDataSource;
+import halo.query.dal.HaloDataSourceStats;
+
+/**
+ * 根据数据源运行统计选择slave的策略.<br>
+ * 统计属于 {@link HaloDALDataSource} 中的数据源，通过 {@link HaloDALDataSource#setSlaveSelectStrategy(SlaveSelectStrategy)}
+ * 设置策略时自动关联，没有关联时使用 {@link HaloDALDataSource#getInstance()}
+ */
+public abstract class StatsSlaveSelectStrategy implements SlaveSelectStrategy {
+
+    private volatile HaloDALDataSource dataSource;
+
+    public void setDataSource(HaloDALDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 获得slave的运行统计
+     *
+     * @param slaveDsKey slave dsKey
+     * @return 没有关联数据源或者slave不存在时返回null
+     */
+    protected HaloDataSourceStats getStats(String slaveDsKey) {
+        HaloDALDataSource _dataSource = this.dataSource;
+        if (_dataSource == null) {
+            _dataSource = HaloDALDataSource.getInstance();
+        }
+        if (_dataSource == null) {
+            return null;
+        }
+        return _dataSource.getDataSourceStats(slaveDsKey);
+    }
+}
@@ -0,0 +1,78 @@
+package halo.query.dal.slave;
+
+import halo.query.HaloQueryMSLDBDebugInfo;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按权重轮询选择slave，没有设置权重的slave权重为1，权重为0的slave不会被选择
+ */
+public class WeightedRoundRobinSlaveSelectStrategy implements SlaveSelectStrategy {
+
+    private static Logger logger = Logger.getLogger(WeightedRoundRobinSlaveSelectStrategy.class);
+
+    private final ConcurrentHashMap<String, AtomicLong> counterMap = new ConcurrentHashMap<>();
+
+    private volatile Map<String, Integer> weightMap = new HashMap<>();
+
+    /**
+     * 设置slave的权重
+     *
+     * @param weightMap slave dsKey与权重的对应
+     */
+    public void setWeightMap(Map<String, Integer> weightMap) {
+        this.weightMap = new HashMap<>(weightMap);
+    }
+
+    @Override
+    public String parse(String masterDsKey, List<String> slaveDsKeys) {
+        if (slaveDsKeys == null || slaveDsKeys.isEmpty()) {
+            return null;
+        }
+        Map<String, Integer> weights = this.weightMap;
+        int total = 0;
+        for (String slaveDsKey : slaveDsKeys) {
+            total += getWeight(weights, slaveDsKey);
+        }
+        if (total <= 0) {
+            return null;
+        }
+        long n = this.getCounter(masterDsKey).getAndIncrement();
+        int idx = (int) ((n & Long.MAX_VALUE) % total);
+        for (String slaveDsKey : slaveDsKeys) {
+            idx -= getWeight(weights, slaveDsKey);
+            if (idx < 0) {
+                if (HaloQueryMSLDBDebugInfo.getInstance().isEnableDebug()) {
+                    logger.info("will return slave datasource [" + slaveDsKey + "]");
+                }
+                return slaveDsKey;
+            }
+        }
+        return null;
+    }
+
+    private AtomicLong getCounter(String masterDsKey) {
+        AtomicLong counter = this.counterMap.get(masterDsKey);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong old = this.counterMap.putIfAbsent(masterDsKey, counter);
+            if (old != null) {
+                counter = old;
+            }
+        }
+        return counter;
+    }
+
+    private static int getWeight(Map<String, Integer> weights, String slaveDsKey) {
+        Integer weight = weights.get(slaveDsKey);
+        if (weight == null) {
+            return 1;
+        }
+        return Math.max(weight, 0);
+    }
+}
@@ -3,6 +3,7 @@ package halo.query.mapping;
 import halo.query.annotation.Column;
 import halo.query.annotation.Id;
 import halo.query.annotation.Table;
+import halo.query.cache.EntityCache;
 import halo.query.dal.DALParser;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -77,6 +78,11 @@ public class EntityTableInfo<T> {
 
     private String casColName;
 
+    /**
+     * 实体缓存，没有开启时为null
+     */
+    private EntityCache<T> entityCache;
+
     public EntityTableInfo(Class<T> clazz) {
         super();
         this.clazz = clazz;
@@ -91,10 +97,32 @@ public class EntityTableInfo<T> {
         return casColName;
     }
 
+    public EntityCache<T> getEntityCache() {
+        return entityCache;
+    }
+
     public Constructor<T> getConstructor() {
         return constructor;
     }
 
+    /**
+     * 复制对象的表字段，非表字段不会复制
+     *
+     * @param t 对象
+     * @return 新的对象
+     */
+    public T copy(T t) {
+        try {
+            T copy = this.constructor.newInstance();
+            for (Field field : this.tableFields) {
+                field.set(copy, field.get(t));
+            }
+            return copy;
+        } catch (Exception e) {
+            throw new RuntimeException("copy " + this.clazz.getName() + " error", e);
+        }
+    }
+
     public DALParser getSeqDalParser() {
         return seqDalParser;
     }
@@ -195,11 +223,23 @@ public class EntityTableInfo<T> {
         this.buildSelectedFieldSQL();
         this.createRowMapper();
         this.createSQLMapper();
+        this.buildEntityCache();
 //        if (this.idFields.isEmpty()) {
 //            throw new RuntimeException("no id field for " + this.clazz.getName());
 //        }
     }
 
+    private void buildEntityCache() {
+        Table table = clazz.getAnnotation(Table.class);
+        if (table.cache()) {
+            if (this.idFields.isEmpty()) {
+                throw new RuntimeException("entity cache need id field [ " + clazz.getName() + " ]");
+            }
+            this.entityCache = new EntityCache<T>(this, table.cacheSize(), table.cacheTtlSeconds(), table
+                    .cacheMissTtlSeconds());
+        }
+    }
+
     private void buildConstructor() {
         try {
             this.constructor = this.clazz.getConstructor();
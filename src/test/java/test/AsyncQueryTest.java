@@ -0,0 +1,144 @@
+package test;
+
+import halo.query.AsyncQuery;
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALRejectedException;
+import halo.query.dal.DALScope;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.CacheUser;
+import test.bean.StubDriver;
+import test.bean.TestUser;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试异步查询的分区上下文传递
+ */
+public class AsyncQueryTest {
+
+    private AsyncQuery asyncQuery;
+
+    @Before
+    public void before() throws Exception {
+        asyncQuery = new AsyncQuery();
+        asyncQuery.setQuery(new Query() {
+            @Override
+            public <T> T objById(Class<T> clazz, Object idValue) {
+                Object userId = DALStatus.getParamMap().get("userId");
+                TestUser testUser = new TestUser();
+                testUser.setUserid(((Number) userId).intValue() + ((Number) idValue).intValue());
+                return (T) testUser;
+            }
+        });
+        asyncQuery.setPoolSize(2);
+        asyncQuery.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        asyncQuery.destory();
+        DALScope.current().close();
+    }
+
+    @Test
+    public void objById() throws Exception {
+        DALStatus.addParam("userId", 1);
+        CompletableFuture<TestUser> f0 = asyncQuery.objById(TestUser.class, 10);
+        Assert.assertFalse(DALStatus.hasDALParam());
+        DALContext dalContext = DALContext.create();
+        dalContext.addParam("userId", 2);
+        CompletableFuture<TestUser> f1 = asyncQuery.objById(TestUser.class, 20, dalContext);
+        Assert.assertEquals(11, f0.get().getUserid());
+        Assert.assertEquals(22, f1.get().getUserid());
+    }
+
+    @Test
+    public void realQuery() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        AsyncQuery stubAsyncQuery = new AsyncQuery();
+        try {
+            JdbcSupport jdbcSupport = new JdbcSupport();
+            jdbcSupport.setDataSource(dataSource);
+            Query query = new Query();
+            query.setJdbcSupport(jdbcSupport);
+            stubAsyncQuery.setQuery(query);
+            stubAsyncQuery.setMaxConcurrencyPerDsKey(2);
+            stubAsyncQuery.afterPropertiesSet();
+            int prepared = StubDriver.JDBC.prepared.get();
+            CacheUser user = stubAsyncQuery.objById(CacheUser.class, 1L).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, user.getUserId());
+            Assert.assertNotNull(stubAsyncQuery.objById(CacheUser.class, 2L).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, StubDriver.JDBC.prepared.get() - prepared);
+            Assert.assertEquals(0, stubAsyncQuery.getConcurrencyLimiters().get("stub0").getInFlight());
+        } finally {
+            stubAsyncQuery.destory();
+            dataSource.destory();
+        }
+    }
+
+    @Test
+    public void rejectWithoutBlockingOtherDsKey() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncQuery limitedAsyncQuery = new AsyncQuery();
+        try {
+            limitedAsyncQuery.setQuery(new Query() {
+                @Override
+                public <T> T objById(Class<T> clazz, Object idValue) {
+                    if (DALStatus.getDsKey().equals("stub0")) {
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return null;
+                }
+            });
+            limitedAsyncQuery.setPoolSize(2);
+            limitedAsyncQuery.setMaxConcurrencyPerDsKey(1);
+            limitedAsyncQuery.afterPropertiesSet();
+            CompletableFuture<CacheUser> slow = limitedAsyncQuery.objById(CacheUser.class, 1L);
+            // stub0 达到上限后立即失败，不占用执行线程
+            CompletableFuture<CacheUser> rejected = limitedAsyncQuery.objById(CacheUser.class, 2L);
+            try {
+                rejected.get(1, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof DALRejectedException);
+            }
+            // 其他数据源的操作不受影响
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey("stub1");
+            DALContext dalContext = DALContext.create();
+            dalContext.setDalInfo(dalInfo);
+            Assert.assertNull(limitedAsyncQuery.objById(CacheUser.class, 3L, dalContext).get(1, TimeUnit.SECONDS));
+            Assert.assertFalse(slow.isDone());
+            release.countDown();
+            Assert.assertNull(slow.get(5, TimeUnit.SECONDS));
+            Assert.assertNull(limitedAsyncQuery.objById(CacheUser.class, 4L).get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            limitedAsyncQuery.destory();
+            dataSource.destory();
+        }
+    }
+
+    private static HaloDALNativePropertiesDataSource createStubDataSource() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstub");
+        dataSource.afterPropertiesSet();
+        return dataSource;
+    }
+}
@@ -0,0 +1,102 @@
+package test;
+
+import halo.query.BatchLoader;
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import test.bean.CacheUser;
+import test.bean.StubDriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用stub驱动测试批量加载，stub驱动的查询结果只有id为1的数据
+ */
+public class BatchLoaderTest {
+
+    @Test
+    public void batch() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstub");
+        dataSource.afterPropertiesSet();
+        BatchLoader batchLoader = null;
+        try {
+            JdbcSupport jdbcSupport = new JdbcSupport();
+            jdbcSupport.setDataSource(dataSource);
+            Query query = new Query();
+            query.setJdbcSupport(jdbcSupport);
+            batchLoader = new BatchLoader();
+            batchLoader.setQuery(query);
+            batchLoader.setWindowMillis(100);
+            batchLoader.setMaxBatchSize(50);
+            batchLoader.afterPropertiesSet();
+            int prepared = StubDriver.JDBC.prepared.get();
+            List<CompletableFuture<CacheUser>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(batchLoader.objById(CacheUser.class, i % 5));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                CacheUser user = futures.get(i).get(5, TimeUnit.SECONDS);
+                if (i % 5 == 1) {
+                    Assert.assertEquals(1, user.getUserId());
+                } else {
+                    Assert.assertNull(user);
+                }
+            }
+            // 相同id的请求得到不同的对象
+            Assert.assertNotSame(futures.get(1).get(), futures.get(6).get());
+            // 10个请求合并为一次查询
+            Assert.assertEquals(1, StubDriver.JDBC.prepared.get() - prepared);
+            Assert.assertEquals(10, batchLoader.getRequestCount());
+            Assert.assertEquals(1, batchLoader.getBatchCount());
+        } finally {
+            if (batchLoader != null) {
+                batchLoader.destory();
+            }
+            dataSource.destory();
+        }
+    }
+
+    @Test
+    public void afterDestory() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstub");
+        dataSource.afterPropertiesSet();
+        try {
+            JdbcSupport jdbcSupport = new JdbcSupport();
+            jdbcSupport.setDataSource(dataSource);
+            Query query = new Query();
+            query.setJdbcSupport(jdbcSupport);
+            // 外部的executor在BatchLoader关闭后仍然可以执行
+            BatchLoader batchLoader = new BatchLoader(query, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+            batchLoader.afterPropertiesSet();
+            batchLoader.destory();
+            int prepared = StubDriver.JDBC.prepared.get();
+            CompletableFuture<CacheUser> future = batchLoader.objById(CacheUser.class, 1);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            // 没有请求的批次不执行查询
+            Assert.assertEquals(0, StubDriver.JDBC.prepared.get() - prepared);
+            Assert.assertEquals(0, batchLoader.getBatchCount());
+        } finally {
+            dataSource.destory();
+        }
+    }
+}
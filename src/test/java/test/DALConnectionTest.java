@@ -0,0 +1,293 @@
+package test;
+
+import halo.query.HaloConfig;
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.dal.BaseDALConnectionListener;
+import halo.query.dal.DALConnectionListener;
+import halo.query.dal.DALConnectionListenerFactory;
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import test.bean.CacheUser;
+import test.bean.StubDriver;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用stub驱动测试DALConnection对物理连接的操作，stub1_ref引用stub1的db1_ref数据库
+ */
+public class DALConnectionTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalroute");
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        HaloConfig.getInstance().setQualifyTableWithDb(false);
+        dataSource.destory();
+        DALStatus.remove();
+    }
+
+    @Test
+    public void skipRedundantCatalog() throws Exception {
+        int setCatalog = StubDriver.JDBC.calls("setCatalog");
+        for (int i = 0; i < 3; i++) {
+            Connection con = dataSource.getConnection();
+            try {
+                use("stub1_ref");
+                con.prepareStatement("select 1").close();
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+        }
+        // 物理连接已经在db1_ref时不需要再次切换
+        Assert.assertEquals(1, StubDriver.JDBC.calls("setCatalog") - setCatalog);
+    }
+
+    @Test
+    public void qualifyTableWithDb() throws Exception {
+        HaloConfig.getInstance().setQualifyTableWithDb(true);
+        JdbcSupport jdbcSupport = new JdbcSupport();
+        jdbcSupport.setDataSource(dataSource);
+        Query query = new Query();
+        query.setJdbcSupport(jdbcSupport);
+        int setCatalog = StubDriver.JDBC.calls("setCatalog");
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("stub1_ref");
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        query.list(CacheUser.class, "where userid=?", new Object[]{1}, dalContext);
+        // 引用数据源的表使用 db.table，不切换数据库
+        Assert.assertTrue(StubDriver.JDBC.lastSql, StubDriver.JDBC.lastSql.contains(" from db1_ref.cache_user as "));
+        Assert.assertEquals(0, StubDriver.JDBC.calls("setCatalog") - setCatalog);
+        // 非引用数据源不增加db
+        dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("stub1");
+        dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        query.list(CacheUser.class, "where userid=?", new Object[]{1}, dalContext);
+        Assert.assertTrue(StubDriver.JDBC.lastSql, StubDriver.JDBC.lastSql.contains(" from cache_user as "));
+    }
+
+    @Test
+    public void commitSingle() throws Exception {
+        int committed = StubDriver.JDBC.committed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            con.setAutoCommit(false);
+            use("stub1");
+            con.prepareStatement("update t set a=1").close();
+            con.commit();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        Assert.assertEquals(1, StubDriver.JDBC.committed.get() - committed);
+    }
+
+    @Test
+    public void commitMulti() throws Exception {
+        int committed = StubDriver.JDBC.committed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            con.setAutoCommit(false);
+            use("stub0");
+            con.prepareStatement("update t set a=1").close();
+            use("stub1");
+            con.prepareStatement("update t set a=1").close();
+            con.commit();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        // 提交所有打开的实际连接
+        Assert.assertEquals(2, StubDriver.JDBC.committed.get() - committed);
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        Connection con = dataSource.getConnection();
+        try {
+            con.setAutoCommit(false);
+            use("stub1");
+            con.prepareStatement("update t set a=1").close();
+            int rollback = StubDriver.JDBC.calls("rollback");
+            con.rollback();
+            Assert.assertEquals(1, StubDriver.JDBC.calls("rollback") - rollback);
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        con = dataSource.getConnection();
+        try {
+            con.setAutoCommit(false);
+            use("stub0");
+            con.prepareStatement("update t set a=1").close();
+            use("stub1");
+            con.prepareStatement("update t set a=1").close();
+            int rollback = StubDriver.JDBC.calls("rollback");
+            con.rollback();
+            Assert.assertEquals(2, StubDriver.JDBC.calls("rollback") - rollback);
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+
+    @Test
+    public void closeReturnsAllConnections() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            Connection con = dataSource.getConnection();
+            try {
+                use("stub0");
+                con.prepareStatement("select 1").close();
+                use("stub1");
+                con.prepareStatement("select 1").close();
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+        }
+        int opened = StubDriver.JDBC.opened.get();
+        int closed = StubDriver.JDBC.closed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            use("stub0");
+            con.prepareStatement("select 1").close();
+            use("stub1");
+            con.prepareStatement("select 1").close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        // 关闭时所有实际连接都归还到连接池，再次使用时不需要创建新的连接
+        Assert.assertEquals(opened, StubDriver.JDBC.opened.get());
+        Assert.assertEquals(closed, StubDriver.JDBC.closed.get());
+    }
+
+    @Test
+    public void settingsBeforeOpen() throws Exception {
+        int readOnly = StubDriver.JDBC.calls("setReadOnly");
+        int isolation = StubDriver.JDBC.calls("setTransactionIsolation");
+        Connection con = dataSource.getConnection();
+        try {
+            // 还没有打开实际连接，记录设置
+            con.setReadOnly(true);
+            con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            Assert.assertEquals(0, StubDriver.JDBC.calls("setReadOnly") - readOnly);
+            Assert.assertEquals(0, StubDriver.JDBC.calls("setTransactionIsolation") - isolation);
+            Assert.assertTrue(con.isReadOnly());
+            Assert.assertEquals(Connection.TRANSACTION_READ_COMMITTED, con.getTransactionIsolation());
+            // 打开的每个实际连接都应用之前的设置
+            use("stub0");
+            con.prepareStatement("select 1").close();
+            use("stub1");
+            con.prepareStatement("select 1").close();
+            Assert.assertEquals(2, StubDriver.JDBC.calls("setReadOnly") - readOnly);
+            Assert.assertEquals(2, StubDriver.JDBC.calls("setTransactionIsolation") - isolation);
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+
+    @Test
+    public void skipMatchingAutoCommit() throws Exception {
+        int autoCommit = StubDriver.JDBC.calls("setAutoCommit");
+        Connection con = dataSource.getConnection();
+        try {
+            // 从连接池获得的连接已经是autoCommit，不需要设置
+            use("stub1");
+            con.prepareStatement("select 1").close();
+            Assert.assertEquals(0, StubDriver.JDBC.calls("setAutoCommit") - autoCommit);
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        con = dataSource.getConnection();
+        try {
+            con.setAutoCommit(false);
+            use("stub1");
+            con.prepareStatement("update t set a=1").close();
+            Assert.assertEquals(1, StubDriver.JDBC.calls("setAutoCommit") - autoCommit);
+            con.commit();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+
+    @Test
+    public void directStatement() throws Exception {
+        final List<Boolean> opened = new CopyOnWriteArrayList<>();
+        final AtomicInteger closed = new AtomicInteger();
+        DALConnectionListenerFactory factory = new DALConnectionListenerFactory();
+        factory.setDalConnectionListeners(Collections.<DALConnectionListener>singletonList(
+                new BaseDALConnectionListener() {
+                    @Override
+                    public void onDALOpened() {
+                        opened.add(DALStatus.hasCurrentDALCon());
+                    }
+
+                    @Override
+                    public void onDALClosed() {
+                        closed.incrementAndGet();
+                    }
+                }));
+        factory.afterPropertiesSet();
+        try {
+            JdbcSupport jdbcSupport = new JdbcSupport();
+            jdbcSupport.setDataSource(dataSource);
+            final Query query = new Query();
+            query.setJdbcSupport(jdbcSupport);
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey("stub1");
+            DALContext dalContext = DALContext.create();
+            dalContext.setDalInfo(dalInfo);
+            query.list(CacheUser.class, "where userid=?", new Object[]{1}, dalContext);
+            // 不在事务中的单条sql直接使用实际连接，不创建DALConnection，执行后清除路由信息
+            Assert.assertEquals(Collections.singletonList(false), opened);
+            Assert.assertEquals(1, closed.get());
+            Assert.assertNull(DALStatus.getDalInfo());
+            opened.clear();
+            new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(
+                    new TransactionCallback<Object>() {
+                        @Override
+                        public Object doInTransaction(TransactionStatus status) {
+                            return query.list(CacheUser.class, "where userid=?", new Object[]{1});
+                        }
+                    });
+            // 事务中仍然使用DALConnection
+            Assert.assertEquals(Collections.singletonList(true), opened);
+        } finally {
+            factory.setDalConnectionListeners(null);
+        }
+    }
+
+    private static void use(String dsKey) {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey(dsKey);
+        DALStatus.setDalInfo(dalInfo);
+    }
+}
@@ -0,0 +1,68 @@
+package test;
+
+import halo.query.dal.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 测试分区上下文跨线程传递
+ */
+public class DALSnapshotTest {
+
+    private ExecutorService executorService = DALExecutors.wrap(Executors.newFixedThreadPool(2));
+
+    @After
+    public void after() {
+        DALScope.current().close();
+        executorService.shutdown();
+    }
+
+    @Test
+    public void propagate() throws Exception {
+        DALStatus.addParam("userId", 1);
+        DALStatus.setSlaveMode("db1_slave");
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey("db1");
+        dalInfo.setRealTable(DALSnapshotTest.class, "tb_1");
+        DALStatus.setDalInfo(dalInfo);
+        DALStatus.setDeadline(1000L);
+        String result = executorService.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return DALStatus.getParamMap().get("userId") + ":" + DALStatus.getDalInfo().getDsKey() + ":" +
+                        DALStatus.getDalInfo().getRealTable(DALSnapshotTest.class) + ":" + DALStatus.getSlaveDsKey()
+                        + ":" + DALStatus.isEnableSlave() + ":" + DALStatus.getDeadline();
+            }
+        }).get();
+        Assert.assertEquals("1:db1:tb_1:db1_slave:true:1000", result);
+
+        //运行线程的状态已经恢复
+        DALStatus.remove();
+        boolean clean = executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !DALStatus.hasDALParam() && !DALStatus.hasDALInfo() && !DALStatus.isEnableSlave();
+            }
+        }).get();
+        Assert.assertTrue(clean);
+    }
+
+    @Test
+    public void applyAndRestore() {
+        DALStatus.addParam("userId", 1);
+        DALSnapshot snapshot = DALStatus.capture();
+        DALStatus.remove();
+        DALStatus.addParam("userId", 2);
+        DALSnapshot prev = snapshot.apply();
+        Assert.assertEquals(1, DALStatus.getParamMap().get("userId"));
+        prev.apply();
+        Assert.assertEquals(2, DALStatus.getParamMap().get("userId"));
+        DALStatus.remove();
+        Assert.assertSame(DALSnapshot.EMPTY, DALStatus.capture());
+    }
+}
@@ -0,0 +1,108 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALScope;
+import halo.query.dal.DALSession;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * 测试线程分区上下文
+ */
+public class DALStatusTest {
+
+    @After
+    public void after() {
+        DALScope.current().close();
+    }
+
+    @Test
+    public void resetInPlace() {
+        DALScope scope = DALScope.current();
+        DALStatus.addParam("userId", 1);
+        DALStatus.setSlaveMode("db0_slave");
+        DALStatus.setDalInfo(DALInfo.createForManual());
+        Map<String, Object> paramMap = DALStatus.getParamMap();
+        Assert.assertTrue(DALStatus.hasDALParam());
+        Assert.assertTrue(DALStatus.isEnableSlave());
+        Assert.assertTrue(DALStatus.hasMslbStatus());
+        Assert.assertEquals("db0_slave", DALStatus.getSlaveDsKey());
+
+        DALStatus.remove();
+        Assert.assertSame(scope, DALScope.current());
+        Assert.assertFalse(DALStatus.hasDALParam());
+        Assert.assertNull(DALStatus.getParamMap());
+        Assert.assertFalse(DALStatus.isEnableSlave());
+        Assert.assertFalse(DALStatus.hasMslbStatus());
+        Assert.assertFalse(DALStatus.hasDALInfo());
+        Assert.assertFalse(DALStatus.hasMsDsKey());
+
+        // 返回的是副本，不受之后的修改影响
+        DALStatus.addParam("userId", 2);
+        Assert.assertEquals(1, paramMap.get("userId"));
+        Assert.assertEquals(2, DALStatus.getParamMap().get("userId"));
+    }
+
+    @Test
+    public void globalSlave() {
+        DALStatus.setGlobalSlaveMode();
+        DALStatus.remove();
+        Assert.assertTrue(DALStatus.isEnableSlave());
+        DALStatus.clearGlobalSlaveMode();
+        Assert.assertFalse(DALStatus.isEnableSlave());
+    }
+
+    @Test
+    public void closeScope() {
+        try (DALScope scope = DALScope.open()) {
+            scope.addParam("userId", 1);
+            DALStatus.setGlobalSlaveMode();
+            Assert.assertTrue(DALStatus.hasDALParam());
+        }
+        Assert.assertFalse(DALStatus.hasDALParam());
+        Assert.assertFalse(DALStatus.hasGlobalSlave());
+    }
+
+    @Test
+    public void nestedScope() {
+        try (DALScope outer = DALScope.open()) {
+            outer.addParam("userId", 1);
+            DALStatus.setGlobalSlaveMode();
+            try (DALScope inner = DALScope.open()) {
+                Assert.assertFalse(DALStatus.hasDALParam());
+                Assert.assertTrue(DALStatus.hasGlobalSlave());
+                inner.addParam("userId", 2);
+                DALStatus.clearGlobalSlaveMode();
+                DALStatus.setSlaveMode("db0_slave");
+            }
+            // 内层关闭后恢复外层的设置
+            Assert.assertEquals(1, DALStatus.getParamMap().get("userId"));
+            Assert.assertTrue(DALStatus.hasGlobalSlave());
+            Assert.assertFalse(DALStatus.hasMslbStatus());
+            Assert.assertNull(DALStatus.getSlaveDsKey());
+        }
+        Assert.assertFalse(DALStatus.hasDALParam());
+        Assert.assertFalse(DALStatus.hasGlobalSlave());
+    }
+
+    @Test
+    public void session() throws Exception {
+        DALSession session = new DALSession(50);
+        DALStatus.setSession(session);
+        DALStatus.setMaxStaleness(1000);
+        DALStatus.markWrite("db0");
+        DALStatus.remove();
+        Assert.assertSame(session, DALStatus.getSession());
+        Assert.assertEquals(-1, DALStatus.getMaxStaleness());
+        Assert.assertTrue(session.isRecentlyWritten("db0"));
+        Assert.assertFalse(session.isRecentlyWritten("db1"));
+        Thread.sleep(60);
+        Assert.assertFalse(session.isRecentlyWritten("db0"));
+        DALScope.current().close();
+        Assert.assertNull(DALStatus.getSession());
+    }
+}
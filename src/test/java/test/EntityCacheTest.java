@@ -0,0 +1,82 @@
+package test;
+
+import halo.query.cache.EntityCache;
+import halo.query.cache.EntityCacheKey;
+import halo.query.mapping.EntityTableInfo;
+import halo.query.mapping.EntityTableInfoFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.CacheUser;
+
+public class EntityCacheTest {
+
+    private EntityCache<CacheUser> cache;
+
+    @Before
+    public void before() {
+        EntityTableInfo<CacheUser> info = EntityTableInfoFactory.getEntityTableInfo(CacheUser.class);
+        cache = info.getEntityCache();
+        cache.invalidateAll();
+    }
+
+    @Test
+    public void getReturnsCopy() {
+        EntityCacheKey key = new EntityCacheKey("db0", "cache_user", new Object[]{1L});
+        cache.put(key, user(1, "a"), cache.getGeneration());
+        CacheUser cached = cache.get(key);
+        Assert.assertEquals("a", cached.getName());
+        cached.setName("b");
+        Assert.assertEquals("a", cache.get(key).getName());
+        // 不同分区中相同id的数据互不影响
+        Assert.assertNull(cache.get(new EntityCacheKey("db1", "cache_user", new Object[]{1L})));
+        Assert.assertTrue(cache.getHitRate() > 0);
+    }
+
+    @Test
+    public void invalidate() {
+        EntityCacheKey key = new EntityCacheKey("db0", "cache_user", new Object[]{2L});
+        long generation = cache.getGeneration();
+        cache.invalidate(key);
+        // 查询期间发生过失效，旧数据不会放入缓存
+        cache.put(key, user(2, "old"), generation);
+        Assert.assertNull(cache.get(key));
+        cache.put(key, user(2, "new"), cache.getGeneration());
+        Assert.assertEquals("new", cache.get(key).getName());
+        cache.invalidate(key);
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void missing() {
+        EntityCacheKey key = new EntityCacheKey("db0", "cache_user", new Object[]{3L});
+        Assert.assertFalse(cache.isMissing(key));
+        cache.putMiss(key, cache.getGeneration());
+        Assert.assertNull(cache.get(key));
+        Assert.assertTrue(cache.isMissing(key));
+        // 数据库生成id的insert之后，记录的不存在数据失效
+        cache.invalidateMisses();
+        Assert.assertFalse(cache.isMissing(key));
+        cache.putMiss(key, cache.getGeneration());
+        cache.put(key, user(3, "c"), cache.getGeneration());
+        Assert.assertFalse(cache.isMissing(key));
+        Assert.assertEquals(1, cache.getNegativeHitCount());
+    }
+
+    @Test
+    public void evict() {
+        for (int i = 0; i < 100; i++) {
+            cache.put(new EntityCacheKey("db0", "cache_user", new Object[]{(long) i}), user(i, "u"),
+                    cache.getGeneration());
+        }
+        Assert.assertTrue(cache.getSize() <= 16);
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    private static CacheUser user(long userId, String name) {
+        CacheUser user = new CacheUser();
+        user.setUserId(userId);
+        user.setName(name);
+        return user;
+    }
+}
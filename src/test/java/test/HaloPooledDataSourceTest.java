@@ -0,0 +1,415 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALRejectedException;
+import halo.query.dal.DALStatus;
+import halo.query.dal.DALTimeoutException;
+import halo.query.dal.HaloConcurrencyLimiter;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.dal.HaloPooledDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.CountingPooledDataSource;
+import test.bean.StubDriver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用stub驱动测试内置连接池
+ */
+public class HaloPooledDataSourceTest {
+
+    private HaloPooledDataSource dataSource;
+
+    @Before
+    public void before() {
+        dataSource = new HaloPooledDataSource();
+        dataSource.setDriverClass(StubDriver.class.getName());
+        dataSource.setJdbcUrl(StubDriver.URL);
+        dataSource.setInitialPoolSize(1);
+        dataSource.setMinPoolSize(1);
+        dataSource.setMaxPoolSize(2);
+        dataSource.setCheckoutTimeout(100);
+    }
+
+    @After
+    public void after() {
+        dataSource.close();
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        int opened = StubDriver.JDBC.opened.get();
+        Connection con = dataSource.getConnection();
+        con.close();
+        Assert.assertTrue(con.isClosed());
+        Connection con2 = dataSource.getConnection();
+        con2.close();
+        Assert.assertEquals(1, StubDriver.JDBC.opened.get() - opened);
+        Assert.assertEquals(1, dataSource.getTotalConnections());
+        Assert.assertEquals(1, dataSource.getIdleConnections());
+        Assert.assertEquals(2, dataSource.getBorrowCount());
+        try {
+            con.getAutoCommit();
+            Assert.fail("closed connection must not be used");
+        } catch (SQLException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        Connection con0 = dataSource.getConnection();
+        Connection con1 = dataSource.getConnection();
+        Assert.assertEquals(2, dataSource.getActiveConnections());
+        try {
+            dataSource.getConnection();
+            Assert.fail("pool is exhausted");
+        } catch (SQLTransientConnectionException e) {
+            Assert.assertEquals(1, dataSource.getTimeoutCount());
+        }
+        con0.close();
+        con1.close();
+        Assert.assertEquals(0, dataSource.getActiveConnections());
+    }
+
+    @Test
+    public void handoff() throws Exception {
+        dataSource.setCheckoutTimeout(5000);
+        Connection con0 = dataSource.getConnection();
+        final Connection con1 = dataSource.getConnection();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (dataSource.getThreadsAwaitingConnection() == 0) {
+                            Thread.sleep(1);
+                        }
+                        waiting.countDown();
+                        con1.close();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            // 连接数已满，等待其他线程归还的连接
+            Connection con2 = dataSource.getConnection();
+            Assert.assertEquals(0, waiting.getCount());
+            Assert.assertEquals(2, dataSource.getTotalConnections());
+            con2.close();
+        } finally {
+            executorService.shutdown();
+            con0.close();
+        }
+        Assert.assertEquals(0, dataSource.getThreadsAwaitingConnection());
+    }
+
+    @Test
+    public void createFailure() throws Exception {
+        String url = StubDriver.URL + "_down";
+        dataSource.setJdbcUrl(url);
+        dataSource.setInitialPoolSize(0);
+        dataSource.setCheckoutTimeout(5000);
+        StubDriver.JDBC.downUrls.add(url);
+        try {
+            long begin = System.currentTimeMillis();
+            try {
+                dataSource.getConnection();
+                Assert.fail();
+            } catch (SQLTransientConnectionException e) {
+                Assert.fail("must not wait until timeout");
+            } catch (SQLException e) {
+                // 后台创建连接失败后立即返回异常
+                Assert.assertNotNull(e.getCause());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - begin < 1000);
+            Assert.assertEquals(0, dataSource.getTotalConnections());
+        } finally {
+            StubDriver.JDBC.downUrls.remove(url);
+        }
+        Connection con = dataSource.getConnection();
+        con.close();
+        Assert.assertEquals(1, dataSource.getTotalConnections());
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final int threads = 8;
+        final int loops = 2000;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicInteger errors = new AtomicInteger();
+        dataSource.setCheckoutTimeout(5000);
+        for (int i = 0; i < threads; i++) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < loops; k++) {
+                            Connection con = dataSource.getConnection();
+                            con.close();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        executorService.shutdown();
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(threads * loops, dataSource.getBorrowCount());
+        Assert.assertTrue(dataSource.getTotalConnections() <= 2);
+        Assert.assertEquals(0, dataSource.getActiveConnections());
+    }
+
+    @Test
+    public void warmUp() throws Exception {
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalstub");
+        dalDataSource.setWarmUp(true);
+        dalDataSource.afterPropertiesSet();
+        try {
+            Map<String, Long> map = dalDataSource.getWarmUpMillisMap();
+            Assert.assertEquals(2, map.size());
+            Assert.assertTrue(map.get("stub0") >= 0);
+            Assert.assertTrue(map.get("stub1") >= 0);
+        } finally {
+            dalDataSource.destory();
+        }
+    }
+
+    @Test
+    public void lazyPool() throws Exception {
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalstub");
+        dalDataSource.setLazyInit(true);
+        dalDataSource.setWarmUp(true);
+        dalDataSource.setMaxTotalConnections(3);
+        dalDataSource.setIdlePoolCloseMillis(60000);
+        dalDataSource.afterPropertiesSet();
+        try {
+            Assert.assertTrue(dalDataSource.getWarmUpMillisMap().isEmpty());
+            Assert.assertEquals(0, dalDataSource.getTotalPhysicalConnections());
+            Connection con = dalDataSource.getConnection();
+            try {
+                con.prepareStatement("select 1").close();
+                Assert.assertEquals(1, dalDataSource.getTotalPhysicalConnections());
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+            dalDataSource.setIdlePoolCloseMillis(0);
+            dalDataSource.closeIdlePools();
+            Assert.assertEquals(0, dalDataSource.getTotalPhysicalConnections());
+        } finally {
+            dalDataSource.destory();
+        }
+    }
+
+    @Test
+    public void parallelCompletion() throws Exception {
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalstub");
+        dalDataSource.setCompletionThreads(2);
+        dalDataSource.afterPropertiesSet();
+        try {
+            int committed = StubDriver.JDBC.committed.get();
+            int closed = StubDriver.JDBC.closed.get();
+            Connection con = dalDataSource.getConnection();
+            try {
+                con.setAutoCommit(false);
+                for (String dsKey : new String[]{"stub0", "stub1"}) {
+                    DALInfo dalInfo = new DALInfo();
+                    dalInfo.setDsKey(dsKey);
+                    DALStatus.setDalInfo(dalInfo);
+                    con.prepareStatement("update t set a=1").close();
+                }
+                con.commit();
+                Assert.assertEquals(committed + 2, StubDriver.JDBC.committed.get());
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+            // 连接归还到连接池，不会关闭物理连接
+            Assert.assertEquals(closed, StubDriver.JDBC.closed.get());
+        } finally {
+            dalDataSource.destory();
+        }
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalstub");
+        dalDataSource.afterPropertiesSet();
+        try {
+            Connection con = dalDataSource.getConnection();
+            try {
+                DALStatus.setDeadline(System.currentTimeMillis() - 1);
+                try {
+                    con.prepareStatement("select 1");
+                    Assert.fail();
+                } catch (DALTimeoutException e) {
+                    // 已经超过期限，不会获取连接
+                }
+                DALStatus.setTimeout(10000);
+                con.prepareStatement("select 1").close();
+                DALStatus.afterStatement();
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+        } finally {
+            dalDataSource.destory();
+        }
+    }
+
+    @Test
+    public void concurrencyLimit() throws Exception {
+        final HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalstub");
+        dalDataSource.setMaxConcurrency(1);
+        dalDataSource.afterPropertiesSet();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Callable<Boolean> task = new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    Connection con = dalDataSource.getConnection();
+                    try {
+                        con.prepareStatement("select 1").close();
+                        return true;
+                    } catch (DALRejectedException e) {
+                        return false;
+                    } finally {
+                        con.close();
+                        DALStatus.remove();
+                    }
+                }
+            };
+            Connection con = dalDataSource.getConnection();
+            try {
+                con.prepareStatement("select 1").close();
+                // stub0正在使用唯一的许可，其他线程立即失败
+                Assert.assertFalse(executorService.submit(task).get());
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+            Assert.assertTrue(executorService.submit(task).get());
+            HaloConcurrencyLimiter limiter = dalDataSource.getConcurrencyLimiters().get("stub0");
+            Assert.assertEquals(1, limiter.getRejectCount());
+            Assert.assertEquals(0, limiter.getInFlight());
+        } finally {
+            executorService.shutdown();
+            dalDataSource.destory();
+        }
+    }
+
+    @Test
+    public void reload() throws Exception {
+        File dir = new File(getClass().getClassLoader().getResource("dalstub.properties").toURI()).getParentFile();
+        File file = new File(dir, "dalreload.properties");
+        writeConfig(file, "db0");
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalreload");
+        dalDataSource.afterPropertiesSet();
+        try {
+            Connection con = dalDataSource.getConnection();
+            int closed;
+            try {
+                con.prepareStatement("select 1").close();
+                closed = StubDriver.JDBC.closed.get();
+                writeConfig(file, "db1");
+                dalDataSource.reload();
+                Thread.sleep(200);
+                // 正在使用的连接池不会被关闭
+                Assert.assertEquals(closed, StubDriver.JDBC.closed.get());
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (StubDriver.JDBC.closed.get() == closed && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(StubDriver.JDBC.closed.get() > closed);
+        } finally {
+            dalDataSource.destory();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reloadFailureClosesCreatedPools() throws Exception {
+        File dir = new File(getClass().getClassLoader().getResource("dalstub.properties").toURI()).getParentFile();
+        File file = new File(dir, "dalreload.properties");
+        writeConfig(file, "db0");
+        HaloDALNativePropertiesDataSource dalDataSource = new HaloDALNativePropertiesDataSource();
+        dalDataSource.setName("dalreload");
+        dalDataSource.setDataSourceClassName(CountingPooledDataSource.class.getName());
+        int open = CountingPooledDataSource.OPEN.get();
+        dalDataSource.afterPropertiesSet();
+        try {
+            Assert.assertEquals(open + 1, CountingPooledDataSource.OPEN.get());
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+                writer.write("stub1={\"url\" : \"db1\"}\n");
+                writer.write("stub2=null\n");
+            }
+            try {
+                dalDataSource.reload();
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // 继续使用原有的拓扑
+            }
+            // 本次创建的stub1连接池被关闭，没有变化的stub0连接池继续使用
+            long deadline = System.currentTimeMillis() + 5000;
+            while (CountingPooledDataSource.OPEN.get() > open + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(open + 1, CountingPooledDataSource.OPEN.get());
+            Connection con = dalDataSource.getConnection();
+            try {
+                con.prepareStatement("select 1").close();
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+        } finally {
+            dalDataSource.destory();
+            file.delete();
+        }
+        Assert.assertEquals(open, CountingPooledDataSource.OPEN.get());
+    }
+
+    private static void writeConfig(File file, String db) throws Exception {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write("default=stub0\n");
+            writer.write("global.jdbcUrl=jdbc:stub:{0}\n");
+            writer.write("global.driverClass=test.bean.StubDriver\n");
+            writer.write("global.initialPoolSize=0\n");
+            writer.write("stub0={\"url\" : \"" + db + "\"}\n");
+        }
+    }
+}
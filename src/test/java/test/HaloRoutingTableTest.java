@@ -0,0 +1,211 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALRejectedException;
+import halo.query.dal.DALSession;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.dal.HaloSlaveHealthChecker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.StubDriver;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用stub驱动测试数据源拓扑变化后的路由
+ */
+public class HaloRoutingTableTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalroute");
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        StubDriver.JDBC.lagMap.clear();
+        dataSource.destory();
+        DALStatus.clearSession();
+        DALStatus.remove();
+    }
+
+    @Test
+    public void slaveList() {
+        List<String> slaves = dataSource.getAvailableSlaveDsKeys("stub0");
+        Assert.assertEquals(Arrays.asList("stub0_slave0", "stub0_slave1"), slaves);
+        Assert.assertNull(dataSource.getAvailableSlaveDsKeys("stub1"));
+        // 传给slave选择策略的列表由路由表共享，不可修改
+        try {
+            slaves.add("stub1");
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertEquals("db1_ref", dataSource.getRefDb("stub1_ref"));
+    }
+
+    @Test
+    public void markSlaveDownAndUp() throws Exception {
+        dataSource.markSlaveDown("stub0_slave0");
+        Assert.assertEquals(Arrays.asList("stub0_slave1"), dataSource.getAvailableSlaveDsKeys("stub0"));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("stub0_slave1", readFromSlave("stub0"));
+        }
+        dataSource.markSlaveDown("stub0_slave1");
+        Assert.assertNull(dataSource.getAvailableSlaveDsKeys("stub0"));
+        dataSource.markSlaveUp("stub0_slave0");
+        Assert.assertEquals(Arrays.asList("stub0_slave0"), dataSource.getAvailableSlaveDsKeys("stub0"));
+        Assert.assertEquals("stub0_slave0", readFromSlave("stub0"));
+    }
+
+    @Test
+    public void loadAndRemoveDataSource() throws Exception {
+        Map<String, Object> cfgMap = new HashMap<>();
+        cfgMap.put("url", "db0s2");
+        Map<String, Object> ctxMap = new HashMap<>();
+        ctxMap.put("dsKey", "stub0_slave2");
+        ctxMap.put("cfgMap", cfgMap);
+        dataSource.markSlaveDown("stub0_slave0");
+        dataSource.loadDataSource(ctxMap, "stub0");
+        // 只更新受影响的路由，不可用的标记保留
+        Assert.assertEquals(Arrays.asList("stub0_slave1", "stub0_slave2"), dataSource.getAvailableSlaveDsKeys
+                ("stub0"));
+        Assert.assertEquals("db1_ref", dataSource.getRefDb("stub1_ref"));
+        dataSource.markSlaveDown("stub0_slave1");
+        Assert.assertEquals("stub0_slave2", readFromSlave("stub0"));
+
+        dataSource.removeDataSource("stub0_slave2");
+        Assert.assertNull(dataSource.getAvailableSlaveDsKeys("stub0"));
+        Assert.assertEquals(Arrays.asList("stub0_slave0", "stub0_slave1"), dataSource.getSlaveDsKeys("stub0"));
+    }
+
+    @Test
+    public void recentWriteReadsMaster() throws Exception {
+        DALSession session = new DALSession(TimeUnit.MINUTES.toMillis(1));
+        session.onWrite("stub0");
+        long masterCount = dataSource.getDataSourceStats("stub0").getCount();
+        DALStatus.setSession(session);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(readFromSlave("stub0", -1));
+        }
+        Assert.assertEquals(masterCount + 3, dataSource.getDataSourceStats("stub0").getCount());
+    }
+
+    @Test
+    public void staleSlaveSkipped() throws Exception {
+        StubDriver.JDBC.lagMap.put("jdbc:stub:db0s0", 10000L);
+        StubDriver.JDBC.lagMap.put("jdbc:stub:db0s1", 0L);
+        checkLag();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("stub0_slave1", readFromSlave("stub0", 1000));
+        }
+    }
+
+    @Test
+    public void staleFallbackLimited() throws Exception {
+        StubDriver.JDBC.lagMap.put("jdbc:stub:db0s0", 10000L);
+        StubDriver.JDBC.lagMap.put("jdbc:stub:db0s1", 10000L);
+        checkLag();
+        dataSource.setMaxMasterFallback(1);
+        long masterCount = dataSource.getDataSourceStats("stub0").getCount();
+        Assert.assertNull(readFromSlave("stub0", 1000));
+        Assert.assertEquals(masterCount + 1, dataSource.getDataSourceStats("stub0").getCount());
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DALInfo dalInfo = new DALInfo();
+                dalInfo.setDsKey("stub0");
+                DALStatus.setDalInfo(dalInfo);
+                DALStatus.setSlaveMode();
+                DALStatus.setMaxStaleness(1000);
+                try {
+                    Connection con = dataSource.getConnection();
+                    try {
+                        con.prepareStatement("select 1").close();
+                        opened.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    } finally {
+                        con.close();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    DALStatus.remove();
+                    opened.countDown();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(opened.await(5, TimeUnit.SECONDS));
+        try {
+            // 延迟过大的slave不能作为降级使用
+            readFromSlave("stub0", 1000);
+            Assert.fail();
+        } catch (DALRejectedException e) {
+            // expected
+        } finally {
+            release.countDown();
+            t.join();
+        }
+    }
+
+    /**
+     * 使用心跳sql检查一次slave的复制延迟
+     */
+    private void checkLag() throws Exception {
+        HaloSlaveHealthChecker checker = new HaloSlaveHealthChecker();
+        checker.setHaloDALDataSource(dataSource);
+        checker.setCheckInterval(TimeUnit.HOURS.toMillis(1));
+        checker.setMonitorLag(true);
+        checker.setHeartbeatSql("select ts from heartbeat");
+        checker.afterPropertiesSet();
+        try {
+            checker.check();
+        } finally {
+            checker.destory();
+        }
+    }
+
+    private String readFromSlave(String master) throws Exception {
+        return readFromSlave(master, -1);
+    }
+
+    /**
+     * 使用slave模式获取连接，返回选择的slave
+     *
+     * @param maxStaleness 可以接受的复制延迟，小于0为不限制
+     */
+    private String readFromSlave(String master, long maxStaleness) throws Exception {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey(master);
+        DALStatus.setDalInfo(dalInfo);
+        DALStatus.setSlaveMode();
+        if (maxStaleness >= 0) {
+            DALStatus.setMaxStaleness(maxStaleness);
+        }
+        Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement("select 1").close();
+            return DALStatus.getSlaveDsKey();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.dal.HaloSlaveHealthChecker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.StubDriver;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用stub驱动测试slave健康检查以及所有slave不可用时的路由
+ */
+public class HaloSlaveHealthCheckerTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    private HaloSlaveHealthChecker checker;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalroute");
+        dataSource.afterPropertiesSet();
+        checker = new HaloSlaveHealthChecker();
+        checker.setHaloDALDataSource(dataSource);
+        checker.setCheckInterval(TimeUnit.HOURS.toMillis(1));
+        checker.setValidationTimeout(1);
+        checker.setFailureThreshold(2);
+        checker.setRecoveryThreshold(2);
+        checker.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        StubDriver.JDBC.downUrls.clear();
+        checker.destory();
+        dataSource.destory();
+        DALStatus.remove();
+    }
+
+    @Test
+    public void markDownAndRecover() {
+        StubDriver.JDBC.downUrls.add("jdbc:stub:db0s0");
+        checker.check();
+        // 没有达到连续失败的次数
+        Assert.assertEquals(Arrays.asList("stub0_slave0", "stub0_slave1"), dataSource.getAvailableSlaveDsKeys
+                ("stub0"));
+        checker.check();
+        Assert.assertEquals(Arrays.asList("stub0_slave1"), dataSource.getAvailableSlaveDsKeys("stub0"));
+        Assert.assertTrue(dataSource.getDownSlaveDsKeys().contains("stub0_slave0"));
+
+        StubDriver.JDBC.downUrls.clear();
+        checker.check();
+        Assert.assertEquals(Arrays.asList("stub0_slave1"), dataSource.getAvailableSlaveDsKeys("stub0"));
+        checker.check();
+        Assert.assertEquals(Arrays.asList("stub0_slave0", "stub0_slave1"), dataSource.getAvailableSlaveDsKeys
+                ("stub0"));
+        Assert.assertTrue(dataSource.getDownSlaveDsKeys().isEmpty());
+    }
+
+    @Test
+    public void failuresMustBeConsecutive() {
+        StubDriver.JDBC.downUrls.add("jdbc:stub:db0s0");
+        checker.check();
+        StubDriver.JDBC.downUrls.clear();
+        checker.check();
+        StubDriver.JDBC.downUrls.add("jdbc:stub:db0s0");
+        checker.check();
+        Assert.assertTrue(dataSource.getDownSlaveDsKeys().isEmpty());
+        checker.check();
+        Assert.assertTrue(dataSource.getDownSlaveDsKeys().contains("stub0_slave0"));
+    }
+
+    @Test
+    public void masterFallback() throws Exception {
+        StubDriver.JDBC.downUrls.add("jdbc:stub:db0s0");
+        StubDriver.JDBC.downUrls.add("jdbc:stub:db0s1");
+        checker.check();
+        checker.check();
+        Assert.assertNull(dataSource.getAvailableSlaveDsKeys("stub0"));
+        StubDriver.JDBC.downUrls.clear();
+
+        dataSource.setMaxMasterFallback(1);
+        long masterCount = dataSource.getDataSourceStats("stub0").getCount();
+        read();
+        Assert.assertEquals(masterCount + 1, dataSource.getDataSourceStats("stub0").getCount());
+
+        // master的许可用完后降级使用被标记为不可用的slave，不会失败
+        CountDownLatch release = new CountDownLatch(1);
+        Thread t = hold(release);
+        try {
+            long slaveCount = dataSource.getDataSourceStats("stub0_slave0").getCount() + dataSource
+                    .getDataSourceStats("stub0_slave1").getCount();
+            read();
+            Assert.assertEquals(slaveCount + 1, dataSource.getDataSourceStats("stub0_slave0").getCount() +
+                    dataSource.getDataSourceStats("stub0_slave1").getCount());
+        } finally {
+            release.countDown();
+            t.join();
+        }
+        Assert.assertEquals(masterCount + 2, dataSource.getDataSourceStats("stub0").getCount());
+    }
+
+    private void read() throws SQLException {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey("stub0");
+        DALStatus.setDalInfo(dalInfo);
+        DALStatus.setSlaveMode();
+        Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement("select 1").close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+
+    /**
+     * 在其他线程中使用slave模式占用连接，直到release
+     */
+    private Thread hold(final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DALInfo dalInfo = new DALInfo();
+                dalInfo.setDsKey("stub0");
+                DALStatus.setDalInfo(dalInfo);
+                DALStatus.setSlaveMode();
+                try {
+                    Connection con = dataSource.getConnection();
+                    try {
+                        con.prepareStatement("select 1").close();
+                        opened.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    } finally {
+                        con.close();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    DALStatus.remove();
+                    opened.countDown();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(opened.await(5, TimeUnit.SECONDS));
+        return t;
+    }
+}
@@ -0,0 +1,151 @@
+package test;
+
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.dal.HaloManager;
+import halo.query.dal.HaloStatementCacheStats;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.StubDriver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * 使用stub驱动测试物理连接的PreparedStatement缓存，连接池只有一个物理连接
+ */
+public class HaloStatementCacheTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    private HaloStatementCacheStats stats;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstmt");
+        dataSource.afterPropertiesSet();
+        HaloManager haloManager = new HaloManager();
+        haloManager.setHaloDALDataSource(dataSource);
+        stats = haloManager.getStatementCacheStats().get("stub0");
+    }
+
+    @After
+    public void after() {
+        dataSource.destory();
+        DALStatus.remove();
+    }
+
+    @Test
+    public void reuseAcrossCheckouts() throws Exception {
+        int prepared = StubDriver.JDBC.prepared.get();
+        for (int i = 0; i < 3; i++) {
+            Connection con = dataSource.getConnection();
+            try {
+                con.prepareStatement("select 1").close();
+            } finally {
+                con.close();
+                DALStatus.remove();
+            }
+        }
+        // 自动提交的单个语句，每次借出连接后都可以使用缓存
+        Assert.assertEquals(1, StubDriver.JDBC.prepared.get() - prepared);
+        Assert.assertEquals(2, stats.getHits());
+        Assert.assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void resetSettings() throws Exception {
+        int resultSetClosed = StubDriver.JDBC.resultSetClosed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("insert into user values(?)", Statement.RETURN_GENERATED_KEYS);
+            ps.setQueryTimeout(3);
+            ps.setFetchSize(10);
+            ps.setMaxRows(10);
+            ps.setMaxFieldSize(100);
+            ps.setFetchDirection(ResultSet.FETCH_REVERSE);
+            ps.setEscapeProcessing(false);
+            ps.setPoolable(false);
+            ps.getGeneratedKeys();
+            ps.close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        // 放回缓存时恢复所有修改过的属性，关闭自增主键的结果集
+        Assert.assertEquals(0, StubDriver.JDBC.statementSettings.get("setQueryTimeout"));
+        Assert.assertEquals(0, StubDriver.JDBC.statementSettings.get("setFetchSize"));
+        Assert.assertEquals(0, StubDriver.JDBC.statementSettings.get("setMaxRows"));
+        Assert.assertEquals(0, StubDriver.JDBC.statementSettings.get("setMaxFieldSize"));
+        Assert.assertEquals(ResultSet.FETCH_FORWARD, StubDriver.JDBC.statementSettings.get("setFetchDirection"));
+        Assert.assertEquals(true, StubDriver.JDBC.statementSettings.get("setEscapeProcessing"));
+        Assert.assertEquals(true, StubDriver.JDBC.statementSettings.get("setPoolable"));
+        Assert.assertEquals(1, StubDriver.JDBC.resultSetClosed.get() - resultSetClosed);
+    }
+
+    @Test
+    public void closeOnCompletionNotCached() throws Exception {
+        int prepared = StubDriver.JDBC.prepared.get();
+        int statementClosed = StubDriver.JDBC.statementClosed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            PreparedStatement ps = con.prepareStatement("select 2");
+            ps.closeOnCompletion();
+            ps.close();
+            con.prepareStatement("select 2").close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        // closeOnCompletion 无法恢复，statement被真正关闭
+        Assert.assertEquals(2, StubDriver.JDBC.prepared.get() - prepared);
+        Assert.assertEquals(1, StubDriver.JDBC.statementClosed.get() - statementClosed);
+    }
+
+    @Test
+    public void closeUnclosedOnCheckin() throws Exception {
+        int prepared = StubDriver.JDBC.prepared.get();
+        int statementClosed = StubDriver.JDBC.statementClosed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement("select 3");
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        // 使用者没有关闭的statement在连接归还时关闭，不会被下一次借出使用
+        Assert.assertEquals(1, StubDriver.JDBC.statementClosed.get() - statementClosed);
+        con = dataSource.getConnection();
+        try {
+            con.prepareStatement("select 3").close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        Assert.assertEquals(2, StubDriver.JDBC.prepared.get() - prepared);
+    }
+
+    @Test
+    public void evict() throws Exception {
+        int statementClosed = StubDriver.JDBC.statementClosed.get();
+        Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement("select 4").close();
+            con.prepareStatement("select 5").close();
+            con.prepareStatement("select 6").close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+        Assert.assertEquals(1, stats.getEvictions());
+        Assert.assertEquals(1, StubDriver.JDBC.statementClosed.get() - statementClosed);
+        // 关闭连接池时关闭缓存的statement
+        dataSource.destory();
+        Assert.assertEquals(3, StubDriver.JDBC.statementClosed.get() - statementClosed);
+    }
+}
@@ -0,0 +1,197 @@
+package test;
+
+import halo.query.HedgedQuery;
+import halo.query.Query;
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALScope;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.CacheUser;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用stub驱动的主从拓扑测试对冲查询，stub0有2个slave
+ */
+public class HedgedQueryTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    private HedgedQuery hedgedQuery;
+
+    /**
+     * 第几次执行查询，从0开始
+     */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * 每次执行使用的slave
+     */
+    private final List<String> slaves = new CopyOnWriteArrayList<>();
+
+    /**
+     * 第一次执行的行为，返回后第一次执行结束
+     */
+    private volatile Runnable firstCall;
+
+    /**
+     * 第一次执行是否被取消
+     */
+    private final CountDownLatch firstCancelled = new CountDownLatch(1);
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalroute");
+        dataSource.afterPropertiesSet();
+        hedgedQuery = new HedgedQuery();
+        hedgedQuery.setQuery(new Query() {
+            @Override
+            public <T> T obj(Class<T> clazz, String afterFrom, Object[] values) {
+                slaves.add(DALStatus.getSlaveDsKey());
+                if (calls.getAndIncrement() == 0) {
+                    firstCall.run();
+                }
+                CacheUser user = new CacheUser();
+                user.setUserId(calls.get());
+                return (T) user;
+            }
+        });
+        hedgedQuery.setPoolSize(4);
+        hedgedQuery.setBudgetPercent(100);
+        hedgedQuery.setDefaultDelayMillis(100);
+        hedgedQuery.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        hedgedQuery.destory();
+        dataSource.destory();
+        DALScope.current().close();
+    }
+
+    @Test
+    public void hedgeAfterDelay() throws Exception {
+        firstCall = sleep(2000);
+        long begin = System.currentTimeMillis();
+        CacheUser user = hedgedQuery.obj(CacheUser.class, "where userid=?", new Object[]{1}, slaveContext());
+        long time = System.currentTimeMillis() - begin;
+        // 超过阈值后在另一个slave上执行，使用先返回的结果
+        Assert.assertEquals(2, user.getUserId());
+        Assert.assertTrue(time >= 100 && time < 1000);
+        Assert.assertEquals(1, hedgedQuery.getHedgeCount());
+        // 结果返回之后才会更新统计
+        long deadline = System.currentTimeMillis() + 1000;
+        while (hedgedQuery.getHedgeWinCount() == 0 && System.currentTimeMillis() < deadline) {
+            sleepQuietly(5);
+        }
+        Assert.assertEquals(1, hedgedQuery.getHedgeWinCount());
+        Assert.assertEquals(2, slaves.size());
+        Assert.assertNotEquals(slaves.get(0), slaves.get(1));
+    }
+
+    @Test
+    public void budgetExhausted() throws Exception {
+        hedgedQuery.setBudgetPercent(0);
+        firstCall = sleep(300);
+        CacheUser user = hedgedQuery.obj(CacheUser.class, "where userid=?", new Object[]{1}, slaveContext());
+        // 没有对冲预算时等待第一个查询返回
+        Assert.assertEquals(1, user.getUserId());
+        Assert.assertEquals(1, hedgedQuery.getRequestCount());
+        Assert.assertEquals(0, hedgedQuery.getHedgeCount());
+        Assert.assertEquals(1, slaves.size());
+    }
+
+    @Test
+    public void loserCancelled() throws Exception {
+        firstCall = new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.currentTimeMillis() + 2000;
+                while (System.currentTimeMillis() < deadline) {
+                    if (DALScope.current().getCancelHandle().isCancelled()) {
+                        firstCancelled.countDown();
+                        return;
+                    }
+                    sleepQuietly(5);
+                }
+            }
+        };
+        CacheUser user = hedgedQuery.obj(CacheUser.class, "where userid=?", new Object[]{1}, slaveContext());
+        Assert.assertEquals(2, user.getUserId());
+        // 对冲请求返回后取消较慢的查询
+        Assert.assertTrue(firstCancelled.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void primaryFailsFast() throws Exception {
+        hedgedQuery.setDefaultDelayMillis(5000);
+        firstCall = new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("slave failure");
+            }
+        };
+        long begin = System.currentTimeMillis();
+        CacheUser user = hedgedQuery.obj(CacheUser.class, "where userid=?", new Object[]{1}, slaveContext());
+        long time = System.currentTimeMillis() - begin;
+        // 第一个查询失败后立即在另一个slave上执行，不等待阈值
+        Assert.assertEquals(2, user.getUserId());
+        Assert.assertTrue(time < 2000);
+        Assert.assertEquals(1, hedgedQuery.getHedgeCount());
+        Assert.assertNotEquals(slaves.get(0), slaves.get(1));
+    }
+
+    @Test
+    public void bothFail() throws Exception {
+        hedgedQuery.setQuery(new Query() {
+            @Override
+            public <T> T obj(Class<T> clazz, String afterFrom, Object[] values) {
+                calls.incrementAndGet();
+                throw new IllegalStateException("slave failure");
+            }
+        });
+        try {
+            hedgedQuery.obj(CacheUser.class, "where userid=?", new Object[]{1}, slaveContext());
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("slave failure", e.getMessage());
+        }
+        Assert.assertEquals(2, calls.get());
+    }
+
+    private static DALContext slaveContext() {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("stub0");
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        dalContext.setEnableSlave(true);
+        return dalContext;
+    }
+
+    private static Runnable sleep(final long millis) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                sleepQuietly(millis);
+            }
+        };
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
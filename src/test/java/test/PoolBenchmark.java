@@ -0,0 +1,83 @@
+package test;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.DataSources;
+import halo.query.dal.HaloPooledDataSource;
+import test.bean.StubDriver;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 使用stub驱动对比c3p0与内置连接池在多线程竞争下获取、归还连接的吞吐量，只测量连接池本身的开销.<br>
+ * 运行方式: mvn test-compile exec:java -Dexec.mainClass=test.PoolBenchmark -Dexec.classpathScope=test
+ * 参数: [线程数] [连接池大小] [每轮秒数]
+ */
+public class PoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Class.forName(StubDriver.class.getName());
+        for (int round = 0; round < 2; round++) {
+            // 第一轮为预热
+            ComboPooledDataSource c3p0 = new ComboPooledDataSource();
+            c3p0.setDriverClass(StubDriver.class.getName());
+            c3p0.setJdbcUrl(StubDriver.URL);
+            c3p0.setMinPoolSize(poolSize);
+            c3p0.setInitialPoolSize(poolSize);
+            c3p0.setMaxPoolSize(poolSize);
+            report("c3p0", round, run(c3p0, threads, seconds), seconds);
+            DataSources.destroy(c3p0);
+
+            HaloPooledDataSource halo = new HaloPooledDataSource();
+            halo.setDriverClass(StubDriver.class.getName());
+            halo.setJdbcUrl(StubDriver.URL);
+            halo.setMinPoolSize(poolSize);
+            halo.setInitialPoolSize(poolSize);
+            halo.setMaxPoolSize(poolSize);
+            report("halo", round, run(halo, threads, seconds), seconds);
+            halo.close();
+        }
+    }
+
+    private static void report(String name, int round, long ops, int seconds) {
+        System.out.println((round == 0 ? "[warmup] " : "") + name + ": " + (ops / seconds) + " ops/s");
+    }
+
+    private static long run(final DataSource dataSource, int threads, int seconds) throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(threads);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline) {
+                            Connection con = dataSource.getConnection();
+                            con.getAutoCommit();
+                            con.close();
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        ops.addAndGet(count);
+                        end.countDown();
+                    }
+                }
+            });
+            t.start();
+        }
+        start.countDown();
+        end.await();
+        return ops.get();
+    }
+}
@@ -0,0 +1,138 @@
+package test;
+
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.QueryPublisher;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.jdbc.core.RowMapper;
+import test.bean.StubJdbc;
+import test.bean.TestUser;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 测试流式查询的背压与资源释放
+ */
+public class QueryPublisherTest {
+
+    private StubJdbc stubJdbc;
+
+    private Query query;
+
+    private RowMapper<Integer> rowMapper = new RowMapper<Integer>() {
+        @Override
+        public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return rs.getInt(1);
+        }
+    };
+
+    @Before
+    public void before() {
+        stubJdbc = new StubJdbc(10);
+        JdbcSupport jdbcSupport = new JdbcSupport();
+        jdbcSupport.setDataSource(stubJdbc.dataSource());
+        query = new Query();
+        query.setJdbcSupport(jdbcSupport);
+    }
+
+    @Test
+    public void backpressureAndCancel() {
+        QueryPublisher<Integer> publisher = createPublisher();
+        Assert.assertEquals(0, stubJdbc.opened.get());
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+        Assert.assertEquals(3, subscriber.items.size());
+        Assert.assertEquals(3, stubJdbc.nextCalled.get());
+        subscriber.subscription.request(2);
+        Assert.assertEquals(5, subscriber.items.size());
+        subscriber.subscription.cancel();
+        Assert.assertEquals(1, stubJdbc.closed.get());
+        Assert.assertEquals(1, stubJdbc.statementClosed.get());
+        Assert.assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void complete() {
+        TestSubscriber subscriber = new TestSubscriber();
+        createPublisher().subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(10, subscriber.items.size());
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertEquals(1, stubJdbc.closed.get());
+    }
+
+    @Test
+    public void badRequest() {
+        TestSubscriber subscriber = new TestSubscriber();
+        createPublisher().subscribe(subscriber);
+        subscriber.subscription.request(0);
+        Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void onNextError() {
+        TestSubscriber subscriber = new TestSubscriber() {
+            @Override
+            public void onNext(Integer integer) {
+                super.onNext(integer);
+                if (items.size() == 2) {
+                    throw new IllegalStateException("subscriber error");
+                }
+            }
+        };
+        createPublisher().subscribe(subscriber);
+        subscriber.subscription.request(5);
+        // onNext抛出异常视为取消订阅，不再调用onError
+        Assert.assertEquals(2, subscriber.items.size());
+        Assert.assertNull(subscriber.error);
+        Assert.assertEquals(1, stubJdbc.closed.get());
+        Assert.assertEquals(1, stubJdbc.statementClosed.get());
+        subscriber.subscription.request(1);
+        Assert.assertEquals(2, subscriber.items.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueryPublisher<Integer> createPublisher() {
+        QueryPublisher publisher = query.listPublisher(TestUser.class, "where userid>?", new Object[]{0}, (RowMapper) rowMapper);
+        return (QueryPublisher<Integer>) publisher;
+    }
+
+    private static class TestSubscriber implements Subscriber<Integer> {
+
+        Subscription subscription;
+
+        List<Integer> items = new ArrayList<>();
+
+        boolean completed;
+
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            this.subscription = s;
+        }
+
+        @Override
+        public void onNext(Integer integer) {
+            items.add(integer);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+        }
+    }
+}
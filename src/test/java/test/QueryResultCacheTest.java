@@ -0,0 +1,99 @@
+package test;
+
+import halo.query.cache.QueryResultCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryResultCacheTest {
+
+    private static final String SQL = "select count(*) from user_0 where name=?";
+
+    private static final String[] TABLES = {QueryResultCache.tableKey("db0", "user_0")};
+
+    private QueryResultCache cache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void before() throws Exception {
+        cache = create(60000);
+    }
+
+    @After
+    public void after() {
+        cache.destory();
+    }
+
+    @Test
+    public void hit() throws Exception {
+        Assert.assertEquals(1, get("a").intValue());
+        Assert.assertEquals(1, get("a").intValue());
+        Assert.assertEquals(2, get("b").intValue());
+        // 不同dsKey的结果互不影响
+        cache.get("db1", SQL, new Object[]{"a"}, Number.class, TABLES, loader());
+        Assert.assertEquals(3, loads.get());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        get("a");
+        cache.invalidate(QueryResultCache.tableKey("db0", "user_1"));
+        get("a");
+        Assert.assertEquals(1, loads.get());
+        cache.invalidate(TABLES[0]);
+        Assert.assertEquals(2, get("a").intValue());
+        // 查询期间发生写操作，结果放入缓存后立即失效
+        cache.get("db0", SQL, new Object[]{"c"}, Number.class, TABLES, new Callable<Number>() {
+            @Override
+            public Number call() throws Exception {
+                cache.invalidate(TABLES[0]);
+                return loads.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(4, get("c").intValue());
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        cache.destory();
+        cache = create(50);
+        Assert.assertEquals(1, get("a").intValue());
+        Thread.sleep(80);
+        // 过期后返回旧数据，后台刷新
+        Assert.assertEquals(1, get("a").intValue());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, cache.getStaleHitCount());
+        Assert.assertEquals(2, get("a").intValue());
+        Assert.assertEquals(2, loads.get());
+    }
+
+    private static QueryResultCache create(long ttlMillis) throws Exception {
+        QueryResultCache cache = new QueryResultCache();
+        cache.setTtlMillis(ttlMillis);
+        cache.setStaleMillis(10000);
+        cache.afterPropertiesSet();
+        return cache;
+    }
+
+    private Number get(String name) throws Exception {
+        return cache.get("db0", SQL, new Object[]{name}, Number.class, TABLES, loader());
+    }
+
+    private Callable<Number> loader() {
+        return new Callable<Number>() {
+            @Override
+            public Number call() throws Exception {
+                return loads.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+package test;
+
+import halo.query.SingleFlight;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+public class SingleFlightTest {
+
+    private static final String SQL = "select * from user where userid=?";
+
+    @Test
+    public void share() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final UnaryOperator<List<String>> copier = new UnaryOperator<List<String>>() {
+            @Override
+            public List<String> apply(List<String> list) {
+                return new ArrayList<>(list);
+            }
+        };
+        final Callable<List<String>> loader = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+                List<String> list = new ArrayList<>();
+                list.add("a");
+                return list;
+            }
+        };
+        Callable<List<String>> task = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return singleFlight.execute("db0", false, SQL, new Object[]{1}, String.class, loader, copier, 0);
+            }
+        };
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            futures.add(executorService.submit(task));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                futures.add(executorService.submit(task));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (singleFlight.getSharedCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            List<List<String>> results = new ArrayList<>();
+            for (Future<List<String>> future : futures) {
+                List<String> list = future.get(5, TimeUnit.SECONDS);
+                Assert.assertEquals("a", list.get(0));
+                for (List<String> result : results) {
+                    // 每个线程得到不同的副本
+                    Assert.assertNotSame(result, list);
+                }
+                results.add(list);
+            }
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(1, singleFlight.getExecuteCount());
+            Assert.assertEquals(3, singleFlight.getSharedCount());
+            Assert.assertEquals(0, singleFlight.getInFlight());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void slaveNotShared() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<Number> slave = executorService.submit(new Callable<Number>() {
+                @Override
+                public Number call() throws Exception {
+                    return singleFlight.execute("db0", true, SQL, new Object[]{1}, Number.class,
+                            new Callable<Number>() {
+                                @Override
+                                public Number call() throws Exception {
+                                    started.countDown();
+                                    Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+                                    return 1;
+                                }
+                            }, null, 0);
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            // slave的查询正在执行，读主库的相同查询不等待slave的结果
+            Number master = singleFlight.execute("db0", false, SQL, new Object[]{1}, Number.class,
+                    new Callable<Number>() {
+                        @Override
+                        public Number call() throws Exception {
+                            return 2;
+                        }
+                    }, null, 0);
+            Assert.assertEquals(2, master.intValue());
+            release.countDown();
+            Assert.assertEquals(1, slave.get(5, TimeUnit.SECONDS).intValue());
+            Assert.assertEquals(2, singleFlight.getExecuteCount());
+            Assert.assertEquals(0, singleFlight.getSharedCount());
+        } finally {
+            release.countDown();
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void error() {
+        SingleFlight singleFlight = new SingleFlight();
+        try {
+            singleFlight.execute("db0", false, SQL, new Object[]{1}, Number.class, new Callable<Number>() {
+                @Override
+                public Number call() throws Exception {
+                    throw new IllegalStateException("db error");
+                }
+            }, null, 0);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("db error", e.getMessage());
+        }
+        Assert.assertEquals(0, singleFlight.getInFlight());
+    }
+}
@@ -0,0 +1,197 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.dal.slave.EwmaSlaveSelectStrategy;
+import halo.query.dal.slave.LeastOutstandingSlaveSelectStrategy;
+import halo.query.dal.slave.WeightedRoundRobinSlaveSelectStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试slave选择策略
+ */
+public class SlaveSelectStrategyTest {
+
+    private List<String> slaves = Arrays.asList("db0_slave0", "db0_slave1", "db0_slave2");
+
+    @Test
+    public void weightedRoundRobin() {
+        WeightedRoundRobinSlaveSelectStrategy strategy = new WeightedRoundRobinSlaveSelectStrategy();
+        Map<String, Integer> weightMap = new HashMap<>();
+        weightMap.put("db0_slave0", 2);
+        weightMap.put("db0_slave2", 0);
+        strategy.setWeightMap(weightMap);
+        Map<String, Integer> countMap = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String dsKey = strategy.parse("db0", slaves);
+            Integer count = countMap.get(dsKey);
+            countMap.put(dsKey, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals(200, countMap.get("db0_slave0").intValue());
+        Assert.assertEquals(100, countMap.get("db0_slave1").intValue());
+        Assert.assertNull(countMap.get("db0_slave2"));
+        Assert.assertNull(strategy.parse("db0", null));
+    }
+
+    @Test
+    public void selectFromList() {
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(slaves.contains(new LeastOutstandingSlaveSelectStrategy().parse("db0", slaves)));
+            Assert.assertTrue(slaves.contains(new EwmaSlaveSelectStrategy().parse("db0", slaves)));
+        }
+        Assert.assertEquals("db0_slave0", new EwmaSlaveSelectStrategy().parse("db0", slaves.subList(0, 1)));
+    }
+
+    private List<String> stubSlaves = Arrays.asList("stub0_slave0", "stub0_slave1");
+
+    @Test
+    public void leastOutstandingAvoidsBusySlave() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        LeastOutstandingSlaveSelectStrategy strategy = new LeastOutstandingSlaveSelectStrategy();
+        dataSource.setSlaveSelectStrategy(strategy);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Thread t = hold(dataSource, "stub0_slave0", release);
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("stub0_slave1", strategy.parse("stub0", stubSlaves));
+            }
+            release.countDown();
+            t.join();
+            Assert.assertEquals(0, dataSource.getDataSourceStats("stub0_slave0").getInFlight());
+        } finally {
+            release.countDown();
+            dataSource.destory();
+        }
+    }
+
+    @Test
+    public void ewmaAvoidsSlowSlave() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        EwmaSlaveSelectStrategy strategy = new EwmaSlaveSelectStrategy();
+        dataSource.setSlaveSelectStrategy(strategy);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            Thread t = hold(dataSource, "stub0_slave0", release);
+            Thread.sleep(50);
+            release.countDown();
+            t.join();
+            read(dataSource, "stub0_slave1", "select 1");
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("stub0_slave1", strategy.parse("stub0", stubSlaves));
+            }
+        } finally {
+            dataSource.destory();
+        }
+    }
+
+    @Test
+    public void ewmaAvoidsFailingSlave() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        EwmaSlaveSelectStrategy strategy = new EwmaSlaveSelectStrategy();
+        dataSource.setSlaveSelectStrategy(strategy);
+        try {
+            read(dataSource, "stub0_slave1", "select 1");
+            try {
+                read(dataSource, "stub0_slave0", "fail");
+                Assert.fail();
+            } catch (SQLException e) {
+                // expected
+            }
+            // 失败按照惩罚时间计入EWMA，没有成功样本的slave不会因为得分为0被选择
+            Assert.assertEquals(1, dataSource.getDataSourceStats("stub0_slave0").getErrorCount());
+            Assert.assertTrue(dataSource.getDataSourceStats("stub0_slave0").getEwmaMillis() >= 1000);
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("stub0_slave1", strategy.parse("stub0", stubSlaves));
+            }
+        } finally {
+            dataSource.destory();
+        }
+    }
+
+    @Test
+    public void statsBelongToDataSource() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = createStubDataSource();
+        HaloDALNativePropertiesDataSource other = createStubDataSource();
+        try {
+            read(dataSource, "stub0_slave1", "select 1");
+            Assert.assertEquals(1, dataSource.getDataSourceStats("stub0_slave1").getCount());
+            Assert.assertEquals(0, other.getDataSourceStats("stub0_slave1").getCount());
+            dataSource.removeDataSource("stub0_slave1");
+            Assert.assertNull(dataSource.getDataSourceStats("stub0_slave1"));
+        } finally {
+            dataSource.destory();
+            other.destory();
+        }
+    }
+
+    private static HaloDALNativePropertiesDataSource createStubDataSource() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalroute");
+        dataSource.afterPropertiesSet();
+        return dataSource;
+    }
+
+    /**
+     * 在指定的slave上执行sql
+     */
+    private static void read(HaloDALNativePropertiesDataSource dataSource, String slave, String sql)
+            throws SQLException {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey("stub0");
+        DALStatus.setDalInfo(dalInfo);
+        DALStatus.setSlaveMode(slave);
+        Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement(sql).close();
+        } finally {
+            con.close();
+            DALStatus.remove();
+        }
+    }
+
+    /**
+     * 在其他线程中占用slave的连接，直到release
+     */
+    private static Thread hold(final HaloDALNativePropertiesDataSource dataSource, final String slave,
+                               final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DALInfo dalInfo = new DALInfo();
+                dalInfo.setDsKey("stub0");
+                DALStatus.setDalInfo(dalInfo);
+                DALStatus.setSlaveMode(slave);
+                try {
+                    Connection con = dataSource.getConnection();
+                    try {
+                        con.prepareStatement("select 1").close();
+                        opened.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    } finally {
+                        con.close();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    DALStatus.remove();
+                    opened.countDown();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(opened.await(5, TimeUnit.SECONDS));
+        return t;
+    }
+}
@@ -0,0 +1,167 @@
+package test;
+
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.cache.EntityCache;
+import halo.query.cache.QueryResultCache;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import halo.query.mapping.EntityTableInfoFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import test.bean.CacheUser;
+import test.bean.StubDriver;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 使用stub驱动测试事务中写入时的缓存失效，事务提交之前其他线程读取的仍然是旧数据
+ */
+public class TransactionCacheTest {
+
+    private HaloDALNativePropertiesDataSource dataSource;
+
+    private Query query;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ExecutorService reader;
+
+    private QueryResultCache resultCache;
+
+    @Before
+    public void before() throws Exception {
+        dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstub");
+        dataSource.afterPropertiesSet();
+        JdbcSupport jdbcSupport = new JdbcSupport();
+        jdbcSupport.setDataSource(dataSource);
+        resultCache = new QueryResultCache();
+        resultCache.setTtlMillis(60000);
+        resultCache.afterPropertiesSet();
+        jdbcSupport.setResultCache(resultCache);
+        query = new Query();
+        query.setJdbcSupport(jdbcSupport);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        reader = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void after() {
+        reader.shutdown();
+        resultCache.destory();
+        dataSource.destory();
+    }
+
+    @Test
+    public void entityCacheInvalidatedAfterCommit() throws Exception {
+        final EntityCache<CacheUser> cache = EntityTableInfoFactory.getEntityTableInfo(CacheUser.class)
+                .getEntityCache();
+        cache.invalidateAll();
+        transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                CacheUser user = new CacheUser();
+                user.setUserId(1);
+                user.setName("changed");
+                query.update(user);
+                // 事务还没有提交，其他线程读取旧数据并放入缓存
+                Assert.assertNotNull(read());
+                Assert.assertEquals(1, cache.getSize());
+                return null;
+            }
+        });
+        // 事务提交后再次失效
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void rollbackKeepsCache() throws Exception {
+        final EntityCache<CacheUser> cache = EntityTableInfoFactory.getEntityTableInfo(CacheUser.class)
+                .getEntityCache();
+        cache.invalidateAll();
+        transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                CacheUser user = new CacheUser();
+                user.setUserId(1);
+                query.update(user);
+                Assert.assertNotNull(read());
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+        // 回滚后数据没有变化，其他线程读取的数据仍然有效
+        Assert.assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void resultCacheInvalidatedAfterCommit() throws Exception {
+        transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                CacheUser user = new CacheUser();
+                user.setUserId(1);
+                query.update(user);
+                // 事务还没有提交，其他线程查询旧数据并放入缓存
+                int prepared = StubDriver.JDBC.prepared.get();
+                list();
+                list();
+                Assert.assertEquals(1, StubDriver.JDBC.prepared.get() - prepared);
+                return null;
+            }
+        });
+        // 事务提交后表的版本号再次增加，重新查询
+        int prepared = StubDriver.JDBC.prepared.get();
+        list();
+        Assert.assertEquals(1, StubDriver.JDBC.prepared.get() - prepared);
+    }
+
+    @Test
+    public void resultCacheReturnsCopies() throws Exception {
+        List<CacheUser> list = list();
+        Assert.assertFalse(list.isEmpty());
+        String name = list.get(0).getName();
+        list.get(0).setName("changed");
+        int prepared = StubDriver.JDBC.prepared.get();
+        List<CacheUser> cached = list();
+        // 缓存命中时返回复制的对象，调用者的修改不影响缓存
+        Assert.assertEquals(0, StubDriver.JDBC.prepared.get() - prepared);
+        Assert.assertNotSame(list.get(0), cached.get(0));
+        Assert.assertEquals(name, cached.get(0).getName());
+    }
+
+    private List<CacheUser> list() {
+        try {
+            return reader.submit(new Callable<List<CacheUser>>() {
+                @Override
+                public List<CacheUser> call() throws Exception {
+                    return query.list(CacheUser.class, "where name=?", new Object[]{"a"});
+                }
+            }).get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private CacheUser read() {
+        try {
+            return reader.submit(new Callable<CacheUser>() {
+                @Override
+                public CacheUser call() throws Exception {
+                    return query.objById(CacheUser.class, 1L);
+                }
+            }).get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package test;
+
+import halo.query.HaloConfig;
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.dal.HaloDALNativePropertiesDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import test.bean.CacheUser;
+import test.bean.StubDriver;
+
+/**
+ * 使用stub驱动测试事务中的实体记录，stub驱动的查询结果只有id为1的数据
+ */
+public class TransactionIdentityMapTest {
+
+    @Test
+    public void identityMap() throws Exception {
+        HaloDALNativePropertiesDataSource dataSource = new HaloDALNativePropertiesDataSource();
+        dataSource.setName("dalstub");
+        dataSource.afterPropertiesSet();
+        HaloConfig.getInstance().setTransactionIdentityMap(true);
+        try {
+            JdbcSupport jdbcSupport = new JdbcSupport();
+            jdbcSupport.setDataSource(dataSource);
+            final Query query = new Query();
+            query.setJdbcSupport(jdbcSupport);
+            TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager
+                    (dataSource));
+            final int prepared = StubDriver.JDBC.prepared.get();
+            transactionTemplate.execute(new TransactionCallback<Object>() {
+                @Override
+                public Object doInTransaction(TransactionStatus status) {
+                    CacheUser user = query.objById(CacheUser.class, 1L);
+                    user.setName("changed");
+                    CacheUser user2 = query.objById(CacheUser.class, 1L);
+                    // 第二次读取不访问数据库，返回副本
+                    Assert.assertEquals(1, StubDriver.JDBC.prepared.get() - prepared);
+                    Assert.assertNotSame(user, user2);
+                    Assert.assertNull(user2.getName());
+                    query.update(user);
+                    query.objById(CacheUser.class, 1L);
+                    // update使记录失效，重新查询
+                    Assert.assertEquals(3, StubDriver.JDBC.prepared.get() - prepared);
+                    return null;
+                }
+            });
+        } finally {
+            HaloConfig.getInstance().setTransactionIdentityMap(false);
+            dataSource.destory();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package test.bean;
+
+import halo.query.annotation.Column;
+import halo.query.annotation.Id;
+import halo.query.annotation.Table;
+
+/**
+ * 开启实体缓存的对象
+ */
+@Table(name = "cache_user", cache = true, cacheSize = 16, cacheMissTtlSeconds = 60)
+public class CacheUser {
+
+    @Id
+    @Column
+    private long userId;
+
+    @Column
+    private String name;
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(long userId) {
+        this.userId = userId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,25 @@
+package test.bean;
+
+import halo.query.dal.HaloPooledDataSource;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 记录没有关闭的连接池数量
+ */
+public class CountingPooledDataSource extends HaloPooledDataSource {
+
+    public static final AtomicInteger OPEN = new AtomicInteger();
+
+    public CountingPooledDataSource() {
+        OPEN.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        if (!this.isClosed()) {
+            OPEN.decrementAndGet();
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,245 @@
+package test.bean;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不需要数据库的jdbc对象，查询返回 rows 行数据，每行只有一个 int 列
+ */
+public class StubJdbc {
+
+    private static final Set<String> STATEMENT_SETTINGS = new HashSet<>(Arrays.asList("setQueryTimeout",
+            "setFetchSize", "setMaxRows", "setMaxFieldSize", "setFetchDirection", "setEscapeProcessing", "setPoolable"));
+
+    public final AtomicInteger opened = new AtomicInteger();
+
+    public final AtomicInteger closed = new AtomicInteger();
+
+    public final AtomicInteger statementClosed = new AtomicInteger();
+
+    public final AtomicInteger prepared = new AtomicInteger();
+
+    public final AtomicInteger nextCalled = new AtomicInteger();
+
+    public final AtomicInteger committed = new AtomicInteger();
+
+    public final AtomicInteger resultSetClosed = new AtomicInteger();
+
+    /**
+     * 连接的方法调用次数，key为方法名称
+     */
+    public final ConcurrentHashMap<String, AtomicInteger> connectionCalls = new ConcurrentHashMap<>();
+
+    /**
+     * 最后一次prepareStatement的sql
+     */
+    public volatile String lastSql;
+
+    /**
+     * statement最后一次设置的属性，key为setter名称
+     */
+    public final Map<String, Object> statementSettings = new ConcurrentHashMap<>();
+
+    /**
+     * 不可用的url，无法创建连接，已经创建的连接执行任何操作都抛出异常
+     */
+    public final Set<String> downUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * url与复制延迟(毫秒)的对应，设置后查询结果的 getLong 返回当前时间减去延迟，作为心跳时间
+     */
+    public final Map<String, Long> lagMap = new ConcurrentHashMap<>();
+
+    private final int rows;
+
+    public StubJdbc(int rows) {
+        this.rows = rows;
+    }
+
+    public DataSource dataSource() {
+        return proxy(DataSource.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getConnection")) {
+                    return connection();
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    public Connection connection() {
+        return create(null);
+    }
+
+    public Connection connection(String url) throws SQLException {
+        if (downUrls.contains(url)) {
+            throw new SQLException("stub [" + url + "] is down");
+        }
+        return create(url);
+    }
+
+    private Connection create(final String url) {
+        opened.incrementAndGet();
+        return proxy(Connection.class, new InvocationHandler() {
+
+            private boolean isClosed;
+
+            private String catalog;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (url != null && downUrls.contains(url) && !name.equals("close") && !name.equals("isClosed")) {
+                    throw new SQLException("stub [" + url + "] is down");
+                }
+                count(name);
+                if (name.equals("setCatalog")) {
+                    catalog = (String) args[0];
+                    return null;
+                }
+                if (name.equals("getCatalog")) {
+                    return catalog;
+                }
+                if (name.equals("createStatement")) {
+                    return statement(url);
+                }
+                if (name.equals("prepareStatement")) {
+                    if (((String) args[0]).startsWith("fail")) {
+                        throw new SQLException("stub failure");
+                    }
+                    prepared.incrementAndGet();
+                    lastSql = (String) args[0];
+                    return statement(url);
+                }
+                if (name.equals("close")) {
+                    if (!isClosed) {
+                        closed.incrementAndGet();
+                    }
+                    isClosed = true;
+                    return null;
+                }
+                if (name.equals("commit")) {
+                    committed.incrementAndGet();
+                    return null;
+                }
+                if (name.equals("isClosed")) {
+                    return isClosed;
+                }
+                if (name.equals("isValid") || name.equals("getAutoCommit")) {
+                    return true;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * @return 连接的方法调用次数
+     */
+    public int calls(String name) {
+        AtomicInteger count = connectionCalls.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    private void count(String name) {
+        AtomicInteger count = connectionCalls.get(name);
+        if (count == null) {
+            AtomicInteger old = connectionCalls.putIfAbsent(name, count = new AtomicInteger());
+            if (old != null) {
+                count = old;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private PreparedStatement statement(final String url) {
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("executeQuery") || name.equals("getGeneratedKeys")) {
+                    return resultSet(url);
+                }
+                if (name.equals("close")) {
+                    statementClosed.incrementAndGet();
+                    return null;
+                }
+                if (STATEMENT_SETTINGS.contains(name)) {
+                    statementSettings.put(name, args[0]);
+                    return null;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private ResultSet resultSet(final String url) {
+        return proxy(ResultSet.class, new InvocationHandler() {
+
+            private int row;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    nextCalled.incrementAndGet();
+                    return ++row <= rows;
+                }
+                if (name.equals("getInt")) {
+                    return row;
+                }
+                if (name.equals("getLong")) {
+                    Long lag = url == null ? null : lagMap.get(url);
+                    if (lag != null) {
+                        return System.currentTimeMillis() - lag;
+                    }
+                    return (long) row;
+                }
+                if (name.equals("close")) {
+                    resultSetClosed.incrementAndGet();
+                    return null;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class[]{iface}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type.equals(boolean.class)) {
+            return false;
+        }
+        if (type.equals(long.class)) {
+            return 0L;
+        }
+        if (type.equals(int.class)) {
+            return 0;
+        }
+        if (type.equals(short.class)) {
+            return (short) 0;
+        }
+        if (type.equals(byte.class)) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}